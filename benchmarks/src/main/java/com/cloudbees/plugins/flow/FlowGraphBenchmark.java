@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries made on the graph while collecting the jobs to build, and loading of graph definitions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlowGraphBenchmark {
+
+    @Param({"CHAIN", "FAN_OUT", "DIAMONDS", "RANDOM"})
+    public SyntheticGraphs shape;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int size;
+
+    private FlowGraph graph;
+
+    private List<String> mustBuildJobs;
+
+    private byte[] properties;
+
+    private byte[] binary;
+
+    private int next;
+
+    @Setup
+    public void createGraph() throws Exception {
+        graph = shape.create(size).freeze();
+        mustBuildJobs = SyntheticGraphs.mustBuildJobs(size);
+        properties = shape.toProperties(size).getBytes("ISO-8859-1");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GraphFormat.write(graph, out);
+        binary = out.toByteArray();
+    }
+
+    private String nextJob() {
+        next = (next + 1) % size;
+        return SyntheticGraphs.job(next);
+    }
+
+    @Benchmark
+    public Object isChildOfAny() {
+        return graph.isChildOfAny(nextJob(), mustBuildJobs);
+    }
+
+    /**
+     * Baseline for {@link #isChildOfAny()}: the lookup as done before {@link GraphReachability}, a shortest path
+     * search from every job
+     */
+    @Benchmark
+    public boolean isChildOfAnyWithShortestPaths() {
+        String child = nextJob();
+        for (String job : mustBuildJobs) {
+            if (!job.equals(child)) {
+                List<?> path = (List<?>) graph.findPath(job, child);
+                if (path != null && !path.isEmpty()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean isConnectedToAnyMustBuildJob() {
+        return graph.isConnectedToAny(nextJob(), mustBuildJobs);
+    }
+
+    /**
+     * Every job checked once, as when collecting the jobs to build
+     */
+    @Benchmark
+    public void isConnectedToAnyMustBuildJobForAllJobs(Blackhole blackhole) {
+        for (int i = 0; i < size; i++) {
+            blackhole.consume(graph.isConnectedToAny(SyntheticGraphs.job(i), mustBuildJobs));
+        }
+    }
+
+    @Benchmark
+    public FlowGraph loadFromProperties() throws Exception {
+        return FlowGraph.createFromPropertyFile(new ByteArrayInputStream(properties)).freeze();
+    }
+
+    @Benchmark
+    public FlowGraph loadFromGraphFormat() throws Exception {
+        return GraphFormat.read(new ByteArrayInputStream(binary));
+    }
+}
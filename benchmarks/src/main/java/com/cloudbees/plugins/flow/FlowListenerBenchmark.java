@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Cause;
+import hudson.model.TaskListener;
+import org.mockito.cglib.proxy.MethodInterceptor;
+import org.mockito.cglib.proxy.MethodProxy;
+import org.mockito.internal.creation.jmock.ClassImposterizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds completing on many executors at once, {@link FlowListener#onCompleted(AbstractBuild, TaskListener)} being
+ * called for every build of the controller. With a flow build of the project in flight the causes of the build are
+ * looked at, otherwise the build is skipped after a single lookup.
+ * <p>
+ * The builds are stubs answering the calls of the listener only: Mockito mocks record every call, which would
+ * serialize the threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class FlowListenerBenchmark {
+
+    private static final String PROJECT = "FlowListenerBenchmark-job";
+
+    @Param({"false", "true"})
+    public boolean flowBuildInFlight;
+
+    private final FlowListener listener = new FlowListener();
+
+    private AbstractBuild<?, ?> build;
+
+    @Setup
+    public void createBuild() {
+        Map<String, Object> project = new HashMap<String, Object>();
+        project.put("getFullName", PROJECT);
+        Map<String, Object> build = new HashMap<String, Object>();
+        build.put("getParent", stub(AbstractProject.class, project));
+        build.put("getCauses", Collections.<Cause>singletonList(new Cause.RemoteCause("localhost", "benchmark")));
+        this.build = stub(AbstractBuild.class, build);
+        if (flowBuildInFlight) {
+            FlowListener.buildScheduled(PROJECT);
+        }
+    }
+
+    @TearDown
+    public void finishFlowBuild() {
+        if (flowBuildInFlight) {
+            FlowListener.buildDone(PROJECT);
+        }
+    }
+
+    @Benchmark
+    public void onCompleted() {
+        listener.onCompleted(build, TaskListener.NULL);
+    }
+
+    /**
+     * @return an instance of the type returning the given values from the methods of the same name
+     */
+    private static <T> T stub(Class<T> type, final Map<String, Object> answers) {
+        return ClassImposterizer.INSTANCE.imposterise(new MethodInterceptor() {
+            public Object intercept(Object obj, Method method, Object[] args, MethodProxy proxy) {
+                if (!answers.containsKey(method.getName())) {
+                    throw new UnsupportedOperationException(method.toString());
+                }
+                return answers.get(method.getName());
+            }
+        }, type);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import org.jgrapht.graph.SimpleDirectedGraph;
+import org.objenesis.Objenesis;
+import org.objenesis.ObjenesisStd;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Registration of the builds of a graph build in the {@link FlowRun}, every job of the graph added in topological
+ * order. The runs are created without Jenkins: their constructor is skipped and only the fields used by
+ * {@link FlowRun#addBuild(JobInvocation)} are set.
+ * <p>
+ * A new run is needed for every invocation, so only the larger graphs give meaningful figures.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlowRunBenchmark {
+
+    private static final Objenesis OBJENESIS = new ObjenesisStd();
+
+    @Param({"CHAIN", "FAN_OUT", "DIAMONDS", "RANDOM"})
+    public SyntheticGraphs shape;
+
+    @Param({"100", "1000", "10000"})
+    public int size;
+
+    private FlowGraph graph;
+
+    private AbstractProject[] projects;
+
+    private File journalFile;
+
+    private FlowRun run;
+
+    private JobInvocation[] jobs;
+
+    @Setup
+    public void createGraph() throws Exception {
+        graph = shape.create(size).freeze();
+        projects = new AbstractProject[size];
+        for (int i = 0; i < size; i++) {
+            projects[i] = mock(AbstractProject.class);
+            when(projects[i].getFullName()).thenReturn(SyntheticGraphs.job(i));
+        }
+        journalFile = File.createTempFile("journal", ".log");
+    }
+
+    @Setup(Level.Invocation)
+    public void createRun() throws Exception {
+        run = newFlowRun(graph, new FlowJournal(journalFile));
+        jobs = new JobInvocation[size];
+        for (int i = 0; i < size; i++) {
+            jobs[i] = new JobInvocation(run, projects[i]);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeJournal() {
+        run.getJournal().close();
+        journalFile.delete();
+    }
+
+    @TearDown
+    public void deleteJournal() {
+        journalFile.delete();
+    }
+
+    @Benchmark
+    public FlowRun addBuild() throws Exception {
+        for (JobInvocation job : jobs) {
+            run.addBuild(job);
+        }
+        return run;
+    }
+
+    /**
+     * Latency of a single {@link FlowRun#addBuild(JobInvocation)} as the run grows, the parents of the job never
+     * being part of the run so that every add has to look them all up. The figures should not depend on the size.
+     */
+    @State(Scope.Thread)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    @Fork(1)
+    public static class GrowingRun {
+
+        @Param({"0", "10000", "100000"})
+        public int size;
+
+        private AbstractProject project;
+
+        private File journalFile;
+
+        private FlowRun run;
+
+        @Setup(Level.Iteration)
+        public void createRun() throws Exception {
+            project = mock(AbstractProject.class);
+            when(project.getFullName()).thenReturn("job");
+            journalFile = File.createTempFile("journal", ".log");
+            run = newFlowRun(new FlowGraph().addEdge("missing", "job").freeze(), new FlowJournal(journalFile));
+            for (int i = 0; i < size; i++) {
+                run.addBuild(new JobInvocation(run, project));
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void deleteJournal() {
+            run.getJournal().close();
+            journalFile.delete();
+        }
+
+        @Benchmark
+        public FlowRun addBuild() throws Exception {
+            run.addBuild(new JobInvocation(run, project));
+            return run;
+        }
+    }
+
+    /**
+     * @return a run building the graph on the current thread
+     */
+    static FlowRun newFlowRun(FlowGraph graph, FlowJournal journal) throws Exception {
+        FlowRun run = (FlowRun) OBJENESIS.newInstance(FlowRun.class);
+        JobInvocation.Start start = (JobInvocation.Start) OBJENESIS.newInstance(JobInvocation.Start.class);
+        SimpleDirectedGraph<JobInvocation, FlowRun.JobEdge> jobsGraph =
+                new SimpleDirectedGraph<JobInvocation, FlowRun.JobEdge>(FlowRun.JobEdge.class);
+        jobsGraph.addVertex(start);
+        ThreadLocal<FlowState> state = new ThreadLocal<FlowState>();
+        state.set(new FlowState(new FlowState(Result.SUCCESS, start), graph));
+
+        set(run, "startJob", start);
+        set(run, "graph", jobsGraph);
+        set(run, "state", state);
+        set(run, "buildIndex", new AtomicInteger(1));
+        set(run, "journal", journal);
+        return run;
+    }
+
+    private static void set(FlowRun run, String name, Object value) throws Exception {
+        Field field = FlowRun.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(run, value);
+    }
+}
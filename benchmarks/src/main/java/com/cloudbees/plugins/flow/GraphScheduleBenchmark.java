@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computation of the ready jobs by {@link FlowGraphExecutor}: the schedule of the jobs to build, then every job
+ * handed out and completed in turn until the whole graph is built.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphScheduleBenchmark {
+
+    @Param({"CHAIN", "FAN_OUT", "DIAMONDS", "RANDOM"})
+    public SyntheticGraphs shape;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int size;
+
+    private FlowGraph graph;
+
+    private Set<String> jobs;
+
+    private Map<String, Long> durations;
+
+    @Setup
+    public void createGraph() {
+        graph = shape.create(size).freeze();
+        jobs = graph.getVertices();
+        durations = new HashMap<String, Long>();
+        for (int i = 0; i < size; i++) {
+            durations.put(SyntheticGraphs.job(i), 1000L * (1 + i % 7));
+        }
+    }
+
+    @Benchmark
+    public GraphSchedule createSchedule() {
+        return new GraphSchedule(graph, jobs, durations);
+    }
+
+    /**
+     * Every ready job started at once, the running ones completing in the order they were started
+     */
+    @Benchmark
+    public int buildAll() {
+        GraphSchedule schedule = new GraphSchedule(graph, jobs, durations);
+        Queue<String> running = new ArrayDeque<String>();
+        int built = 0;
+        while (true) {
+            String job;
+            while ((job = schedule.poll()) != null) {
+                running.add(job);
+            }
+            job = running.poll();
+            if (job == null) {
+                return built;
+            }
+            schedule.complete(job);
+            built++;
+        }
+    }
+}
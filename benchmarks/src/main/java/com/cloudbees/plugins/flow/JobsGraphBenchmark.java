@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.util.XStream2;
+import org.jgrapht.DirectedGraph;
+import org.jgrapht.graph.SimpleDirectedGraph;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading and saving the graph of the builds of a finished run, as it used to be stored in <code>build.xml</code>
+ * and in a {@link JobsGraphFile}. The size of both forms is printed when the graph is set up, run with
+ * <code>-prof gc</code> to compare the memory allocated per load.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JobsGraphBenchmark {
+
+    private static final XStream2 XSTREAM = new XStream2();
+
+    @Param({"CHAIN", "FAN_OUT", "DIAMONDS", "RANDOM"})
+    public SyntheticGraphs shape;
+
+    @Param({"100", "1500", "10000"})
+    public int size;
+
+    private DirectedGraph<JobInvocation, FlowRun.JobEdge> graph;
+
+    private String xml;
+
+    private byte[] binary;
+
+    @Setup
+    public void createGraph() throws Exception {
+        graph = createJobsGraph(shape.children(size));
+        xml = XSTREAM.toXML(graph);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JobsGraphFile.write(graph, null, out);
+        binary = out.toByteArray();
+        System.out.println(size + " builds: " + xml.getBytes("UTF-8").length + " bytes in build.xml, "
+                + binary.length + " bytes in " + JobsGraphFile.FILE_NAME);
+    }
+
+    @Benchmark
+    public Object loadXml() {
+        return XSTREAM.fromXML(xml);
+    }
+
+    @Benchmark
+    public Object loadFile() throws Exception {
+        return JobsGraphFile.read(new ByteArrayInputStream(binary), null);
+    }
+
+    @Benchmark
+    public String saveXml() {
+        return XSTREAM.toXML(graph);
+    }
+
+    @Benchmark
+    public byte[] saveFile() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(binary.length);
+        JobsGraphFile.write(graph, null, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the graph of a finished run which built every job of the graph, with the start of the flow as parent
+     *         of the jobs without parents
+     */
+    static DirectedGraph<JobInvocation, FlowRun.JobEdge> createJobsGraph(Map<String, List<String>> children) {
+        SimpleDirectedGraph<JobInvocation, FlowRun.JobEdge> graph =
+                new SimpleDirectedGraph<JobInvocation, FlowRun.JobEdge>(FlowRun.JobEdge.class);
+        JobInvocation start = new JobInvocation("flow", 1, 42, true, true, true, false);
+        graph.addVertex(start);
+        Map<String, JobInvocation> jobs = new HashMap<String, JobInvocation>();
+        for (String job : children.keySet()) {
+            int uid = jobs.size() + 2;
+            JobInvocation invocation = new JobInvocation(job, uid, uid * 3, true, true, true, false);
+            graph.addVertex(invocation);
+            jobs.put(job, invocation);
+        }
+        for (Map.Entry<String, List<String>> entry : children.entrySet()) {
+            JobInvocation source = jobs.get(entry.getKey());
+            for (String child : entry.getValue()) {
+                JobInvocation target = jobs.get(child);
+                graph.addEdge(source, target, new FlowRun.JobEdge(source, target));
+            }
+        }
+        for (JobInvocation job : jobs.values()) {
+            if (graph.inDegreeOf(job) == 0) {
+                graph.addEdge(start, job, new FlowRun.JobEdge(start, job));
+            }
+        }
+        return graph;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates graphs of jobs <code>job0</code> to <code>job&lt;size - 1&gt;</code>, every edge going from a lower to a
+ * higher job number so that the job numbers are a topological order.
+ */
+public enum SyntheticGraphs {
+
+    /**
+     * Every job depends on the previous one
+     */
+    CHAIN {
+        @Override
+        void addEdges(Map<String, List<String>> children, int size, Random random) {
+            for (int i = 1; i < size; i++) {
+                children.get(job(i - 1)).add(job(i));
+            }
+        }
+    },
+
+    /**
+     * Every job depends on the first one only
+     */
+    FAN_OUT {
+        @Override
+        void addEdges(Map<String, List<String>> children, int size, Random random) {
+            for (int i = 1; i < size; i++) {
+                children.get(job(0)).add(job(i));
+            }
+        }
+    },
+
+    /**
+     * A chain of diamonds, the bottom job of each diamond being the top job of the next one
+     */
+    DIAMONDS {
+        @Override
+        void addEdges(Map<String, List<String>> children, int size, Random random) {
+            for (int top = 0; top + 1 < size; top += 3) {
+                int bottom = Math.min(top + 3, size - 1);
+                for (int side = top + 1; side < bottom; side++) {
+                    children.get(job(top)).add(job(side));
+                    children.get(job(side)).add(job(bottom));
+                }
+                if (bottom == top + 1) {
+                    children.get(job(top)).add(job(bottom));
+                }
+            }
+        }
+    },
+
+    /**
+     * Every job depends on one to three of the fifty jobs before it, picked with a fixed seed so that the graph is
+     * the same from one run to the other
+     */
+    RANDOM {
+        @Override
+        void addEdges(Map<String, List<String>> children, int size, Random random) {
+            for (int i = 1; i < size; i++) {
+                int parents = 1 + random.nextInt(3);
+                for (int p = 0; p < parents; p++) {
+                    String parent = job(Math.max(0, i - 50) + random.nextInt(Math.min(i, 50)));
+                    if (!children.get(parent).contains(job(i))) {
+                        children.get(parent).add(job(i));
+                    }
+                }
+            }
+        }
+    };
+
+    private static final long SEED = 42;
+
+    abstract void addEdges(Map<String, List<String>> children, int size, Random random);
+
+    /**
+     * @return the children of every job, in job number order
+     */
+    public Map<String, List<String>> children(int size) {
+        Map<String, List<String>> children = new LinkedHashMap<String, List<String>>();
+        for (int i = 0; i < size; i++) {
+            children.put(job(i), new ArrayList<String>());
+        }
+        addEdges(children, size, new Random(SEED));
+        return children;
+    }
+
+    public FlowGraph create(int size) {
+        FlowGraph graph = new FlowGraph();
+        for (Map.Entry<String, List<String>> entry : children(size).entrySet()) {
+            graph.addVertex(entry.getKey());
+            for (String child : entry.getValue()) {
+                graph.addEdge(entry.getKey(), child);
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * @return the graph as a property file, every job but the first one mapped to the jobs it depends on
+     */
+    public String toProperties(int size) {
+        Map<String, StringBuilder> parents = new LinkedHashMap<String, StringBuilder>();
+        for (Map.Entry<String, List<String>> entry : children(size).entrySet()) {
+            for (String child : entry.getValue()) {
+                StringBuilder line = parents.get(child);
+                if (line == null) {
+                    parents.put(child, new StringBuilder(child).append('=').append(entry.getKey()));
+                } else {
+                    line.append(',').append(entry.getKey());
+                }
+            }
+        }
+        StringBuilder properties = new StringBuilder();
+        for (StringBuilder line : parents.values()) {
+            properties.append(line).append('\n');
+        }
+        return properties.toString();
+    }
+
+    /**
+     * @return a few jobs spread over the graph, to build
+     */
+    public static List<String> mustBuildJobs(int size) {
+        List<String> jobs = new ArrayList<String>();
+        for (int i = 1; i <= 4; i++) {
+            String job = job(size * i / 5);
+            if (!jobs.contains(job)) {
+                jobs.add(job);
+            }
+        }
+        return jobs;
+    }
+
+    public static String job(int i) {
+        return "job" + i;
+    }
+}
@@ -28,6 +28,7 @@ package com.cloudbees.plugins.flow
 import hudson.AbortException
 import hudson.console.ModelHyperlinkNote
 import hudson.model.*
+import hudson.scm.NullSCM
 import hudson.security.ACL
 import hudson.slaves.EnvironmentVariablesNodeProperty
 import hudson.slaves.NodeProperty
@@ -35,8 +36,6 @@ import hudson.util.spring.ClosureScript
 import jenkins.model.Jenkins
 
 import org.acegisecurity.context.SecurityContextHolder
-import org.codehaus.groovy.control.CompilerConfiguration
-import org.codehaus.groovy.control.customizers.ImportCustomizer
 
 import java.util.concurrent.*
 import java.util.logging.Logger
@@ -77,19 +76,19 @@ public class FlowDSL {
         // TODO : add restrictions for System.exit, etc ...
         FlowDelegate flow = new FlowDelegate(flowRun, listener, upstream, envMap)
 
-        // parse the script in such a way that it delegates to the flow object as default
-        def cc = new CompilerConfiguration();
-        cc.scriptBaseClass = ClosureScript.class.name;
-        def ic = new ImportCustomizer()
-        ic.addStaticStars(Result.class.name)
-        ic.addStarImports("org.jgrapht")
-        cc.addCompilationCustomizers(ic)
-
-        ClosureScript dslScript = (ClosureScript)new GroovyShell(Jenkins.instance.pluginManager.uberClassLoader,new Binding(),cc).parse(dsl)
+        ClosureScript dslScript = FlowScriptCache.get().newScript(dsl)
         dslScript.setDelegate(flow);
 
+        flowRun.journal(FlowJournal.Event.FLOW_STARTED, flowRun.parent.fullName, null)
+        flowRun.timings.dslStarted()
+        FlowMetrics.get().runStarted(flowRun)
         try {
-            dslScript.run()
+            try {
+                dslScript.run()
+            } finally {
+                flowRun.timings.dslCompleted()
+                flow.flush()
+            }
         } catch(JobExecutionFailureException e) {
             listener.println("flow failed to complete : " + flowRun.state.result)
         }
@@ -104,6 +103,10 @@ public class FlowDSL {
             listener.error("Failed to run DSL Script")
             e.printStackTrace(listener.getLogger())
             throw e;
+        } finally {
+            FlowMetrics.get().runCompleted(flowRun)
+            flowRun.journal(FlowJournal.Event.FLOW_COMPLETED, flowRun.parent.fullName, flowRun.state.result.toString())
+            flowRun.journal.close()
         }
     }
 
@@ -112,26 +115,19 @@ public class FlowDSL {
         Executor.currentExecutor().recordCauseOfInterruption(flowRun, listener);
 
         def graph = flowRun.jobsGraph
-        graph.vertexSet().each() { ji ->
-            if (flowRun.project != ji.project) {
-                // Our project is the fist JobInvocation and we would just be aborting ourselves again.
-                println("aborting ${ji.name}")
-                ji.abort()
-            }
+        def jobs
+        synchronized (graph) {
+            // Our project is the fist JobInvocation and we would just be aborting ourselves again.
+            jobs = graph.vertexSet().findAll { ji -> flowRun.project != ji.project }
         }
-        // wait until all the downstream builds have aborted.
-        // we do this in a separate block as aborting a job may take some time to complete.
-        graph.vertexSet().each() { ji ->
-            if (ji.started && ! ji.completed) {
-                if (flowRun.project != ji.project) {
-                    // Our project is the fist JobInvocation and we can't schedule ourself to run
-                    // so we would have started but have no build.
-                    // so don't wait for our self which will cause an exception.
-                    println("Waiting for ${ji.name} to finish...")
-
-                    ji.waitForCompletion()
-                }
-            }
+        def aborted = JobInvocation.abortAll(jobs)
+        if (!aborted.isEmpty()) {
+            listener.getLogger().println("Aborted " + aborted*.name.join(", "))
+        }
+        // wait until all the downstream builds have aborted, aborting a job may take some time to complete.
+        def running = JobInvocation.awaitCompletion(jobs, JobInvocation.ABORT_TIMEOUT, TimeUnit.SECONDS)
+        if (!running.isEmpty()) {
+            listener.getLogger().println("Still running after ${JobInvocation.ABORT_TIMEOUT}s: " + running*.name.join(", "))
         }
         listener.getLogger().println(hudson.model.Messages.Run_BuildAborted());
     }
@@ -146,13 +142,14 @@ public class FlowDelegate {
     def List<Cause> causes
     def FlowRun flowRun
     BuildListener listener
-    int indent = 0
+    FlowConsole console
     private AbstractBuild upstream;
     private Map env;
 
     public FlowDelegate(FlowRun flowRun, BuildListener listener, upstream, env) {
         this.flowRun = flowRun
         this.listener = listener
+        this.console = new FlowConsole(listener.logger)
         causes = flowRun.causes
         this.upstream = upstream
         this.env = env
@@ -162,18 +159,41 @@ public class FlowDelegate {
         return listener.logger
     }
 
-    // TODO Assuring proper indent should be done in the listener?
-    def synchronized println_with_indent(Closure f) {
-        for (int i = 0; i < indent; ++i) {
-            out.print("    ")
+    /**
+     * @return the indentation of the lines printed by the current branch
+     */
+    int getIndent() {
+        flowRun.state?.indent ?: 0
+    }
+
+    void setIndent(int indent) {
+        flowRun.state.indent = indent
+    }
+
+    /**
+     * @deprecated use {@link #println(String)}, which does not hold up the other branches
+     */
+    @Deprecated
+    def println_with_indent(Closure f) {
+        synchronized (console) {
+            console.flush()
+            for (int i = 0; i < indent; ++i) {
+                out.print("    ")
+            }
+            f()
+            out.println()
         }
-        f()
-        out.println()
     }
 
     def println(String s) {
-        LOGGER.info(s)
-        println_with_indent { out.print(s) }
+        console.println(flowRun.state?.branch ?: "", indent, s)
+    }
+
+    /**
+     * Writes out the lines still queued by the branches
+     */
+    def flush() {
+        console.flush()
     }
 
     def fail() {
@@ -217,43 +237,104 @@ public class FlowDelegate {
     }
 
     def build(Map args, String jobName) {
+        JobInvocation job = scheduleBuild(args, jobName)
+        Run r = waiting { job.waitForStart() }
+
+        if (null == r) {
+            println("Failed to start ${jobName}.")
+            fail();
+        }
+        printStarted(job)
+
+        waiting {
+            flowRun.waitForCompletion(job);
+            // [JENKINS-22960] wait for build to be finalized.
+            flowRun.waitForFinalization(job);
+        }
+        printCompleted(job)
+        return job;
+    }
+
+    /**
+     * Runs the closure, which waits for builds, counting the time as waiting rather than running the DSL
+     */
+    private def waiting(Closure closure) {
+        def timings = flowRun.timings
+        timings.waitStarted()
+        try {
+            return closure()
+        } finally {
+            timings.waitCompleted()
+        }
+    }
+
+    /**
+     * Schedules the job without waiting for it, the returned invocation tells when the build starts and completes.
+     */
+    JobInvocation scheduleBuild(Map args, String jobName) {
         statusCheck()
         // ask for job with name ${name}
         JobInvocation job = new JobInvocation(flowRun, jobName)
         Job p = job.getProject()
+        def actions = getActions(p, args)
+
+        def fingerprint = null
+        if (flowRun.state.buildAvoidance) {
+            fingerprint = BuildAvoidanceIndex.fingerprint(p, actions,
+                    flowRun.getUpstreamOf(job).findAll { it != flowRun.startJob }.collect { it.build })
+        }
+        if (fingerprint != null) {
+            def reusable = findReusableBuild(p, fingerprint)
+            if (reusable != null) {
+                println("Reuse " + ModelHyperlinkNote.encodeTo('/' + reusable.getUrl(), reusable.getFullDisplayName())
+                        + " as the inputs of " + ModelHyperlinkNote.encodeTo(p) + " have not changed")
+                flowRun.addBuild(job)
+                return job.reuse(reusable)
+            }
+            job.fingerprint = fingerprint
+        }
+
         println("Schedule job " + ModelHyperlinkNote.encodeTo(p))
+        flowRun.schedule(job, actions);
+        return job
+    }
 
-        flowRun.schedule(job, getActions(p,args));
-        Run r = job.waitForStart()
+    /**
+     * Looks for a successful build with the same inputs. A project with its own SCM must also have no change since
+     * its last build, which has to be the one reused.
+     */
+    private AbstractBuild findReusableBuild(AbstractProject p, String fingerprint) {
+        def reusable = flowRun.buildFlow.buildAvoidanceIndex.lookup(p, fingerprint)
+        if (reusable == null || p.scm instanceof NullSCM) {
+            return reusable
+        }
+        if (reusable != p.lastBuild || p.poll(TaskListener.NULL).hasChanges()) {
+            return null
+        }
+        return reusable
+    }
 
+    /* package */ void printStarted(JobInvocation job) {
+        if (job.reused) {
+            return
+        }
+        Run r = job.build
         def buildDisplayName = r.getFullDisplayName()
         def consoleLog = ModelHyperlinkNote.encodeTo('/'+ r.getUrl() + "console", "Show console log")
         println("Build " + ModelHyperlinkNote.encodeTo('/'+ r.getUrl(), buildDisplayName) + " started. " + consoleLog)
+    }
 
-        if (null == r) {
-            println("Failed to start ${jobName}.")
-            fail();
-        }
-
-        flowRun.waitForCompletion(job);
-        // [JENKINS-22960] wait for build to be finalized.
-        flowRun.waitForFinalization(job);
+    /* package */ void printCompleted(JobInvocation job) {
+        Run r = job.build
+        def buildDisplayName = r.getFullDisplayName()
+        def consoleLog = ModelHyperlinkNote.encodeTo('/'+ r.getUrl() + "console", "Show console log")
         println("Build " + ModelHyperlinkNote.encodeTo('/'+ r.getUrl(), buildDisplayName) + " completed${r.result.isWorseThan(SUCCESS) ? " : " + r.result : ""}. " + consoleLog)
-        return job;
     }
 
     def getActions(Job job, Map args) {
 
-        List<Action> originalActions = job.getActions();
+        JobParameters jobParams = flowRun.getJobParameters(job)
 
-        List<ParameterDefinition> jobParams = null;
-        for(Action action:originalActions) {
-            if (action instanceof ParametersDefinitionProperty) {
-                ParametersDefinitionProperty parametersAction = (ParametersDefinitionProperty) action;
-                jobParams = parametersAction.getParameterDefinitions();
-            }
-        }
-        
         List<Action> actions = new ArrayList<Action>();
         List<ParameterValue> params = [];
         Set<String> addedParams = new HashSet<String>();for (Map.Entry param: args) {
@@ -263,19 +344,14 @@ public class FlowDelegate {
                 paramValue = getClosureValue(paramValue)
             }
             //Use pre-defined parameter type if it exists and it's simple
-            if (jobParams != null) {
-                for (ParameterDefinition originalParam: jobParams) {
-                    if (originalParam instanceof SimpleParameterDefinition) {
-                        if (paramName.equals(originalParam.name)) {
-                            try {
-                                params.add(originalParam.createValue(paramValue));
-                                addedParams.add(paramName);
-                            } catch (Exception e) {
-                                //This usually means that createValue(String) is
-                                //unimplemented and we can't use the definition.
-                            }
-                        }
-                    }
+            SimpleParameterDefinition originalParam = jobParams.getSimpleDefinition(paramName)
+            if (originalParam != null) {
+                try {
+                    params.add(originalParam.createValue(paramValue));
+                    addedParams.add(paramName);
+                } catch (Exception e) {
+                    //This usually means that createValue(String) is
+                    //unimplemented and we can't use the definition.
                 }
             }
             if (addedParams.contains(paramName)) {
@@ -293,22 +369,7 @@ public class FlowDelegate {
         }
 
         /* Add default values from defined params in the target job */
-        
-        if (jobParams != null) {
-
-            for (ParameterDefinition originalParam: jobParams) {
-
-                String paramName = originalParam.getName()
-                ParameterValue originalParamValue = originalParam.getDefaultParameterValue();
-
-                if (addedParams.contains(paramName)){
-                    //Already filled parameter
-                    continue;
-                }
-
-                params.add(originalParamValue)
-            }
-        }
+        params.addAll(jobParams.getDefaultValues(addedParams))
 
         //Additionnal parameters not available in the target job
         actions.add(new ParametersAction(params));
@@ -327,6 +388,7 @@ public class FlowDelegate {
             rescueClosure.resolveStrategy = Closure.DELEGATE_FIRST
 
             try {
+                flowRun.journal(FlowJournal.Event.GUARD, (String) null, null)
                 println("guard {")
                 ++indent
                 guardedClosure()
@@ -335,6 +397,7 @@ public class FlowDelegate {
                 // Force result to SUCCESS so that rescue closure will execute
                 Result r = flowRun.state.result
                 flowRun.state.result = SUCCESS
+                flowRun.journal(FlowJournal.Event.RESCUE, (String) null, r.toString())
                 println("} rescue {")
                 ++indent
                 try {
@@ -349,6 +412,24 @@ public class FlowDelegate {
         } ]
     }
 
+    /**
+     * Jobs built within the closure reuse the last successful build with the same inputs, if any
+     */
+    def buildAvoidance(closure) {
+        statusCheck()
+        boolean enabled = flowRun.state.buildAvoidance
+        try {
+            println("buildAvoidance {")
+            ++indent
+            flowRun.state.buildAvoidance = true
+            closure()
+        } finally {
+            flowRun.state.buildAvoidance = enabled
+            --indent
+            println("}")
+        }
+    }
+
     def ignore(Result result, closure) {
         statusCheck()
         Result r = flowRun.state.result
@@ -389,6 +470,7 @@ public class FlowDelegate {
             // Restore the pre-retry result state to ignore failures
             flowRun.state.result = origin
             i++;
+            flowRun.journal(FlowJournal.Event.RETRY, (String) null, "attempt $i")
             println("retry (attempt $i) {")
             ++indent
 
@@ -427,14 +509,8 @@ public class FlowDelegate {
 
     def List<FlowState> parallel(Closure ... closures) {
         statusCheck()
-        // TODO use NamingThreadFactory since Jenkins 1.541
-        ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
-            public Thread newThread(Runnable r) {
-                def thread = Executors.defaultThreadFactory().newThread(r);
-                thread.name = "BuildFlow parallel statement thread for " + flowRun.parent.fullName;
-                return thread;
-            }
-        });
+        FlowScheduler scheduler = BuildFlowPlugin.getScheduler()
+        def threadName = "BuildFlow parallel statement thread for " + flowRun.parent.fullName
         Set<Run> upstream = flowRun.state.lastCompleted
         Set<Run> lastCompleted = Collections.synchronizedSet(new HashSet<Run>())
         def results = new CopyOnWriteArrayList<FlowState>()
@@ -446,41 +522,50 @@ public class FlowDelegate {
         def current_state = flowRun.state
         try {
 
-            closures.each {closure ->
+            closures.eachWithIndex {closure, index ->
+                def branch = (current_state.branch ? current_state.branch + "." : "") + (index + 1)
                 Closure<FlowState> track_closure = {
                     def ctx = ACL.impersonate(ACL.SYSTEM)
+                    // the branch may be run by the thread waiting for it
+                    def previous_state = flowRun.state
                     try {
                         flowRun.state = new FlowState(SUCCESS, upstream)
+                        flowRun.state.buildAvoidance = current_state.buildAvoidance
+                        flowRun.state.branch = branch
+                        flowRun.state.indent = current_state.indent
                         closure()
                         lastCompleted.addAll(flowRun.state.lastCompleted)
                         return flowRun.state
                     } finally {
+                        flowRun.state = previous_state
                         SecurityContextHolder.setContext(ctx)
                     }
                 }
 
-                tasks.add(pool.submit(track_closure as Callable))
+                tasks.add(scheduler.submit(flowRun, threadName, track_closure as Callable))
             }
 
-            tasks.each {task ->
-                try {
-                    def final_state = task.get()
-                    Result result = final_state.result
-                    results.add(final_state)
-                    current_state.result = current_state.result.combine(result)
-                } catch(ExecutionException e)
-                {
-                    // TODO perhaps rethrow?
-                    current_state.result = FAILURE
-                    listener.error("Failed to run DSL Script")
-                    e.printStackTrace(listener.getLogger())
+            waiting {
+                tasks.each {task ->
+                    try {
+                        def final_state = task.get()
+                        Result result = final_state.result
+                        results.add(final_state)
+                        current_state.result = current_state.result.combine(result)
+                    } catch(ExecutionException e)
+                    {
+                        // TODO perhaps rethrow?
+                        current_state.result = FAILURE
+                        listener.error("Failed to run DSL Script")
+                        e.printStackTrace(listener.getLogger())
+                    }
                 }
             }
 
-            pool.shutdown()
-            pool.awaitTermination(1, TimeUnit.DAYS)
             current_state.lastCompleted = lastCompleted
         } finally {
+            // branches which did not start yet, i.e. when the flow is aborted, must not start anymore
+            tasks.each { task -> task.cancel(false) }
             flowRun.state = current_state
             --indent
             println("}")
@@ -501,7 +586,7 @@ public class FlowDelegate {
     }
 
     def build(FlowGraph graph) {
-        new FlowGraphExecutor(this, graph).execute()
+        waiting { new FlowGraphExecutor(this, graph).execute() }
     }
 
     def String getParam(String name) {
@@ -515,19 +600,8 @@ public class FlowDelegate {
      * @return the properties
      */
     def Map<String, String> loadProperties(String propertiesURL) {
-        new URL(propertiesURL).withInputStream {stream ->
-            def properties = new Properties()
-            properties.load(stream)
-
-            def map = [:]
-
-            properties.stringPropertyNames().each {key ->
-                def String value = properties.getProperty(key)
-                map.put(key, value)
-            }
-
-            map
-        }
+        // the cached properties are shared by all the flows
+        new LinkedHashMap<String, String>(DefinitionCache.get().getProperties(propertiesURL))
     }
 
     /**
@@ -0,0 +1,139 @@
+package com.cloudbees.plugins.flow
+import com.cloudbees.plugins.extras.ColoredNote
+import hudson.console.HyperlinkNote
+import hudson.model.AbstractProject
+import hudson.model.ItemGroup
+import hudson.model.Result
+import hudson.security.ACL
+import jenkins.model.Jenkins
+import org.acegisecurity.context.SecurityContextHolder
+
+import java.util.concurrent.Executor
+
+/**
+ * Builds the jobs of a graph as builds of the flow
+ */
+class FlowDelegateBackend implements GraphBuildBackend {
+    private final FlowDelegate flowDSL
+
+    private final FlowGraph graph
+
+    /**
+     * State of the flow when the graph build was started, every build of the graph starts from it
+     */
+    private final FlowState flowState
+
+    /**
+     * Runs the reactions to builds starting and completing on the plugin threads, outside of the flow's lane: the
+     * branches waiting for the graph build may hold all of it. No thread is held while a build is queued or running.
+     */
+    private final Executor callbackExecutor
+
+    FlowDelegateBackend(FlowDelegate flowDSL, FlowGraph graph) {
+        this.flowDSL = flowDSL
+        this.graph = graph
+        this.flowState = flowDSL.flowRun.state
+        def flowRun = flowDSL.flowRun
+        def threadName = "BuildFlow graph thread for " + flowRun.parent.fullName
+        this.callbackExecutor = { Runnable r ->
+            BuildFlowPlugin.getScheduler().execute(threadName, r)
+        } as Executor
+    }
+
+    GraphBuild schedule(String job, Map<String, ?> params) {
+        def result = null
+        runInContext { result = flowDSL.scheduleBuild(params, job) }
+        result
+    }
+
+    Executor getCallbackExecutor() {
+        callbackExecutor
+    }
+
+    /**
+     * Runs the task as the system with the state of the graph build, restoring the thread afterwards as the
+     * plugin threads are shared between flows
+     */
+    void runInContext(Runnable task) {
+        def ctx = ACL.impersonate(ACL.SYSTEM)
+        def previousState = flowDSL.flowRun.state
+        try {
+            flowDSL.flowRun.state = new FlowState(flowState, graph)
+            task.run()
+        } finally {
+            flowDSL.flowRun.state = previousState
+            SecurityContextHolder.setContext(ctx)
+        }
+    }
+
+    long currentTimeMillis() {
+        System.currentTimeMillis()
+    }
+
+    /**
+     * Expected duration of the job, from the builds this flow has triggered or else from the weight given by the graph
+     * or the duration of its last builds
+     */
+    long estimateDuration(String job) {
+        long duration = flowDSL.flowRun.buildFlow.durationStore.estimateRunMillis(job)
+        if (duration < 0 && graph.getWeight(job) != null) {
+            duration = graph.getWeight(job)
+        }
+        if (duration < 0) {
+            def context = flowDSL.flowRun.project.parent
+            def project = Jenkins.instance.getItem(job, (ItemGroup) context, AbstractProject.class)
+            duration = project != null ? project.estimatedDuration : -1
+        }
+        duration
+    }
+
+    Collection<GraphBuild> abort(Collection<GraphBuild> builds) {
+        JobInvocation.abortAll((Collection<JobInvocation>) builds)
+    }
+
+    void started(GraphBuild build) {
+        flowDSL.printStarted((JobInvocation) build)
+    }
+
+    void finalized(GraphBuild build) {
+        flowDSL.printCompleted((JobInvocation) build)
+    }
+
+    String describe(GraphBuild build) {
+        def run = ((JobInvocation) build).build
+        HyperlinkNote.encodeTo('/' + run.getUrl(), run.project.getName())
+    }
+
+    void log(GraphBuildBackend.Note note, String message) {
+        switch (note) {
+            case GraphBuildBackend.Note.ERROR:
+                flowDSL.println(ColoredNote.redNote(message))
+                break
+            case GraphBuildBackend.Note.NOTICE:
+                flowDSL.println(ColoredNote.blueNote(message))
+                break
+            case GraphBuildBackend.Note.SUCCESS:
+                flowDSL.println(ColoredNote.greenNote(message))
+                break
+            default:
+                flowDSL.println(message)
+        }
+    }
+
+    void journal(FlowJournal.Event event, String job, String detail) {
+        flowDSL.flowRun.journal(event, job, detail)
+    }
+
+    void graphBuildStarted(FlowGraphExecutor executor) {
+        flowDSL.flowRun.graphBuildStarted(executor)
+    }
+
+    void graphBuildCompleted(FlowGraphExecutor executor) {
+        flowDSL.flowRun.graphBuildCompleted(executor)
+    }
+
+    void failed() {
+        flowDSL.flowRun.state.result = Result.FAILURE
+        flowDSL.fail()
+    }
+}
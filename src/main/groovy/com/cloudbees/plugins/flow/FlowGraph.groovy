@@ -2,12 +2,51 @@ package com.cloudbees.plugins.flow
 
 import com.google.common.collect.Lists
 import org.jgrapht.DirectedGraph
+import org.jgrapht.Graphs
 import org.jgrapht.alg.DijkstraShortestPath
 import org.jgrapht.graph.SimpleDirectedGraph
 
 class FlowGraph {
+    /**
+     * <code>null</code> until first needed if the graph has been read from its topology, see {@link #underlying()}
+     */
     private DirectedGraph<String, GraphEdge> underlying
 
+    /**
+     * Vertices and edges of the graph as read by {@link #createFromTopology(String[], int[][])}, shared by the copies
+     * until either is changed
+     */
+    private Topology topology
+
+    /**
+     * Whether the underlying graph is shared with other copies, see {@link #copy()}
+     */
+    private boolean shared
+
+    /**
+     * Whether the vertex metadata maps are shared with other copies, each one being copied before its first change
+     */
+    private boolean weightsShared
+    private boolean labelsShared
+    private boolean vertexParamsShared
+
+    /**
+     * Expected duration of the jobs in milliseconds, used until the flow has builds of them
+     */
+    private Map<String, Long> weights = new HashMap<String, Long>()
+
+    private Map<String, String> labels = new HashMap<String, String>()
+
+    /**
+     * Parameters of single jobs, on top of the parameters of the graph
+     */
+    private Map<String, Map<String, String>> vertexParams = new HashMap<String, Map<String, String>>()
+
+    /**
+     * Transitive closure of the underlying graph, dropped whenever a vertex or an edge is added, shared by the copies
+     */
+    private volatile GraphReachability reachability
+
     /**
      * Jobs that you want to built for sure
      */
@@ -37,6 +76,21 @@ class FlowGraph {
      */
     private boolean buildDependOnJobs = true
 
+    /**
+     * What to do with the queued and running builds once a build has failed
+     */
+    private FailurePolicy failurePolicy = FailurePolicy.ABORT
+
+    /**
+     * Maximum number of builds queued or running at once, 0 for no limit
+     */
+    private int maxParallelBuilds = 0
+
+    /**
+     * Instructs the build process to reuse the last successful build of a job built with the same inputs
+     */
+    private boolean buildAvoidance = false
+
     /**
      * Creates a graph from a java property file located at the given URL.
      * A key is a source vertex and value is comma separated list of target vertices
@@ -62,10 +116,20 @@ class FlowGraph {
         def properties = new Properties()
         properties.load(graphDefinition)
 
+        def map = [:]
+        properties.stringPropertyNames().each {key ->
+            map.put(key, properties.getProperty(key))
+        }
+        createFromProperties(map, inverse)
+    }
+
+    /**
+     * Creates a graph from the properties of a graph definition, see {@link #createFromPropertyFile(InputStream, boolean)}
+     */
+    static def FlowGraph createFromProperties(Map<String, String> properties, boolean inverse) {
         def graph = new FlowGraph()
 
-        properties.stringPropertyNames().each {key ->
-            def String value = properties.getProperty(key)
+        properties.each {key, value ->
             value.split(",").each {valueItem ->
                 if (inverse) {
                     graph.addEdge(key, valueItem)
@@ -78,33 +142,122 @@ class FlowGraph {
         graph
     }
 
+    /**
+     * Creates a graph from vertices numbered in topological order, as stored by {@link GraphFormat}. The
+     * reachability index is computed from the numbering, without sorting nor walking the graph.
+     *
+     * @param children ids of the children of every vertex, always greater than the id of the vertex
+     */
+    static def FlowGraph createFromTopology(String[] vertices, int[][] children) {
+        def index = GraphReachability.ofTopological(vertices, children)
+        def graph = new FlowGraph()
+        graph.underlying = null
+        graph.topology = new Topology(vertices, children, index)
+        graph.reachability = index
+        graph
+    }
+
+    /**
+     * Gets the graph defined at the given URL from the {@link DefinitionCache}, which only downloads and parses it
+     * again once changed.
+     */
     static def FlowGraph createFromPropertyFileURL(URL graphDefinition) {
-        graphDefinition.withInputStream {stream ->
-            createFromPropertyFile(stream, false)
-        }
+        createFromPropertyFileURL(graphDefinition.toExternalForm())
     }
 
     static def FlowGraph createFromPropertyFileURL(String graphDefinitionURL) {
-        new URL(graphDefinitionURL).withInputStream {stream ->
-            createFromPropertyFile(stream, false)
-        }
+        DefinitionCache.get().getGraph(graphDefinitionURL)
     }
 
     FlowGraph() {
         underlying = new SimpleDirectedGraph<String, GraphEdge>(GraphEdge.class);
     }
 
+    /**
+     * Copies the graph and its build flags. Both graphs share their vertices and edges until either is changed, so
+     * copying a graph, even a large one, is cheap.
+     */
+    def FlowGraph copy() {
+        def copy = new FlowGraph(underlying)
+        copy.topology = topology
+        shared = true
+        copy.reachability = reachability
+        copy.weights = weights
+        copy.labels = labels
+        copy.vertexParams = vertexParams
+        weightsShared = true
+        labelsShared = true
+        vertexParamsShared = true
+        copy.weightsShared = true
+        copy.labelsShared = true
+        copy.vertexParamsShared = true
+        copy.mustBuildJobs.addAll(mustBuildJobs)
+        copy.startJobs.addAll(startJobs)
+        copy.params = new HashMap(params)
+        copy.successListeners.addAll(successListeners)
+        copy.buildEverything = buildEverything
+        copy.buildDependantJobs = buildDependantJobs
+        copy.buildDependOnJobs = buildDependOnJobs
+        copy.failurePolicy = failurePolicy
+        copy.maxParallelBuilds = maxParallelBuilds
+        copy.buildAvoidance = buildAvoidance
+        return copy
+    }
+
+    private FlowGraph(DirectedGraph<String, GraphEdge> underlying) {
+        this.underlying = underlying
+        this.shared = true
+    }
+
+    /**
+     * @return the graph, built from the topology it has been read from the first time it is needed
+     */
+    private DirectedGraph<String, GraphEdge> underlying() {
+        def graph = underlying
+        return graph != null ? graph : topology.graph()
+    }
+
+    /**
+     * Drops the index and takes a private copy of the underlying graph if it is shared, before it is changed
+     */
+    private void beforeChange() {
+        reachability = null
+        unshare()
+        if (topology != null) {
+            // no other copy uses it anymore
+            underlying = topology.newGraph()
+            topology = null
+        }
+    }
+
+    private void unshare() {
+        if (shared) {
+            if (topology != null) {
+                underlying = topology.newGraph()
+                topology = null
+            } else {
+                def copy = new SimpleDirectedGraph<String, GraphEdge>(GraphEdge.class)
+                Graphs.addGraph(copy, underlying)
+                underlying = copy
+            }
+            shared = false
+        }
+    }
+
     def FlowGraph addVertex(String jobName) {
+        beforeChange()
         underlying.addVertex(jobName)
         return this;
     }
 
     def FlowGraph addVertices(List<String> jobNames) {
+        beforeChange()
         jobNames.each { underlying.addVertex(it) }
         return this;
     }
 
     def FlowGraph addEdge(String sourceJobName, String targetJobName) {
+        beforeChange()
         underlying.addVertex(sourceJobName)
         underlying.addVertex(targetJobName)
         underlying.addEdge(sourceJobName, targetJobName,  new GraphEdge(sourceJobName, targetJobName))
@@ -117,56 +270,122 @@ class FlowGraph {
     }
 
     def boolean hasIncomingEdges(JobInvocation job) {
-        def edges = underlying.incomingEdgesOf(job.name)
+        def edges = underlying().incomingEdgesOf(job.name)
         edges != null && !edges.isEmpty()
     }
 
     def Set<GraphEdge> getIncomingEdgesOf(JobInvocation job) {
-        underlying.incomingEdgesOf(job.name)
+        underlying().incomingEdgesOf(job.name)
     }
 
     def Set<GraphEdge> getOutgoingEdgesOf(JobInvocation job) {
-        underlying.outgoingEdgesOf(job.name)
+        underlying().outgoingEdgesOf(job.name)
+    }
+
+    /**
+     * @return the direct parents of the job, none if it is not part of the graph
+     */
+    def Set<String> getParents(String vertex) {
+        if (topology != null) {
+            return topology.getParents(vertex)
+        }
+        def parents = new LinkedHashSet<String>()
+        if (underlying.containsVertex(vertex)) {
+            for (GraphEdge edge : underlying.incomingEdgesOf(vertex)) {
+                parents.add(edge.source)
+            }
+        }
+        parents
+    }
+
+    def Set<String> getChildren(String vertex) {
+        if (topology != null) {
+            return topology.getChildren(vertex)
+        }
+        def children = new LinkedHashSet<String>()
+        for (GraphEdge edge : underlying.outgoingEdgesOf(vertex)) {
+            children.add(edge.target)
+        }
+        children
     }
 
     def findPath(String source, String target) {
-        if (underlying.containsVertex(source) && underlying.containsVertex(target)) {
-            return DijkstraShortestPath.findPathBetween(underlying, source, target)
+        if (containsVertex(source) && containsVertex(target)) {
+            return DijkstraShortestPath.findPathBetween(underlying(), source, target)
         }
 
         return null
     }
 
     def pathExists(String source, String target) {
-        def paths = findPath(source, target)
-        paths != null && !paths.isEmpty()
+        reachability().pathExists(source, target)
     }
 
     def isNotChildOfAny(String childJob, Iterable<String> jobs) {
-        def parent = jobs.find { job -> job != childJob && pathExists(job, childJob) }
-        parent == null
+        !reachability().isChildOfAny(childJob, jobs)
     }
 
     def isChildOfAny(String childJob, Iterable<String> jobs) {
-        def parent = jobs.find { job -> job != childJob && pathExists(job, childJob) }
-        parent != null
+        reachability().isChildOfAny(childJob, jobs)
     }
 
     def isParentOfAny(String parentJob, Iterable<String> jobs) {
-        def parent = jobs.find { job -> job != parentJob && pathExists(parentJob, job) }
-        parent != null
+        reachability().isParentOfAny(parentJob, jobs)
+    }
+
+    /**
+     * Checks if the job is one of the must build jobs or is connected to (is parent or child of) any of them, as
+     * required by {@link #getBuildDependantJobs()} and {@link #getBuildDependOnJobs()}
+     */
+    def boolean isConnectedToAny(String job, Collection<String> mustBuildJobs) {
+        if (mustBuildJobs.contains(job)) {
+            return true
+        }
+        if (buildDependantJobs) {
+            return isChildOfAny(job, mustBuildJobs) || buildDependOnJobs && isParentOfAny(job, mustBuildJobs)
+        }
+        if (buildDependOnJobs) {
+            return isParentOfAny(job, mustBuildJobs)
+        }
+        return isParentOfAny(job, mustBuildJobs) && isChildOfAny(job, mustBuildJobs)
+    }
+
+    /**
+     * Precomputes the ancestor/descendant index so that the queries made while executing the graph do not
+     * have to walk it. Adding a vertex or an edge afterwards drops the index.
+     */
+    def FlowGraph freeze() {
+        reachability()
+        return this
+    }
+
+    private GraphReachability reachability() {
+        def index = reachability
+        if (index == null) {
+            index = GraphReachability.of(underlying())
+            reachability = index
+        }
+        return index
     }
 
     def boolean containsEdge(String source, String target) {
-        underlying.containsEdge(source, target)
+        underlying().containsEdge(source, target)
     }
 
     def boolean containsVertex(String vertex) {
-        underlying.containsVertex(vertex)
+        topology != null ? topology.index.idOf(vertex) >= 0 : underlying.containsVertex(vertex)
+    }
+
+    def int getVertexCount() {
+        topology != null ? topology.vertices.length : underlying.vertexSet().size()
+    }
+
+    def int getEdgeCount() {
+        topology != null ? topology.edgeCount : underlying.edgeSet().size()
     }
 
     def Set<String> getVertices() {
-        underlying.vertexSet()
+        underlying().vertexSet()
     }
 
     def FlowGraph onBuildSuccess(Closure listener) {
@@ -189,6 +408,58 @@ class FlowGraph {
         return this
     }
 
+    def FlowGraph withFailurePolicy(FailurePolicy policy) {
+        this.failurePolicy = policy
+        return this
+    }
+
+    def FlowGraph withFailurePolicy(String policy) {
+        withFailurePolicy(FailurePolicy.valueOf(policy))
+    }
+
+    def FlowGraph withMaxParallelBuilds(int maxParallelBuilds) {
+        this.maxParallelBuilds = maxParallelBuilds
+        return this
+    }
+
+    def FlowGraph withBuildAvoidance(boolean value) {
+        this.buildAvoidance = value
+        return this
+    }
+
+    /**
+     * @param millis expected duration of the job, to start the longest chains first until the flow has builds of it
+     */
+    def FlowGraph withWeight(String job, long millis) {
+        if (weightsShared) {
+            weights = new HashMap<String, Long>(weights)
+            weightsShared = false
+        }
+        weights.put(job, millis)
+        return this
+    }
+
+    def FlowGraph withLabel(String job, String label) {
+        if (labelsShared) {
+            labels = new HashMap<String, String>(labels)
+            labelsShared = false
+        }
+        labels.put(job, label)
+        return this
+    }
+
+    /**
+     * @param params parameters of the builds of the job, overriding the parameters of the graph
+     */
+    def FlowGraph withParams(String job, Map<String, String> params) {
+        if (vertexParamsShared) {
+            vertexParams = new HashMap<String, Map<String, String>>(vertexParams)
+            vertexParamsShared = false
+        }
+        vertexParams.put(job, params)
+        return this
+    }
+
     def FlowGraph withModifiedJobs(Collection<String> startJobs) {
         this.startJobs.addAll(startJobs);
         return this
@@ -210,7 +481,7 @@ class FlowGraph {
 
     Collection<String> getStartJobs() {
         if (buildEverything) {
-            return Lists.newArrayList(this.underlying.vertexSet())
+            return topology != null ? Lists.newArrayList(topology.vertices) : Lists.newArrayList(underlying.vertexSet())
         } else {
             return startJobs
         }
@@ -228,14 +499,58 @@ class FlowGraph {
         return buildDependOnJobs
     }
 
+    FailurePolicy getFailurePolicy() {
+        return failurePolicy
+    }
+
+    boolean getBuildAvoidance() {
+        return buildAvoidance
+    }
+
+    int getMaxParallelBuilds() {
+        return maxParallelBuilds
+    }
+
     Map getParams() {
         return params
     }
 
+    /**
+     * @return the expected duration of the job in milliseconds, <code>null</code> if unknown
+     */
+    Long getWeight(String job) {
+        return weights.get(job)
+    }
+
+    String getLabel(String job) {
+        return labels.get(job)
+    }
+
+    /**
+     * @return the parameters of the job only, <code>null</code> if none
+     */
+    Map<String, String> getParams(String job) {
+        return vertexParams.get(job)
+    }
+
+    /**
+     * @return the parameters of the builds of the job: the parameters of the graph and of the job
+     */
+    Map getBuildParams(String job) {
+        def own = vertexParams.get(job)
+        if (own == null) {
+            return params
+        }
+        def merged = new HashMap(params)
+        merged.putAll(own)
+        return merged
+    }
+
     @Override
     def String toString() {
-        return "vertices[${underlying.vertexSet().size()}]: ${underlying.vertexSet()}" +
-                ", edges[${underlying.edgeSet().size()}]: ${underlying.edgeSet()}"
+        def graph = underlying()
+        return "vertices[${graph.vertexSet().size()}]: ${graph.vertexSet()}" +
+                ", edges[${graph.edgeSet().size()}]: ${graph.edgeSet()}"
     }
 
     @Override
@@ -245,11 +560,11 @@ class FlowGraph {
 
         FlowGraph flowGraph = (FlowGraph) o
 
-        if (!underlying.edgeSet().equals(flowGraph.underlying.edgeSet())) {
+        if (!underlying().edgeSet().equals(flowGraph.underlying().edgeSet())) {
             return false
         }
 
-        if (!underlying.vertexSet().equals(flowGraph.underlying.vertexSet())) {
+        if (!underlying().vertexSet().equals(flowGraph.underlying().vertexSet())) {
             return false
         }
 
@@ -257,7 +572,119 @@ class FlowGraph {
     }
 
     int hashCode() {
-        return (underlying != null ? underlying.hashCode() : 0)
+        return underlying().hashCode()
+    }
+
+    /**
+     * Vertices numbered in topological order with the ids of their children. Parents, children and vertices are
+     * looked up from the arrays, the graph with its hashed edges is only built for the other queries.
+     */
+    private static class Topology {
+        private final String[] vertices
+        private final int[][] children
+        private final int edgeCount
+        private final GraphReachability index
+        private volatile int[][] parents
+        private volatile DirectedGraph<String, GraphEdge> graph
+
+        Topology(String[] vertices, int[][] children, GraphReachability index) {
+            this.vertices = vertices
+            this.children = children
+            this.index = index
+            int edges = 0
+            for (int[] c : children) {
+                edges += c.length
+            }
+            this.edgeCount = edges
+        }
+
+        Set<String> getParents(String vertex) {
+            def names = new LinkedHashSet<String>()
+            def id = index.idOf(vertex)
+            if (id >= 0) {
+                for (int parent : parents()[id]) {
+                    names.add(vertices[parent])
+                }
+            }
+            names
+        }
+
+        /**
+         * @return the ids of the parents of every vertex, the children inverted
+         */
+        private int[][] parents() {
+            def p = parents
+            if (p == null) {
+                synchronized (this) {
+                    p = parents
+                    if (p == null) {
+                        def counts = new int[vertices.length]
+                        for (int[] c : children) {
+                            for (int child : c) {
+                                counts[child]++
+                            }
+                        }
+                        p = new int[vertices.length][]
+                        for (int v = 0; v < vertices.length; v++) {
+                            p[v] = new int[counts[v]]
+                            counts[v] = 0
+                        }
+                        for (int v = 0; v < vertices.length; v++) {
+                            for (int child : children[v]) {
+                                p[child][counts[child]++] = v
+                            }
+                        }
+                        parents = p
+                    }
+                }
+            }
+            p
+        }
+
+        Set<String> getChildren(String vertex) {
+            def id = index.idOf(vertex)
+            if (id < 0) {
+                throw new IllegalArgumentException("no such vertex in graph: " + vertex)
+            }
+            def names = new LinkedHashSet<String>()
+            for (int child : children[id]) {
+                names.add(vertices[child])
+            }
+            names
+        }
+
+        /**
+         * @return the graph shared by the copies, built the first time it is needed
+         */
+        DirectedGraph<String, GraphEdge> graph() {
+            def g = graph
+            if (g == null) {
+                synchronized (this) {
+                    g = graph
+                    if (g == null) {
+                        g = newGraph()
+                        graph = g
+                    }
+                }
+            }
+            g
+        }
+
+        /**
+         * @return a new graph with the vertices and edges of the topology
+         */
+        DirectedGraph<String, GraphEdge> newGraph() {
+            def g = new SimpleDirectedGraph<String, GraphEdge>(GraphEdge.class)
+            for (String vertex : vertices) {
+                g.addVertex(vertex)
+            }
+            for (int v = 0; v < vertices.length; v++) {
+                for (int child : children[v]) {
+                    g.addEdge(vertices[v], vertices[child], new GraphEdge(vertices[v], vertices[child]))
+                }
+            }
+            g
+        }
     }
 }
 
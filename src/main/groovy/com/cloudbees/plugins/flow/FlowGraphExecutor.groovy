@@ -1,17 +1,16 @@
 package com.cloudbees.plugins.flow
-import com.cloudbees.plugins.extras.ColoredNote
+import com.google.common.util.concurrent.FutureCallback
+import com.google.common.util.concurrent.Futures
 import groovy.transform.Synchronized
-import hudson.console.HyperlinkNote
 import hudson.model.Result
-import hudson.security.ACL
-import org.acegisecurity.context.SecurityContextHolder
 
-import java.util.concurrent.Callable
-import java.util.concurrent.Executors
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.CountDownLatch
 
 class FlowGraphExecutor {
-    private final FlowDelegate flowDSL
+    /**
+     * Runs the builds, see {@link FlowDelegateBackend} and {@link GraphSimulation}
+     */
+    private final GraphBuildBackend backend
 
     /**
      * Graph defining dependencies between jobs
@@ -23,73 +22,192 @@ class FlowGraphExecutor {
      */
     private final Collection<String> mustBuildJobs
 
+    /**
+     * Jobs to build, released as soon as all the jobs they depend on have finished
+     */
+    private final GraphSchedule schedule
+
+    /**
+     * Expected run time of the jobs to build
+     */
+    private final Map<String, Long> durations
+
     private final runningBuilds = new HashSet<String>()
-    private final waitingJobs = new HashSet<String>()
+    private final invocations = new HashMap<String, GraphBuild>()
+    private final abortedBuilds = new HashSet<String>()
+
+    /**
+     * Result of every job of the graph, {@link Result#NOT_BUILT} for the ones skipped or never started
+     */
+    private final results = new LinkedHashMap<String, Result>()
     private final completed = new ArrayList<String>()
     private final failedBuilds = new ArrayList<String>()
 
-    private final pool = Executors.newCachedThreadPool()
+    /**
+     * Released as soon as there is no running nor waiting build left, see {@link #signalIfCompleted()}
+     */
+    private final completion = new CountDownLatch(1)
 
     FlowGraphExecutor(FlowDelegate flowDSL, FlowGraph graph) {
-        this.flowDSL = flowDSL
-        this.graph = graph
+        this(new FlowDelegateBackend(flowDSL, graph), graph)
+    }
+
+    FlowGraphExecutor(GraphBuildBackend backend, FlowGraph graph) {
+        this.backend = backend
+        this.graph = graph.freeze()
         this.mustBuildJobs = filterOnlyExistingJobs(graph.getMustBuildJobs())
-        addToBuildQueue(filterOnlyExistingJobs(graph.getStartJobs()))
+        def jobsToBuild = collectJobsToBuild(filterOnlyExistingJobs(graph.getStartJobs()))
+        this.durations = estimateDurations(jobsToBuild)
+        this.schedule = new GraphSchedule(graph, jobsToBuild, durations)
+    }
+
+    /**
+     * Expected duration of the jobs, see {@link GraphBuildBackend#estimateDuration(String)}, to start the longest
+     * chains first
+     */
+    private def Map<String, Long> estimateDurations(Collection<String> jobs) {
+        def durations = new HashMap<String, Long>()
+        for (String job : jobs) {
+            long duration = backend.estimateDuration(job)
+            if (duration >= 0) {
+                durations.put(job, duration)
+            }
+        }
+        durations
+    }
+
+    /**
+     * Remaining critical path of the graph build: the longest of the remaining time of every running build plus the
+     * path of its dependants, and of the path of the jobs ready but not started yet
+     */
+    @Synchronized
+    def long estimateRemainingMillis() {
+        if (stopped) {
+            return estimateRunningMillis(false)
+        }
+        return Math.max(estimateRunningMillis(true), schedule.highestReadyRank)
     }
 
-    def execute() {
+    /**
+     * @return the number of jobs ready to build but not started yet
+     */
+    @Synchronized
+    def int getReadyCount() {
+        schedule.readyCount
+    }
+
+    private def long estimateRunningMillis(boolean withDependants) {
+        long now = backend.currentTimeMillis()
+        long remaining = 0
+        for (String job : runningBuilds) {
+            long own = durations.containsKey(job) ? durations.get(job) : 0
+            def invocation = invocations.get(job)
+            long elapsed = invocation != null && invocation.started ? now - invocation.startTimeMillis : 0
+            long path = Math.max(0, own - elapsed)
+            if (withDependants) {
+                def rank = schedule.getRank(job)
+                path += rank != null ? rank - own : 0
+            }
+            remaining = Math.max(remaining, path)
+        }
+        remaining
+    }
+
+    /**
+     * @return the result of every job the graph had to build, see {@link #results}
+     */
+    def Map<String, Result> execute() {
+        backend.graphBuildStarted(this)
+        try {
+            start()
+            return awaitResults()
+        } finally {
+            backend.graphBuildCompleted(this)
+        }
+    }
+
+    /**
+     * Starts the builds of the jobs ready to build, the others are started by the callbacks of the builds
+     */
+    def start() {
         if (mustBuildJobs != null && mustBuildJobs.size() > 0) {
-            logNotice("Starting a graph base build for the graph: " + graph.toString())
+            logNotice("Starting a graph base build for a graph of ${graph.vertexCount} jobs and ${graph.edgeCount} edges")
             logNotice("It has to built the following " + mustBuildJobs + " vertices")
+            log("Jobs to build [${schedule.jobs.size()}]: " + schedule.jobs.join(", "))
 
-            buildAll(mustBuildJobs)
+            buildReadyJobs()
         }
 
-        awaitCompletionAndShutdown()
+        signalIfCompleted()
     }
 
-    @Synchronized
-    private def buildAll(Collection<String> jobs) {
-        addToBuildQueue(jobs)
-
-        def readyToBuild = waitingJobs.findAll { build -> hasNoRunningParent(build) }
+    /**
+     * Waits for every build to be over
+     *
+     * @return the result of every job the graph had to build, see {@link #results}
+     */
+    def Map<String, Result> awaitResults() {
+        awaitCompletion()
+        return Collections.unmodifiableMap(results)
+    }
 
-        readyToBuild.each { build ->
-            if (graph.isNotChildOfAny(build, readyToBuild)) {
-                this.build(graph.getParams(), build)
+    /**
+     * Collects the jobs to build: the start and must build jobs connected to any must build job plus, transitively,
+     * their children connected to any must build job
+     */
+    private def collectJobsToBuild(Collection<String> startJobs) {
+        def jobs = new LinkedHashSet<String>()
+        def visited = new HashSet<String>()
+        def toVisit = new LinkedList<String>(startJobs)
+        toVisit.addAll(mustBuildJobs)
+        while (!toVisit.isEmpty()) {
+            def job = toVisit.removeFirst()
+            if (visited.add(job) && !job.trim().isEmpty() && isConnectedToAnyMustBuildJob(job)) {
+                jobs.add(job)
+                toVisit.addAll(graph.getChildren(job))
             }
         }
+        jobs
     }
 
-    private def addToBuildQueue(Collection<String> jobs) {
-        def validJobs = jobs.findAll { v ->
-            def isWaitingForExecution = runningBuilds.contains(v)
-            def hasAlreadyBeenExecuted = completed.contains(v)
-            !v.trim().isEmpty() && isConnectedToAnyMustBuildJob(v) && !isWaitingForExecution && !hasAlreadyBeenExecuted
+    @Synchronized
+    private def buildReadyJobs() {
+        def maxParallelBuilds = graph.maxParallelBuilds
+        String job
+        while ((maxParallelBuilds <= 0 || runningBuilds.size() < maxParallelBuilds) && (job = schedule.poll()) != null) {
+            backend.journal(FlowJournal.Event.GRAPH_PICKED, job,
+                    "rank ${schedule.getRank(job)}, running ${runningBuilds.size()}")
+            build(graph.getBuildParams(job), job)
         }
 
-        waitingJobs.addAll(validJobs)
-
-        if (waitingJobs.size() == 0 && runningBuilds.size() != 0) {
+        if (schedule.waitingCount == 0 && runningBuilds.size() != 0) {
             logNotice("No waiting builds. Running builds [" + runningBuilds.size() + "]: " + runningBuilds.join(", "))
-        } else {
-            log("Adding to waiting builds: " + validJobs + ". Waiting builds [${waitingJobs.size()}]: " + waitingJobs.join(", "))
         }
     }
 
+    @Synchronized
+    private def releaseDependants(String jobName) {
+        def released = schedule.complete(jobName)
+        released.each { job -> backend.journal(FlowJournal.Event.GRAPH_READY, job, "released by $jobName") }
+        if (!released.isEmpty()) {
+            log("Ready to build: " + released + ". Waiting builds [${schedule.waitingCount}]")
+        }
+        buildReadyJobs()
+    }
+
     @Synchronized
     private def handleBuildStart(String jobName) {
         runningBuilds.add(jobName)
-        waitingJobs.remove(jobName)
     }
 
     @Synchronized
-    def handleBuildCompleted(JobInvocation jobInvocation) {
+    def handleBuildCompleted(GraphBuild jobInvocation) {
 
         if (Result.SUCCESS != jobInvocation.result) {
             handleBuildFailed(jobInvocation.name, jobInvocation, null)
         } else {
             completed.add(jobInvocation.name)
+            results.put(jobInvocation.name, Result.SUCCESS)
             logSuccess("Job ${linkToBuild(jobInvocation)} has finished with status " + jobInvocation.result
                     + ". No of completed builds: " + completed.size()
                     + ". No of running builds: " + runningBuilds.size())
@@ -97,16 +215,25 @@ class FlowGraphExecutor {
 
             graph.getSuccessListeners().each{ listener -> listener(jobInvocation) }
 
-            if (!failed) {
-                def childJobs = graph.getOutgoingEdgesOf(jobInvocation).collect { edge -> edge.target }
-                buildAll(childJobs)
+            if (!stopped) {
+                releaseDependants(jobInvocation.name)
             }
+            signalIfCompleted()
         }
     }
 
     @Synchronized
-    def handleBuildFailed(String jobName, JobInvocation jobInvocation, Exception e) {
+    def handleBuildFailed(String jobName, GraphBuild jobInvocation, Throwable e) {
         def jobNotFoundException = JobNotFoundException.isAssignableFrom(e.getClass())
+        runningBuilds.remove(jobName)
+
+        if (abortedBuilds.contains(jobName)) {
+            results.put(jobName, Result.ABORTED)
+            logNotice("Job $jobName has been aborted")
+            signalIfCompleted()
+            return
+        }
+
         if (jobInvocation != null) {
             logError("Job ${linkToBuild(jobInvocation)} has finished with status " + jobInvocation.result)
         } else {
@@ -117,68 +244,118 @@ class FlowGraphExecutor {
             }
         }
 
-        runningBuilds.remove(jobName)
         if (!jobNotFoundException) {
-            waitingJobs.clear();
+            // the flow fails once the running builds are over, see awaitCompletion()
+            def firstFailure = !failed
             failedBuilds.add(jobName)
-            flowDSL.flowRun.state.result = Result.FAILURE
-//            abortRunningBuilds(jobName)
-            flowDSL.fail()
+            results.put(jobName, jobInvocation?.result ?: Result.FAILURE)
+            if (!graph.failurePolicy.stopScheduling) {
+                skipDependants(jobName)
+            } else if (firstFailure) {
+                abortRunningBuilds(jobName)
+            }
+            signalIfCompleted()
+        } else {
+            // the job is ignored, jobs depending on it can go on
+            if (!stopped) {
+                releaseDependants(jobName)
+            }
+            signalIfCompleted()
         }
     }
 
+    @Synchronized
+    private def skipDependants(String jobName) {
+        def skipped = schedule.fail(jobName)
+        skipped.each { job -> backend.journal(FlowJournal.Event.GRAPH_SKIPPED, job, "$jobName failed") }
+        if (!skipped.isEmpty()) {
+            logError("Skipping " + skipped.join(", ") + " because $jobName job has failed")
+        }
+        buildReadyJobs()
+    }
+
+    /**
+     * Applies the failure policy of the graph to the builds still queued or running
+     */
     private def abortRunningBuilds(String causedByJob) {
-        if (runningBuilds != null && !runningBuilds.isEmpty()) {
-            for(String name: runningBuilds) {
-                def job = flowDSL.flowRun.findJob(name)
-                if (job.isPresent()) {
-                    logError("Aborting $name because $causedByJob job has failed")
-                    job.get().build.executor.interrupt()
-                }
+        def policy = graph.failurePolicy
+        def toAbort = new ArrayList<GraphBuild>()
+        for (String name : new ArrayList<String>(runningBuilds)) {
+            def job = invocations.get(name)
+            if (job == null) {
+                continue
             }
+            if (job.started ? policy.abortRunning : policy.cancelQueued) {
+                logError("Aborting $name because $causedByJob job has failed")
+                abortedBuilds.add(name)
+                toAbort.add(job)
+            }
+        }
+        if (!toAbort.isEmpty()) {
+            def aborted = backend.abort(toAbort)
+            toAbort.findAll { !aborted.contains(it) }.each { abortedBuilds.remove(it.name) }
         }
     }
 
     private def build(Map args, String jobName) {
         handleBuildStart(jobName)
-        def currentState = flowDSL.flowRun.state
-        Closure<JobInvocation> track_closure = {
-            def ctx = ACL.impersonate(ACL.SYSTEM)
-            def JobInvocation jobInvocation = null
-            try {
-                flowDSL.flowRun.state = new FlowState(currentState, graph)
-                jobInvocation = flowDSL.build(args, jobName)
-                handleBuildCompleted(jobInvocation)
-                jobInvocation
-            } catch (Exception e) {
-                handleBuildFailed(jobName, jobInvocation, e)
-                throw e;
-            }
-            finally {
-                SecurityContextHolder.setContext(ctx)
-            }
-        }
+        try {
+            def jobInvocation = backend.schedule(jobName, args)
+            invocations.put(jobName, jobInvocation)
+            Futures.addCallback(jobInvocation.startedFuture, new FutureCallback<GraphBuild>() {
+                void onSuccess(GraphBuild job) {
+                    backend.runInContext { backend.started(job) }
+                }
 
-        pool.submit(track_closure as Callable<JobInvocation>)
+                void onFailure(Throwable t) {
+                    // reported once the build is finalized
+                }
+            }, backend.callbackExecutor)
+            Futures.addCallback(jobInvocation.finalizedFuture, new FutureCallback<GraphBuild>() {
+                void onSuccess(GraphBuild job) {
+                    backend.runInContext {
+                        backend.finalized(job)
+                        handleBuildCompleted(job)
+                    }
+                }
+
+                void onFailure(Throwable t) {
+                    backend.runInContext {
+                        handleBuildFailed(jobName, null, t)
+                    }
+                }
+            }, backend.callbackExecutor)
+        } catch (Exception e) {
+            handleBuildFailed(jobName, null, e)
+        }
     }
 
+    /**
+     * Once the build is stopped no other build is started, so only the running ones are left to wait for
+     */
     @Synchronized
-    private def isCompleted() {
-        runningBuilds.isEmpty() && waitingJobs.isEmpty()
+    def boolean isCompleted() {
+        runningBuilds.isEmpty() && (stopped || schedule.isFinished())
     }
 
-    private def awaitCompletionAndShutdown() {
-        while(!isCompleted()) {
-            Thread.sleep(1000)
+    /**
+     * Must be called after every change to the running or waiting builds so that the flow finishes the moment
+     * the last build is done
+     */
+    @Synchronized
+    private def signalIfCompleted() {
+        if (isCompleted()) {
+            completion.countDown()
         }
+    }
 
-        pool.shutdown()
-        pool.awaitTermination(1, TimeUnit.DAYS)
+    private def awaitCompletion() {
+        completion.await()
+        logSummary()
 
         if (failed) {
             logError("The following builds have failed: " + failedBuilds.toSet().join(", "))
-            flowDSL.flowRun.state.result = Result.FAILURE
-            flowDSL.fail()
+            backend.failed()
         } else {
             logSuccess("The build has been completed")
         }
@@ -188,8 +365,25 @@ class FlowGraphExecutor {
         return !failedBuilds.isEmpty()
     }
 
-    def hasNoRunningParent(String job) {
-        graph.isNotChildOfAny(job, runningBuilds)
+    /**
+     * Whether a build has failed and the failure policy does not let the independent jobs go on
+     */
+    private def getStopped() {
+        return failed && graph.failurePolicy.stopScheduling
+    }
+
+    @Synchronized
+    private def logSummary() {
+        for (String job : schedule.jobs) {
+            if (!results.containsKey(job)) {
+                results.put(job, Result.NOT_BUILT)
+            }
+        }
+        if (results.isEmpty()) {
+            return
+        }
+        def byResult = results.keySet().groupBy { job -> results.get(job) }
+        log("Summary: " + byResult.collect { result, jobs -> "${result} [${jobs.size()}]: " + jobs.join(", ") }.join("; "))
     }
 
     /**
@@ -198,22 +392,7 @@ class FlowGraphExecutor {
      * @param job the jobs to check
      */
     def boolean isConnectedToAnyMustBuildJob(String job) {
-        boolean isConnectedToAnyMustBuildJob;
-
-        if (graph.getBuildDependantJobs()) {
-            if (graph.getBuildDependOnJobs()) {
-                isConnectedToAnyMustBuildJob = graph.isParentOfAny(job, mustBuildJobs) || graph.isChildOfAny(job, mustBuildJobs)
-            } else {
-                isConnectedToAnyMustBuildJob = graph.isChildOfAny(job, mustBuildJobs)
-            }
-        } else {
-            if (graph.getBuildDependOnJobs()) {
-                isConnectedToAnyMustBuildJob = graph.isParentOfAny(job, mustBuildJobs)
-            } else {
-                isConnectedToAnyMustBuildJob = graph.isParentOfAny(job, mustBuildJobs) && graph.isChildOfAny(job, mustBuildJobs)
-            }
-        }
-        return mustBuildJobs.contains(job) || isConnectedToAnyMustBuildJob
+        graph.isConnectedToAny(job, mustBuildJobs)
     }
 
     private def filterOnlyExistingJobs(Collection<String> jobs) {
@@ -226,27 +405,23 @@ class FlowGraphExecutor {
         }
     }
 
-    private def linkToBuild(JobInvocation jobInvocation) {
-        return HyperlinkNote.encodeTo('/' + jobInvocation.build.getUrl(), jobInvocation.build.project.getName())
-//        return jobInvocation.build.getFullDisplayName().replaceAll("#", "")
+    private def linkToBuild(GraphBuild jobInvocation) {
+        return backend.describe(jobInvocation)
     }
 
     private def logError(String message) {
-        def text = ColoredNote.redNote("[graph] $message")
-        flowDSL.println("${text}")
+        backend.log(GraphBuildBackend.Note.ERROR, "[graph] $message")
     }
 
     private def logNotice(String message) {
-        def text = ColoredNote.blueNote("[graph] $message")
-        flowDSL.println("${text}")
+        backend.log(GraphBuildBackend.Note.NOTICE, "[graph] $message")
     }
 
     private def logSuccess(String message) {
-        def text = ColoredNote.greenNote("[graph] $message")
-        flowDSL.println("${text}")
+        backend.log(GraphBuildBackend.Note.SUCCESS, "[graph] $message")
     }
 
     private def log(String message) {
-        flowDSL.println("[graph] ${message}")
+        backend.log(GraphBuildBackend.Note.PLAIN, "[graph] ${message}")
     }
 }
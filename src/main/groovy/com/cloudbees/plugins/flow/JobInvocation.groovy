@@ -24,23 +24,40 @@
  */
 
 package com.cloudbees.plugins.flow
+
+import com.google.common.util.concurrent.Futures
+import com.google.common.util.concurrent.ListenableFuture
+import com.google.common.util.concurrent.SettableFuture
 import hudson.model.*
 import hudson.model.queue.QueueTaskFuture
 import jenkins.model.Jenkins
 
+import java.lang.ref.WeakReference
 import java.text.DateFormat
 import java.util.concurrent.ExecutionException
-import java.util.concurrent.locks.Condition
-import java.util.concurrent.locks.Lock
-import java.util.concurrent.locks.ReentrantLock
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicBoolean
 import java.util.logging.Logger
 /**
  * @author: <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
  */
-public class JobInvocation {
+public class JobInvocation implements GraphBuild {
 
     private static final Logger LOGGER = Logger.getLogger(JobInvocation.class.getName());
 
+    /**
+     * Seconds an aborted flow waits for its builds to stop
+     */
+    public static final int ABORT_TIMEOUT = Integer.getInteger(JobInvocation.class.getName() + ".abortTimeout", 120)
+
+    /**
+     * Invocations waiting in the queue, see {@link FlowQueueWatcher}. Invocations are only equal within a run, hence
+     * the identity set, guarded by itself.
+     */
+    private static final Set<JobInvocation> QUEUED = Collections.newSetFromMap(new IdentityHashMap<JobInvocation, Boolean>())
+
     private final String name;
     private int buildNumber;
 
@@ -51,10 +68,27 @@ public class JobInvocation {
 
     private transient AbstractBuild build;
 
+    // The build of an invocation loaded from disk, looked up again once garbage collected
+    private transient volatile WeakReference<Run> loadedBuild;
+
     private transient QueueTaskFuture<? extends AbstractBuild<?, ?>> future;
 
-    private final Lock lock;
-    private final Condition finalizedCond;
+    // Completed with this invocation by FlowListener, or cancelled if the build is removed from the queue
+    private transient SettableFuture<JobInvocation> startedFuture;
+    private transient SettableFuture<JobInvocation> completedFuture;
+    private transient SettableFuture<JobInvocation> finalizedFuture;
+
+    // When the build has been put in the queue
+    private transient long scheduledAt;
+
+    // Whether the build is counted by FlowListener as in flight
+    private transient AtomicBoolean inFlight;
+
+    // Fingerprint of the inputs of the build when build avoidance is enabled, see BuildAvoidanceIndex
+    private transient String fingerprint;
+
+    // Whether a previous build with the same inputs has been reused instead of building the job
+    private boolean reused;
 
     // Whether the build has started. If true, this.build should be set.
     private boolean started;
@@ -70,8 +104,37 @@ public class JobInvocation {
         this.run = run;
         this.name = project.getFullName();
         this.project = project;
-        this.lock = new ReentrantLock();
-        this.finalizedCond = lock.newCondition();
+        initFutures();
+    }
+
+    /**
+     * Invocation of a run recorded in the past, read back from {@link JobsGraphFile}
+     */
+    /* package */ JobInvocation(String name, int uid, int buildNumber, boolean started, boolean completed,
+                                boolean finalized, boolean reused) {
+        this.run = null
+        this.name = name
+        this.uid = uid
+        this.buildNumber = buildNumber
+        this.started = started
+        this.completed = completed
+        this.finalized = finalized
+        this.reused = reused
+        initFutures()
+    }
+
+    protected Object readResolve() {
+        initFutures();
+        return this;
+    }
+
+    private void initFutures() {
+        startedFuture = SettableFuture.create();
+        completedFuture = SettableFuture.create();
+        finalizedFuture = SettableFuture.create();
+        if (started) startedFuture.set(this);
+        if (completed) completedFuture.set(this);
+        if (finalized) finalizedFuture.set(this);
     }
 
     public JobInvocation(FlowRun run, String name) {
@@ -88,12 +151,24 @@ public class JobInvocation {
     }
 
     /* package */ JobInvocation run(Cause cause, List<Action> actions) {
+        scheduledAt = System.currentTimeMillis();
+        // counted before being scheduled, FlowListener ignores the builds of projects with no build in flight
+        inFlight = new AtomicBoolean(true);
+        FlowListener.buildScheduled(name);
         future = project.scheduleBuild2(project.getQuietPeriod(), cause, actions);
         if (future == null) {
+            leaveFlight();
             // XXX this will mark the build as failed - perhaps aborting would be a better option?
             throw new CouldNotScheduleJobException("Could not schedule job "
                     + project.getName() +", ensure it is not already queued with the same parameters or is not disabled");
         }
+        journal(FlowJournal.Event.QUEUED, null)
+        synchronized (QUEUED) {
+            // the build may start before being registered
+            if (!started) {
+                QUEUED.add(this);
+            }
+        }
         return this;
     }
 
@@ -103,29 +178,76 @@ public class JobInvocation {
      * it is removed from the queue.
      * @return <code>true</code> if the run was aborted
      */
-    /* package */ boolean abort() {
-        def aborted = false
-        if (!started) {
-            // Need to search the queue for the correct job and cancel it in
-            // the queue.
+    public boolean abort() {
+        return !abortAll(Collections.singletonList(this)).isEmpty()
+    }
+
+    /**
+     * Aborts the runs all at once. The ones not started yet are looked up by their future in a single pass over the
+     * queue and removed from it while holding the queue lock once, the running ones are interrupted without waiting
+     * for them to stop, see {@link #awaitCompletion(Collection, long, TimeUnit)}.
+     *
+     * @return the invocations aborted
+     */
+    /* package */ static List<JobInvocation> abortAll(Collection<JobInvocation> jobs) {
+        def queued = new IdentityHashMap<Future, JobInvocation>()
+        def running = []
+        for (JobInvocation job : jobs) {
+            if (!job.started) {
+                if (job.future != null) {
+                    queued.put(job.future, job)
+                }
+            } else if (!job.completed) {
+                running.add(job)
+            }
+        }
+
+        def aborted = []
+        if (!queued.isEmpty()) {
             def queue = Jenkins.instance.queue
-            for (queueItem in queue.items) {
-                if (future == queueItem.getFuture()) {
-                    aborted = queue.cancel(queueItem)
-                    break;
+            synchronized (queue) {
+                for (queueItem in queue.items) {
+                    def job = queued.get(queueItem.getFuture())
+                    if (job != null && queue.cancel(queueItem)) {
+                        aborted.add(job)
+                    }
                 }
             }
+            for (JobInvocation job : aborted) {
+                job.journal(FlowJournal.Event.ABORTED, "removed from the queue")
+                job.buildCancelled()
+            }
         }
-        else if (!completed) {
+
+        for (JobInvocation job : running) {
             // as the task has already started we want to be kinder in recording the cause.
-            def cause = new FlowAbortedCause(flowRun);
-            def executor = build.executor ?: build.oneOffExecutor;
+            def cause = new FlowAbortedCause(job.flowRun);
+            def executor = job.build.executor ?: job.build.oneOffExecutor;
             if (executor != null) {
                 executor.interrupt(Result.ABORTED, cause)
-                aborted = true;
-             }
+                aborted.add(job)
+                job.journal(FlowJournal.Event.ABORTED, "interrupted")
+            }
         }
-        return aborted;
+        return aborted
+    }
+
+    /**
+     * Waits for the runs which have started to complete, all together
+     *
+     * @return the invocations still running once the timeout has elapsed
+     */
+    /* package */ static List<JobInvocation> awaitCompletion(Collection<JobInvocation> jobs, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        def running = jobs.findAll { it.started && !it.completed }
+        try {
+            Futures.successfulAsList(running*.completedFuture).get(timeout, unit)
+        } catch (TimeoutException e) {
+            // reported by the caller
+        } catch (ExecutionException e) {
+            // failures are turned into null results
+        }
+        return running.findAll { !it.completed }
     }
 
     /**
@@ -159,34 +281,160 @@ public class JobInvocation {
         this.started = true;
         this.build = build;
         this.buildNumber = build.getNumber();
+        dequeued();
+        if (scheduledAt > 0) {
+            FlowMetrics.get().buildStarted(scheduledAt, System.currentTimeMillis())
+        }
+        journal(FlowJournal.Event.STARTED, null)
+        startedFuture.set(this);
     }
 
     /* package */ void buildCompleted() {
         this.completed = true;
+        journal(FlowJournal.Event.COMPLETED, build?.result?.toString())
+        completedFuture.set(this);
     }
 
     /* package */ void buildFinalized() {
-        this.lock.lock();
-        try {
-            this.finalized = true;
-            this.finalizedCond.signal();
-        } finally {
-            this.lock.unlock();
+        leaveFlight();
+        if (fingerprint != null && !reused && build != null && build.result == Result.SUCCESS) {
+            run.buildFlow.buildAvoidanceIndex.record(fingerprint, build)
+        }
+        this.finalized = true;
+        journal(FlowJournal.Event.FINALIZED, null)
+        finalizedFuture.set(this);
+    }
+
+    /**
+     * Uses a previous build instead of building the job.
+     */
+    /* package */ JobInvocation reuse(AbstractBuild build) {
+        this.reused = true;
+        journal(FlowJournal.Event.REUSED, build.getFullDisplayName())
+        buildStarted(build);
+        buildCompleted();
+        buildFinalized();
+        return this;
+    }
+
+    /**
+     * The build has been removed from the queue before it could start.
+     */
+    /* package */ void buildCancelled() {
+        leaveFlight();
+        dequeued();
+        journal(FlowJournal.Event.CANCELLED, null)
+        startedFuture.cancel(false);
+        completedFuture.cancel(false);
+        finalizedFuture.cancel(false);
+    }
+
+    /**
+     * Records the event in the journal of the flow, unless the invocation is the flow itself
+     */
+    /* package */ void journal(FlowJournal.Event event, String detail) {
+        if (run != null && !(this instanceof Start)) {
+            run.journal(event, this, detail)
+        }
+    }
+
+    private void leaveFlight() {
+        if (inFlight != null && inFlight.compareAndSet(true, false)) {
+            FlowListener.buildDone(name);
         }
     }
 
+    private void dequeued() {
+        synchronized (QUEUED) {
+            QUEUED.remove(this);
+        }
+    }
+
+    /**
+     * @return a snapshot of the invocations waiting in the queue
+     */
+    /* package */ static Collection<JobInvocation> getQueued() {
+        synchronized (QUEUED) {
+            return new ArrayList<JobInvocation>(QUEUED);
+        }
+    }
+
+    /**
+     * Forgets the invocation once it has left the queue, cancelling it if it has been removed from the queue
+     * without being started.
+     */
+    /* package */ void checkQueued() {
+        if (started) {
+            dequeued();
+        } else if (future != null && future.isCancelled()) {
+            buildCancelled();
+        }
+    }
+
+    /**
+     * Completed once the build has left the queue and started.
+     * Cancelled if the build is removed from the queue.
+     */
+    public ListenableFuture<JobInvocation> getStartedFuture() {
+        return startedFuture;
+    }
+
+    /**
+     * Completed once the build has a result.
+     */
+    public ListenableFuture<JobInvocation> getCompletedFuture() {
+        return completedFuture;
+    }
+
+    /**
+     * Completed once the build has been finalized, i.e. all its post build steps have run.
+     */
+    public ListenableFuture<JobInvocation> getFinalizedFuture() {
+        return finalizedFuture;
+    }
+
     public String getName() {
         return name;
     }
 
     public String getDisplayName() {
-        return (build != null ? build.displayName : "");
+        def started = getStartedBuild()
+        return (started != null ? started.displayName : "");
+    }
+
+    /**
+     * @return when the build has been put in the queue, <code>0</code> if unknown
+     */
+    public long getScheduledAt() {
+        return scheduledAt;
+    }
+
+    /**
+     * @return the number of the build once started, <code>0</code> before
+     */
+    public int getBuildNumber() {
+        return buildNumber;
+    }
+
+    /* package */ void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * @return <code>true</code> if a previous build with the same inputs has been reused instead of building the job
+     */
+    public boolean isReused() {
+        return reused;
     }
 
     public boolean isStarted() {
         return started;
     }
 
+    public long getStartTimeMillis() {
+        return started ? getBuild().getTimeInMillis() : 0;
+    }
+
     public boolean isCompleted() {
         return completed;
     }
@@ -218,12 +466,40 @@ public class JobInvocation {
                 buildNumber = build.getNumber();
             } else if (buildNumber > 0) {
                 // loaded from persistent store
-                build = getProject().getBuildByNumber(buildNumber);
+                return getLoadedBuild();
             }
         }
         return build;
     }
 
+    /**
+     * @return the build if it has started, without waiting for it, <code>null</code> otherwise
+     */
+    public Run getStartedBuild() {
+        if (build != null) {
+            return build;
+        }
+        if (future == null && buildNumber > 0) {
+            return getLoadedBuild();
+        }
+        return null;
+    }
+
+    /**
+     * Historical builds are only weakly held, so that browsing the graph of old flows does not keep their builds
+     * in memory
+     */
+    private Run getLoadedBuild() {
+        Run loaded = loadedBuild?.get()
+        if (loaded == null) {
+            loaded = getProject()?.getBuildByNumber(buildNumber)
+            if (loaded != null) {
+                loadedBuild = new WeakReference<Run>(loaded)
+            }
+        }
+        return loaded
+    }
+
 //    public addParams(Map params) {
 //        List<ParameterValue> paramValues = []
 //
@@ -275,13 +551,14 @@ public class JobInvocation {
     }
 
     public Run waitForStart() throws ExecutionException, InterruptedException {
-        return future.waitForStart();
+        startedFuture.get();
+        return build;
     }
 
     public void waitForCompletion() throws ExecutionException, InterruptedException {
         if (!completed) {
             if (future != null) {
-                future.get();
+                completedFuture.get();
             } else {
                 throw new RuntimeException("Can't wait for completion.");
             }
@@ -289,20 +566,17 @@ public class JobInvocation {
     }
 
     public void waitForFinalization() throws ExecutionException, InterruptedException {
-        if (!finalized) {
-            this.lock.lock();
-            try {
-                this.finalizedCond.await();
-            } finally {
-                this.lock.unlock();
-            }
-        }
+        finalizedFuture.get();
     }
 
     String getId() {
         return "build-" + uid;
     }
 
+    /* package */ int getUid() {
+        return uid;
+    }
+
     /**
      * Initial vertex for the build DAG. To be used by FlowRun constructor to initiate the DAG
      */
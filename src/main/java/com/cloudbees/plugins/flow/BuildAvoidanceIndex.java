@@ -0,0 +1,294 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.EnvVars;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.BooleanParameterValue;
+import hudson.model.FileParameterValue;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.PasswordParameterValue;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.RunParameterValue;
+import hudson.model.StringParameterValue;
+import hudson.model.TaskListener;
+import hudson.util.Secret;
+import org.apache.commons.fileupload.FileItem;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Successful builds triggered by a {@link BuildFlow} with build avoidance enabled, indexed by the fingerprint of
+ * their inputs: the project, the parameters given by the flow and the SCM revisions of the upstream builds of the
+ * flow. A build with the same fingerprint can be reused instead of building the project again.
+ *
+ * The index is appended to a file in the directory of the flow, the last build recorded for a fingerprint wins.
+ */
+public class BuildAvoidanceIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildAvoidanceIndex.class.getName());
+
+    /**
+     * Environment variables the SCM plugins use to expose the revision a build has been made from
+     */
+    private static final String[] REVISION_VARIABLES = {"GIT_COMMIT", "SVN_REVISION", "MERCURIAL_REVISION", "P4_CHANGELIST"};
+
+    private final File file;
+
+    private final ConcurrentMap<String, String> builds = new ConcurrentHashMap<String, String>();
+
+    private volatile boolean loaded;
+
+    /**
+     * Number of lines of the file, guarded by this
+     */
+    private int lines;
+
+    public BuildAvoidanceIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the fingerprint of the inputs of a build of the project, <code>null</code> if a parameter is of a type
+     *         whose value cannot be compared, in which case the build cannot be avoided
+     */
+    public static String fingerprint(AbstractProject<?, ?> project, List<Action> actions,
+                                     Collection<? extends Run<?, ?>> upstream) {
+        StringBuilder inputs = new StringBuilder(project.getFullName()).append('\n');
+
+        Map<String, String> parameters = new TreeMap<String, String>();
+        for (Action action : actions) {
+            if (action instanceof ParametersAction) {
+                for (ParameterValue value : ((ParametersAction) action).getParameters()) {
+                    String fingerprint = fingerprint(value);
+                    if (fingerprint == null) {
+                        LOGGER.fine("no build avoidance for " + project.getFullName() + ", parameter "
+                                + value.getName() + " is a " + value.getClass().getName());
+                        return null;
+                    }
+                    parameters.put(value.getName(), fingerprint);
+                }
+            }
+        }
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            inputs.append(parameter.getKey()).append('=').append(parameter.getValue()).append('\n');
+        }
+
+        List<String> revisions = new ArrayList<String>();
+        for (Run<?, ?> run : upstream) {
+            revisions.add(run.getParent().getFullName() + '@' + revisionOf(run));
+        }
+        Collections.sort(revisions);
+        for (String revision : revisions) {
+            inputs.append(revision).append('\n');
+        }
+        return Util.getDigestOf(inputs.toString());
+    }
+
+    /**
+     * @return the value of the parameter as a string, the digest of the content of a file,
+     *         <code>null</code> if the type of the parameter is not known
+     */
+    private static String fingerprint(ParameterValue value) {
+        // choice and text parameters are string parameters as well
+        if (value instanceof StringParameterValue) {
+            return "string:" + ((StringParameterValue) value).value;
+        }
+        if (value instanceof BooleanParameterValue) {
+            return "boolean:" + ((BooleanParameterValue) value).value;
+        }
+        if (value instanceof PasswordParameterValue) {
+            Secret secret = ((PasswordParameterValue) value).getValue();
+            return "password:" + Util.getDigestOf(secret != null ? secret.getPlainText() : "");
+        }
+        if (value instanceof RunParameterValue) {
+            return "run:" + ((RunParameterValue) value).getRunId();
+        }
+        if (value instanceof FileParameterValue) {
+            FileItem file = ((FileParameterValue) value).getFile();
+            if (file == null) {
+                return "file:";
+            }
+            try {
+                InputStream in = file.getInputStream();
+                try {
+                    return "file:" + Util.getDigestOf(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "failed to read the file of parameter " + value.getName(), e);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the SCM revisions the build has been made from or, if the SCM does not tell, the build itself
+     */
+    private static String revisionOf(Run<?, ?> run) {
+        try {
+            EnvVars env = run.getEnvironment(TaskListener.NULL);
+            StringBuilder revision = new StringBuilder();
+            for (String variable : REVISION_VARIABLES) {
+                String value = env.get(variable);
+                if (value != null) {
+                    revision.append(variable).append('=').append(value).append(';');
+                }
+            }
+            if (revision.length() > 0) {
+                return revision.toString();
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "failed to get the environment of " + run, e);
+        }
+        return "#" + run.getNumber();
+    }
+
+    /**
+     * @return the last successful build recorded for the fingerprint, <code>null</code> if there is none or it has
+     *         been deleted since
+     */
+    public AbstractBuild<?, ?> lookup(AbstractProject<?, ?> project, String fingerprint) {
+        load();
+        String build = builds.get(fingerprint);
+        if (build == null) {
+            return null;
+        }
+        int i = build.lastIndexOf('#');
+        if (!build.substring(0, i).equals(project.getFullName())) {
+            return null;
+        }
+        AbstractBuild<?, ?> run = project.getBuildByNumber(Integer.parseInt(build.substring(i + 1)));
+        if (run == null || run.isBuilding() || run.getResult() != Result.SUCCESS) {
+            return null;
+        }
+        return run;
+    }
+
+    public void record(String fingerprint, AbstractBuild<?, ?> build) {
+        load();
+        String id = build.getParent().getFullName() + '#' + build.getNumber();
+        if (!id.equals(builds.put(fingerprint, id))) {
+            append(fingerprint + '\t' + id + '\n');
+        }
+    }
+
+    public int size() {
+        load();
+        return builds.size();
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            if (file.exists()) {
+                try {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+                    try {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            lines++;
+                            int i = line.indexOf('\t');
+                            if (i > 0 && line.indexOf('#', i) > 0) {
+                                builds.put(line.substring(0, i), line.substring(i + 1));
+                            }
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "failed to read the build avoidance index " + file, e);
+                }
+            }
+            loaded = true;
+        }
+    }
+
+    private synchronized void append(String line) {
+        try {
+            // drop the entries overwritten since the file has been written
+            if (lines > 1000 && lines > 2 * builds.size()) {
+                compact();
+            }
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            try {
+                writer.write(line);
+            } finally {
+                writer.close();
+            }
+            lines++;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "failed to update the build avoidance index " + file, e);
+        }
+    }
+
+    private void compact() throws IOException {
+        File compacted = new File(file.getPath() + ".tmp");
+        int written = 0;
+        Writer writer = new OutputStreamWriter(new FileOutputStream(compacted), "UTF-8");
+        try {
+            for (Map.Entry<String, String> build : builds.entrySet()) {
+                writer.write(build.getKey() + '\t' + build.getValue() + '\n');
+                written++;
+            }
+        } finally {
+            writer.close();
+        }
+        if (!compacted.renameTo(file) && !(file.delete() && compacted.renameTo(file))) {
+            throw new IOException("failed to replace " + file + " with " + compacted);
+        }
+        lines = written;
+    }
+}
@@ -38,6 +38,7 @@ import hudson.util.DescribableList;
 import hudson.util.FormValidation;
 import jenkins.model.Jenkins;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
@@ -68,6 +69,9 @@ public class BuildFlow extends Project<BuildFlow, FlowRun> implements TopLevelIt
 
     private boolean buildNeedsWorkspace;
 
+    private transient volatile FlowDurationStore durationStore;
+
+    private transient volatile BuildAvoidanceIndex buildAvoidanceIndex;
 
     public BuildFlow(ItemGroup parent, String name) {
         super(parent, name);
@@ -97,6 +101,52 @@ public class BuildFlow extends Project<BuildFlow, FlowRun> implements TopLevelIt
         this.dslFile = dslFile;
     }
 
+    /**
+     * @return the durations of the builds triggered by this flow
+     */
+    public FlowDurationStore getDurationStore() {
+        FlowDurationStore store = durationStore;
+        if (store == null) {
+            synchronized (this) {
+                store = durationStore;
+                if (store == null) {
+                    store = new FlowDurationStore(new File(getRootDir(), "durations.log"));
+                    durationStore = store;
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * @return the successful builds triggered by this flow, by fingerprint of their inputs
+     */
+    public BuildAvoidanceIndex getBuildAvoidanceIndex() {
+        BuildAvoidanceIndex index = buildAvoidanceIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = buildAvoidanceIndex;
+                if (index == null) {
+                    index = new BuildAvoidanceIndex(new File(getRootDir(), "build-avoidance.log"));
+                    buildAvoidanceIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    @Override
+    public void onLoad(ItemGroup<? extends Item> parent, String name) throws IOException {
+        super.onLoad(parent, name);
+        FlowScriptCache.get().warm(dsl);
+    }
+
+    @Override
+    public synchronized void save() throws IOException {
+        super.save();
+        FlowScriptCache.get().warm(dsl);
+    }
+
     @Override
     protected void submit(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException, FormException {
         super.submit(req, rsp);
@@ -25,11 +25,47 @@
 package com.cloudbees.plugins.flow;
 
 import hudson.Plugin;
+import jenkins.model.Jenkins;
 
 /**
  * @author <a href="mailto:nicolas.deloof@cloudbees.com">Nicolas De loof</a>
  */
 public class BuildFlowPlugin extends Plugin {
 
+    /**
+     * Used when the plugin has not been started, i.e. outside of Jenkins
+     */
+    private static FlowScheduler standaloneScheduler;
 
+    private transient final FlowScheduler scheduler = new FlowScheduler();
+
+    @Override
+    public void start() throws Exception {
+        FlowMetrics.get().register();
+    }
+
+    @Override
+    public void stop() throws Exception {
+        FlowMetrics.get().unregister();
+        FlowDurationStore.flushAll();
+        scheduler.shutdown();
+        FlowScriptCache.get().shutdown();
+    }
+
+    /**
+     * Scheduler running the parallel branches and graph builds of all the flows.
+     */
+    public static FlowScheduler getScheduler() {
+        Jenkins jenkins = Jenkins.getInstance();
+        BuildFlowPlugin plugin = jenkins != null ? jenkins.getPlugin(BuildFlowPlugin.class) : null;
+        if (plugin != null) {
+            return plugin.scheduler;
+        }
+        synchronized (BuildFlowPlugin.class) {
+            if (standaloneScheduler == null) {
+                standaloneScheduler = new FlowScheduler();
+            }
+            return standaloneScheduler;
+        }
+    }
 }
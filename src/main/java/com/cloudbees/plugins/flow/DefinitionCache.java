@@ -0,0 +1,262 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of the property files loaded by flows and of the graph definitions, in either format, keyed by URL.
+ *
+ * A cached definition is checked again every time it is asked for, but only downloaded and parsed again once
+ * changed: <code>file:</code> URLs are checked against the modification time and length of the file, HTTP ones with
+ * a conditional request on the <code>ETag</code> and <code>Last-Modified</code> headers of the last response. Other
+ * URLs are downloaded every time, a parsed graph being still reused as long as the content has not changed.
+ *
+ * Flows asking for a definition while it is being checked wait for that check rather than making their own, so a
+ * burst of flows starting at once makes a single request.
+ *
+ * Graphs are handed out as {@link FlowGraph#copy() copies} of a parsed template, so that the build flags set by a
+ * run never leak into another one.
+ */
+public final class DefinitionCache {
+
+    /**
+     * Maximum number of definitions kept around.
+     */
+    public static final int MAX_SIZE = Integer.getInteger(DefinitionCache.class.getName() + ".maxSize", 64);
+
+    private static final DefinitionCache INSTANCE = new DefinitionCache(MAX_SIZE);
+
+    private final Cache<String, Definition> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong downloads = new AtomicLong();
+
+    /* package */ DefinitionCache(int maxSize) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+    }
+
+    public static DefinitionCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the properties defined at the given URL, not to be modified
+     */
+    public Map<String, String> getProperties(String url) throws IOException {
+        return validate(url).getProperties();
+    }
+
+    /**
+     * @return a graph created from the definition at the given URL, either a property file, see
+     *         {@link FlowGraph#createFromPropertyFile(InputStream, boolean)}, or a {@link GraphFormat} one
+     */
+    public FlowGraph getGraph(String url) throws IOException {
+        return validate(url).getGraph().copy();
+    }
+
+    /**
+     * @return the number of times a cached definition has been found up to date
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of times a definition has been downloaded and parsed
+     */
+    public long getDownloadCount() {
+        return downloads.get();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private Snapshot validate(String url) throws IOException {
+        long requestedAt = System.nanoTime();
+        Definition definition;
+        try {
+            definition = cache.get(url, new Callable<Definition>() {
+                public Definition call() {
+                    return new Definition();
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        synchronized (definition) {
+            Snapshot current = definition.snapshot;
+            if (current != null && current.validatedAt - requestedAt >= 0) {
+                // checked by another flow while waiting for the lock
+                hits.incrementAndGet();
+                return current;
+            }
+            Snapshot validated = load(url, current);
+            if (validated == current) {
+                hits.incrementAndGet();
+            }
+            validated.validatedAt = System.nanoTime();
+            definition.snapshot = validated;
+            return validated;
+        }
+    }
+
+    private Snapshot load(String url, Snapshot previous) throws IOException {
+        URL u = new URL(url);
+        if ("file".equals(u.getProtocol())) {
+            File file = toFile(u);
+            long modified = file.lastModified();
+            long length = file.length();
+            if (previous != null && modified != 0 && previous.modified == modified && previous.length == length) {
+                return previous;
+            }
+            InputStream in = new FileInputStream(file);
+            try {
+                return downloaded(previous, IOUtils.toByteArray(in), null, modified, length);
+            } finally {
+                in.close();
+            }
+        }
+
+        URLConnection connection = u.openConnection();
+        if (previous != null && connection instanceof HttpURLConnection) {
+            if (previous.etag != null) {
+                connection.setRequestProperty("If-None-Match", previous.etag);
+            }
+            if (previous.modified > 0) {
+                connection.setIfModifiedSince(previous.modified);
+            }
+        }
+        if (connection instanceof HttpURLConnection
+                && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED
+                && previous != null) {
+            connection.getInputStream().close();
+            return previous;
+        }
+        InputStream in = connection.getInputStream();
+        try {
+            return downloaded(previous, IOUtils.toByteArray(in), connection.getHeaderField("ETag"),
+                    connection.getLastModified(), -1);
+        } finally {
+            in.close();
+        }
+    }
+
+    private Snapshot downloaded(Snapshot previous, byte[] content, String etag, long modified, long length) {
+        downloads.incrementAndGet();
+        Snapshot snapshot = new Snapshot(content, etag, modified, length);
+        if (previous != null && Arrays.equals(previous.content, content)) {
+            // same content, keep what has been parsed
+            snapshot.properties = previous.properties;
+            snapshot.graph = previous.graph;
+        }
+        return snapshot;
+    }
+
+    private static File toFile(URL url) {
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            return new File(url.getPath());
+        } catch (IllegalArgumentException e) {
+            return new File(url.getPath());
+        }
+    }
+
+    private static final class Definition {
+        private volatile Snapshot snapshot;
+    }
+
+    /**
+     * Content of a definition as downloaded once, with what is needed to tell whether it has changed since.
+     * The content is only parsed once asked for.
+     */
+    private static final class Snapshot {
+        private final byte[] content;
+        private final String etag;
+        private final long modified;
+        private final long length;
+        private volatile long validatedAt;
+        private volatile Map<String, String> properties;
+        private volatile FlowGraph graph;
+
+        private Snapshot(byte[] content, String etag, long modified, long length) {
+            this.content = content;
+            this.etag = etag;
+            this.modified = modified;
+            this.length = length;
+        }
+
+        private synchronized Map<String, String> getProperties() throws IOException {
+            if (properties == null) {
+                Properties loaded = new Properties();
+                loaded.load(new ByteArrayInputStream(content));
+                Map<String, String> map = new HashMap<String, String>();
+                for (String key : loaded.stringPropertyNames()) {
+                    map.put(key, loaded.getProperty(key));
+                }
+                properties = Collections.unmodifiableMap(map);
+            }
+            return properties;
+        }
+
+        private synchronized FlowGraph getGraph() throws IOException {
+            if (graph == null) {
+                if (GraphFormat.isGraphFormat(content)) {
+                    graph = GraphFormat.read(new ByteArrayInputStream(content));
+                } else {
+                    graph = FlowGraph.createFromProperties(getProperties(), false).freeze();
+                }
+            }
+            return graph;
+        }
+    }
+}
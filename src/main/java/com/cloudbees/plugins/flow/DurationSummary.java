@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.model.Result;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Rolling summary of the builds of a job triggered by a flow: exponentially weighted moving averages of the time
+ * spent in the queue and running, and the run times of the last {@link #WINDOW} builds for percentiles.
+ *
+ * Adding a build is constant time.
+ */
+public class DurationSummary {
+
+    public static final int WINDOW = 32;
+
+    /**
+     * Weight of the last build in the moving averages
+     */
+    private static final double ALPHA = 0.3;
+
+    private final long[] queueMillis = new long[WINDOW];
+
+    private final long[] runMillis = new long[WINDOW];
+
+    private final Result[] results = new Result[WINDOW];
+
+    private int next;
+
+    private int count;
+
+    private double ewmaQueueMillis;
+
+    private double ewmaRunMillis;
+
+    public synchronized void add(long queue, long run, Result result) {
+        queueMillis[next] = queue;
+        runMillis[next] = run;
+        results[next] = result;
+        next = (next + 1) % WINDOW;
+        if (count == 0) {
+            ewmaQueueMillis = queue;
+            ewmaRunMillis = run;
+        } else {
+            ewmaQueueMillis += ALPHA * (queue - ewmaQueueMillis);
+            ewmaRunMillis += ALPHA * (run - ewmaRunMillis);
+        }
+        count++;
+    }
+
+    /**
+     * @return the number of builds ever added
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the moving average of the time spent in the queue, <code>-1</code> if no build has been added
+     */
+    public synchronized long getEwmaQueueMillis() {
+        return count > 0 ? Math.round(ewmaQueueMillis) : -1;
+    }
+
+    /**
+     * @return the moving average of the run time, <code>-1</code> if no build has been added
+     */
+    public synchronized long getEwmaRunMillis() {
+        return count > 0 ? Math.round(ewmaRunMillis) : -1;
+    }
+
+    /**
+     * @param percentile between 1 and 100
+     * @return the run time of the last builds at the given percentile, <code>-1</code> if no build has been added
+     */
+    public synchronized long getRunPercentile(int percentile) {
+        int size = Math.min(count, WINDOW);
+        if (size == 0) {
+            return -1;
+        }
+        long[] window = Arrays.copyOf(runMillis, size);
+        Arrays.sort(window);
+        int rank = (int) Math.ceil(percentile / 100.0 * size);
+        return window[Math.max(0, Math.min(size, rank) - 1)];
+    }
+
+    /**
+     * @return the result of the last build, <code>null</code> if no build has been added
+     */
+    public synchronized Result getLastResult() {
+        return count > 0 ? results[(next + WINDOW - 1) % WINDOW] : null;
+    }
+
+    /**
+     * Writes the builds of the window, oldest first, in the format of {@link FlowDurationStore}
+     *
+     * @return the number of lines written
+     */
+    /* package */ synchronized int writeTo(String job, Writer writer) throws IOException {
+        int size = Math.min(count, WINDOW);
+        for (int i = 0; i < size; i++) {
+            int index = (next - size + i + WINDOW) % WINDOW;
+            writer.write(FlowDurationStore.line(job, queueMillis[index], runMillis[index], results[index]));
+        }
+        return size;
+    }
+}
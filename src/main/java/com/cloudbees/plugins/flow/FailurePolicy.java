@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+/**
+ * What a graph build does with the other builds once one of its builds has failed.
+ */
+public enum FailurePolicy {
+
+    /**
+     * Starts no new build, aborts the running builds and removes the queued ones from the queue, so that their
+     * executors are given back right away.
+     */
+    ABORT(true, true, true),
+
+    /**
+     * Starts no new build, removes the queued builds from the queue and lets the running ones finish.
+     */
+    CANCEL_QUEUED(true, false, true),
+
+    /**
+     * Starts no new build and lets the queued and running builds finish.
+     */
+    DRAIN(true, false, false),
+
+    /**
+     * Only skips the jobs depending, directly or not, on the failed one. Independent branches of the graph keep
+     * being built and the flow fails once they are done.
+     */
+    CONTINUE(false, false, false);
+
+    private final boolean stopScheduling;
+
+    private final boolean abortRunning;
+
+    private final boolean cancelQueued;
+
+    FailurePolicy(boolean stopScheduling, boolean abortRunning, boolean cancelQueued) {
+        this.stopScheduling = stopScheduling;
+        this.abortRunning = abortRunning;
+        this.cancelQueued = cancelQueued;
+    }
+
+    public boolean isStopScheduling() {
+        return stopScheduling;
+    }
+
+    public boolean isAbortRunning() {
+        return abortRunning;
+    }
+
+    public boolean isCancelQueued() {
+        return cancelQueued;
+    }
+}
@@ -28,12 +28,17 @@ package com.cloudbees.plugins.flow;
 import hudson.model.Cause;
 import jenkins.model.Jenkins;
 
+import java.lang.ref.WeakReference;
+
 /**
  * @author: <a hef="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
  */
 public class FlowCause extends Cause.UpstreamCause {
 
-    private transient FlowRun flowRun;
+    /**
+     * Weakly held so that the builds triggered by a flow do not keep it in memory, resolved again once collected
+     */
+    private transient volatile WeakReference<FlowRun> flowRun;
     
     private JobInvocation associatedJob;
 
@@ -41,20 +46,27 @@ public class FlowCause extends Cause.UpstreamCause {
 
     public FlowCause(FlowRun flowRun, JobInvocation associatedJob) {
         super(flowRun);
-        this.flowRun = flowRun;
+        this.flowRun = new WeakReference<FlowRun>(flowRun);
         this.cause = flowRun.getParent().getFullName() + "#" + flowRun.getNumber();
         this.associatedJob = associatedJob;
     }
 
+    /**
+     * @return the flow run, <code>null</code> if it has been deleted
+     */
     public FlowRun getFlowRun() {
         // TODO(mattmoor): If we upgrade to 1.505+ we can replace usage
         // of this with UpstreamCause#getUpstreamRun().
-        if (this.flowRun == null) {
-            int i = cause.lastIndexOf('#');
-            BuildFlow flow = Jenkins.getInstance().getItemByFullName(cause.substring(0,i), BuildFlow.class);
-            flowRun = flow.getBuildByNumber(Integer.parseInt(cause.substring(i+1)));
+        WeakReference<FlowRun> ref = flowRun;
+        FlowRun run = ref != null ? ref.get() : null;
+        if (run == null) {
+            BuildFlow flow = Jenkins.getInstance().getItemByFullName(getBuildFlow(), BuildFlow.class);
+            run = flow != null ? flow.getBuildByNumber(getBuildNumber()) : null;
+            if (run != null) {
+                flowRun = new WeakReference<FlowRun>(run);
+            }
         }
-        return flowRun;
+        return run;
     }
 
     public JobInvocation getAssociatedJob() {
@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import java.io.PrintStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Console of a flow build, shared by its parallel branches and graph builds.
+ *
+ * Branches only enqueue whole lines. The first thread finding the console idle writes everything queued so far in
+ * one go, while the other threads return as soon as their line is queued, so a wide flow does not have all its
+ * branches waiting on the build log in turn and lines of different branches never get mixed up.
+ *
+ * Lines are only copied to the Jenkins log when the <code>com.cloudbees.plugins.flow.FlowConsole.mirrorToLog</code>
+ * system property is set.
+ */
+public class FlowConsole {
+
+    private static final Logger LOGGER = Logger.getLogger(FlowConsole.class.getName());
+
+    public static final boolean MIRROR_TO_LOG = Boolean.getBoolean(FlowConsole.class.getName() + ".mirrorToLog");
+
+    /**
+     * Maximum number of lines written at once
+     */
+    static final int MAX_BATCH = 512;
+
+    private static final String INDENT = "    ";
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private final PrintStream out;
+
+    private final boolean mirrorToLog;
+
+    private final Queue<Line> lines = new ConcurrentLinkedQueue<Line>();
+
+    /**
+     * Held by the thread writing the queued lines
+     */
+    private final ReentrantLock writer = new ReentrantLock();
+
+    public FlowConsole(PrintStream out) {
+        this(out, MIRROR_TO_LOG);
+    }
+
+    public FlowConsole(PrintStream out, boolean mirrorToLog) {
+        this.out = out;
+        this.mirrorToLog = mirrorToLog;
+    }
+
+    public PrintStream getOut() {
+        return out;
+    }
+
+    /**
+     * Queues a line and writes the queued lines unless another thread is already doing so.
+     *
+     * @param branch id of the branch printing the line, only used in the Jenkins log
+     * @param indent indentation level of the line
+     */
+    public void println(String branch, int indent, String text) {
+        lines.add(new Line(branch, indent, text));
+        do {
+            if (!writer.tryLock()) {
+                // the writer checks the queue again once it has released the lock
+                return;
+            }
+            try {
+                drain();
+            } finally {
+                writer.unlock();
+            }
+        } while (!lines.isEmpty());
+    }
+
+    /**
+     * Writes every line queued so far, waiting for the thread currently writing if any.
+     */
+    public void flush() {
+        writer.lock();
+        try {
+            drain();
+        } finally {
+            writer.unlock();
+        }
+    }
+
+    private void drain() {
+        StringBuilder batch = new StringBuilder();
+        Line line;
+        while ((line = lines.poll()) != null) {
+            int count = 0;
+            do {
+                line.appendTo(batch);
+                if (mirrorToLog) {
+                    LOGGER.log(Level.INFO, "[{0}] {1}", new Object[]{line.branch, line.text});
+                }
+            } while (++count < MAX_BATCH && (line = lines.poll()) != null);
+            out.print(batch);
+            out.flush();
+            batch.setLength(0);
+        }
+    }
+
+    private static final class Line {
+        private final String branch;
+        private final int indent;
+        private final String text;
+
+        private Line(String branch, int indent, String text) {
+            this.branch = branch;
+            this.indent = indent;
+            this.text = text;
+        }
+
+        private void appendTo(StringBuilder batch) {
+            for (int i = 0; i < indent; i++) {
+                batch.append(INDENT);
+            }
+            batch.append(text).append(LINE_SEPARATOR);
+        }
+    }
+}
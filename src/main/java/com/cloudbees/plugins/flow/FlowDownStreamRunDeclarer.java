@@ -27,21 +27,26 @@ package com.cloudbees.plugins.flow;
 import hudson.Extension;
 import hudson.model.Run;
 import org.jenkinsci.plugins.buildgraphview.DownStreamRunDeclarer;
+import org.jgrapht.DirectedGraph;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.ExecutionException;
 
 /**
+ * Declares the builds triggered by a flow to the build graph view.
+ *
+ * Only the builds which have started are returned, so that rendering the graph of a flow in progress never waits for
+ * builds in the queue. The flow of a build and the builds of a flow are weakly memoized by {@link FlowCause} and
+ * {@link JobInvocation}.
+ *
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
  */
 @Extension(optional = true)
 public class FlowDownStreamRunDeclarer extends DownStreamRunDeclarer {
 
     @Override
-    public List<Run> getDownStream(Run r) throws ExecutionException, InterruptedException {
+    public List<Run> getDownStream(Run r) {
 
         if (r instanceof FlowRun) {
             FlowRun f = (FlowRun) r;
@@ -50,21 +55,33 @@ public class FlowDownStreamRunDeclarer extends DownStreamRunDeclarer {
 
         List<Run> runs = Collections.emptyList();
         FlowCause cause = (FlowCause) r.getCause(FlowCause.class);
-        FlowRun f;
         while (runs.isEmpty() && cause != null) {
-            f = cause.getFlowRun();
+            FlowRun f = cause.getFlowRun();
+            if (f == null) {
+                break;
+            }
             runs = getOutgoingEdgeRuns(f, cause.getAssociatedJob());
-            cause = (FlowCause) cause.getFlowRun().getCause(FlowCause.class);
+            cause = (FlowCause) f.getCause(FlowCause.class);
         }
 
         return runs;
     }
 
-    private List<Run> getOutgoingEdgeRuns(FlowRun f, JobInvocation start) throws ExecutionException, InterruptedException {
-        Set<FlowRun.JobEdge> edges = f.getJobsGraph().outgoingEdgesOf(start);
+    private List<Run> getOutgoingEdgeRuns(FlowRun f, JobInvocation start) {
+        DirectedGraph<JobInvocation, FlowRun.JobEdge> graph = f.getJobsGraph();
+        List<FlowRun.JobEdge> edges;
+        synchronized (graph) {
+            if (start == null || !graph.containsVertex(start)) {
+                return Collections.emptyList();
+            }
+            edges = new ArrayList<FlowRun.JobEdge>(graph.outgoingEdgesOf(start));
+        }
         List<Run> runs = new ArrayList<Run>(edges.size());
         for (FlowRun.JobEdge edge : edges) {
-            runs.add(edge.getTarget().getBuild());
+            Run run = edge.getTarget().getStartedBuild();
+            if (run != null) {
+                runs.add(run);
+            }
         }
         return runs;
     }
@@ -0,0 +1,237 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.model.Result;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Time spent in the queue, run time and result of every build triggered by a {@link BuildFlow}.
+ *
+ * Builds are appended to a file in the directory of the flow, one tab separated line each, and summarized in memory
+ * per job name. Once the file has more than {@link #MAX_LINES} lines it is rewritten with the builds still in the
+ * summaries.
+ *
+ * Recording a build only updates the summary, the lines are written in batches by {@link FlowDurationFlusher} or when
+ * the file is compacted, away from the executor threads completing the builds.
+ */
+public class FlowDurationStore {
+
+    private static final Logger LOGGER = Logger.getLogger(FlowDurationStore.class.getName());
+
+    public static final int MAX_LINES = Integer.getInteger(FlowDurationStore.class.getName() + ".maxLines", 10000);
+
+    /**
+     * Stores with lines not written yet
+     */
+    private static final Set<FlowDurationStore> PENDING =
+            Collections.newSetFromMap(new ConcurrentHashMap<FlowDurationStore, Boolean>());
+
+    private final File file;
+
+    private final ConcurrentMap<String, DurationSummary> summaries = new ConcurrentHashMap<String, DurationSummary>();
+
+    private volatile boolean loaded;
+
+    /**
+     * Number of lines of the file, the pending ones included, guarded by this
+     */
+    private int lines;
+
+    /**
+     * Lines to append to the file, guarded by this
+     */
+    private final StringBuilder pending = new StringBuilder();
+
+    public FlowDurationStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Records a build of the given job
+     */
+    public void record(String job, long queueMillis, long runMillis, Result result) {
+        load();
+        append(job, queueMillis, runMillis, result);
+    }
+
+    /**
+     * @return the summary of the builds of the job, <code>null</code> if none has been recorded
+     */
+    public DurationSummary getSummary(String job) {
+        load();
+        return summaries.get(job);
+    }
+
+    public Map<String, DurationSummary> getSummaries() {
+        load();
+        return Collections.unmodifiableMap(summaries);
+    }
+
+    /**
+     * @return the expected run time of the job, <code>-1</code> if unknown
+     */
+    public long estimateRunMillis(String job) {
+        DurationSummary summary = getSummary(job);
+        return summary != null ? summary.getEwmaRunMillis() : -1;
+    }
+
+    private DurationSummary summaryOf(String job) {
+        DurationSummary summary = summaries.get(job);
+        if (summary == null) {
+            DurationSummary created = new DurationSummary();
+            summary = summaries.putIfAbsent(job, created);
+            if (summary == null) {
+                summary = created;
+            }
+        }
+        return summary;
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            if (file.exists()) {
+                try {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+                    try {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            lines++;
+                            String[] fields = line.split("\t");
+                            if (fields.length != 4) {
+                                continue;
+                            }
+                            try {
+                                summaryOf(fields[0]).add(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                                        Result.fromString(fields[3]));
+                            } catch (NumberFormatException e) {
+                                LOGGER.fine("ignoring malformed line of " + file + ": " + line);
+                            }
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "failed to read build durations from " + file, e);
+                }
+            }
+            loaded = true;
+        }
+    }
+
+    private synchronized void append(String job, long queueMillis, long runMillis, Result result) {
+        try {
+            if (lines >= MAX_LINES) {
+                compact();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "failed to compact " + file, e);
+        }
+        summaryOf(job).add(queueMillis, runMillis, result);
+        pending.append(line(job, queueMillis, runMillis, result));
+        lines++;
+        PENDING.add(this);
+    }
+
+    /**
+     * Appends the builds recorded since the last flush to the file. They are kept for the next flush if the file
+     * cannot be written.
+     */
+    public synchronized void flush() {
+        if (pending.length() == 0) {
+            PENDING.remove(this);
+            return;
+        }
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            try {
+                writer.write(pending.toString());
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            // kept for the next flush
+            LOGGER.log(Level.WARNING, "failed to record build durations in " + file, e);
+            return;
+        }
+        pending.setLength(0);
+        PENDING.remove(this);
+    }
+
+    /**
+     * Flushes every store having builds not written yet
+     */
+    public static void flushAll() {
+        for (FlowDurationStore store : PENDING) {
+            store.flush();
+        }
+    }
+
+    /**
+     * Rewrites the file from the summaries, which hold the pending builds as well
+     */
+    private void compact() throws IOException {
+        File compacted = new File(file.getPath() + ".tmp");
+        int written = 0;
+        Writer writer = new OutputStreamWriter(new FileOutputStream(compacted), "UTF-8");
+        try {
+            for (Map.Entry<String, DurationSummary> summary : summaries.entrySet()) {
+                written += summary.getValue().writeTo(summary.getKey(), writer);
+            }
+        } finally {
+            writer.close();
+        }
+        if (!compacted.renameTo(file) && !(file.delete() && compacted.renameTo(file))) {
+            throw new IOException("failed to replace " + file + " with " + compacted);
+        }
+        lines = written;
+        pending.setLength(0);
+    }
+
+    /* package */ static String line(String job, long queueMillis, long runMillis, Result result) {
+        return job + '\t' + queueMillis + '\t' + runMillis + '\t' + result + '\n';
+    }
+}
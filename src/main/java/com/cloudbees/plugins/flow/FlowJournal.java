@@ -0,0 +1,221 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append only journal of what happened to the builds of a flow run, as JSON lines in the build directory.
+ *
+ * Every line is a flat object: <code>t</code> nanoseconds since the journal has been opened, the <code>event</code>
+ * and when known the <code>id</code>, <code>job</code> and <code>build</code> of the invocation, the
+ * <code>branch</code> of the flow it has been recorded in and a free <code>detail</code>. Each time the journal is
+ * opened, i.e. once more after a restart, an {@link Event#OPENED} line gives the wall clock time of <code>t</code>.
+ *
+ * Lines are buffered and written out when the flow completes. The few events recorded afterwards, such as builds
+ * being finalized, are written out right away. Writing the journal never fails the flow.
+ *
+ * @see FlowJournalReplay
+ */
+public class FlowJournal {
+
+    private static final Logger LOGGER = Logger.getLogger(FlowJournal.class.getName());
+
+    public static final String FILE_NAME = "journal.log";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public enum Event {
+        OPENED,
+        FLOW_STARTED,
+        SCHEDULED,
+        QUEUED,
+        STARTED,
+        COMPLETED,
+        FINALIZED,
+        CANCELLED,
+        ABORTED,
+        REUSED,
+        RETRY,
+        GUARD,
+        RESCUE,
+        GRAPH_READY,
+        GRAPH_PICKED,
+        GRAPH_SKIPPED,
+        FLOW_COMPLETED
+    }
+
+    private final File file;
+
+    private final long origin = System.nanoTime();
+
+    private Writer out;
+
+    private boolean closed;
+
+    private boolean failed;
+
+    public FlowJournal(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param id     id of the job invocation, <code>null</code> if the event is not about a single invocation
+     * @param job    name of the job, <code>null</code> if none
+     * @param build  number of the build, <code>0</code> if unknown
+     * @param branch id of the parallel branch, <code>null</code> if unknown
+     * @param detail anything else worth knowing about the event, <code>null</code> if none
+     */
+    public void record(Event event, String id, String job, int build, String branch, String detail) {
+        long t = System.nanoTime() - origin;
+        StringBuilder line = new StringBuilder(128);
+        line.append("{\"t\":").append(t).append(",\"event\":\"").append(event.name()).append('"');
+        appendField(line, "id", id);
+        appendField(line, "job", job);
+        if (build > 0) {
+            line.append(",\"build\":").append(build);
+        }
+        appendField(line, "branch", branch);
+        appendField(line, "detail", detail);
+        line.append("}\n");
+        write(line);
+    }
+
+    private synchronized void write(CharSequence line) {
+        if (failed) {
+            return;
+        }
+        try {
+            if (out == null) {
+                open();
+            }
+            out.append(line);
+            if (closed) {
+                out.close();
+                out = null;
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void open() throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), BUFFER_SIZE);
+        StringBuilder line = new StringBuilder();
+        line.append("{\"t\":").append(System.nanoTime() - origin).append(",\"event\":\"").append(Event.OPENED.name())
+                .append("\",\"detail\":\"").append(System.currentTimeMillis()).append("\"}\n");
+        out.append(line);
+    }
+
+    /**
+     * Writes out the buffered lines
+     */
+    public synchronized void flush() {
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * Writes out the buffered lines and closes the file. Events recorded afterwards are written out one by one.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+            out = null;
+        }
+    }
+
+    private void fail(IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to write the flow journal " + file + ", no more events will be recorded", e);
+        failed = true;
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // already failing
+            }
+            out = null;
+        }
+    }
+
+    /* package */ static void appendField(StringBuilder line, String name, String value) {
+        if (value == null) {
+            return;
+        }
+        line.append(",\"").append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if (c < ' ') {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+            }
+        }
+        line.append('"');
+    }
+}
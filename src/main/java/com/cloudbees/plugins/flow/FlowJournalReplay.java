@@ -0,0 +1,499 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rebuilds the timeline of the builds of a flow run and the decisions of its scheduler from its {@link FlowJournal},
+ * away from Jenkins:
+ *
+ * <pre>
+ * java -cp build-flow.jar com.cloudbees.plugins.flow.FlowJournalReplay $JENKINS_HOME/jobs/flow/builds/42/journal.log
+ * </pre>
+ */
+public class FlowJournalReplay {
+
+    /**
+     * Number of invocations listed as waiting the most
+     */
+    private static final int TOP = 5;
+
+    public static class Entry {
+        private final long time;
+        private final String event;
+        private final Map<String, String> fields;
+
+        Entry(long time, Map<String, String> fields) {
+            this.time = time;
+            this.event = fields.get("event");
+            this.fields = fields;
+        }
+
+        /**
+         * @return nanoseconds since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public String getEvent() {
+            return event;
+        }
+
+        public String get(String field) {
+            return fields.get(field);
+        }
+    }
+
+    /**
+     * What happened to a job invocation, times are in nanoseconds since the epoch and <code>-1</code> until known
+     */
+    public static class Invocation {
+        private final String id;
+        private final String job;
+        private int build;
+        private final List<String> upstream = new ArrayList<String>();
+        private long scheduled = -1;
+        private long queued = -1;
+        private long started = -1;
+        private long completed = -1;
+        private long finalized = -1;
+        private String result;
+        private boolean reused;
+        private boolean cancelled;
+
+        Invocation(String id, String job) {
+            this.id = id;
+            this.job = job;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getJob() {
+            return job;
+        }
+
+        public int getBuild() {
+            return build;
+        }
+
+        public List<String> getUpstream() {
+            return upstream;
+        }
+
+        public long getScheduled() {
+            return scheduled;
+        }
+
+        public long getQueued() {
+            return queued;
+        }
+
+        public long getStarted() {
+            return started;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        public long getFinalized() {
+            return finalized;
+        }
+
+        public String getResult() {
+            return result;
+        }
+
+        public boolean isReused() {
+            return reused;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @return nanoseconds spent in the queue, <code>-1</code> if the build did not start
+         */
+        public long getQueueNanos() {
+            return started >= 0 && scheduled >= 0 ? started - scheduled : -1;
+        }
+
+        /**
+         * @return nanoseconds spent building, <code>-1</code> if the build did not complete
+         */
+        public long getRunNanos() {
+            return completed >= 0 && started >= 0 ? completed - started : -1;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    private final Map<String, Invocation> invocations = new LinkedHashMap<String, Invocation>();
+
+    private final List<Entry> decisions = new ArrayList<Entry>();
+
+    public static FlowJournalReplay read(File journal) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(journal), "UTF-8");
+        try {
+            return read(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static FlowJournalReplay read(Reader journal) throws IOException {
+        FlowJournalReplay replay = new FlowJournalReplay();
+        BufferedReader reader = new BufferedReader(journal);
+        // wall clock time of t=0 of the journal being read, in nanoseconds
+        long base = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            try {
+                Map<String, String> fields = parse(line);
+                if (fields == null || fields.get("event") == null || fields.get("t") == null) {
+                    // the last line may have been cut short by a crash
+                    continue;
+                }
+                long t = Long.parseLong(fields.get("t"));
+                if (FlowJournal.Event.OPENED.name().equals(fields.get("event"))) {
+                    base = Long.parseLong(fields.get("detail")) * 1000000L - t;
+                    continue;
+                }
+                replay.add(new Entry(base + t, fields));
+            } catch (NumberFormatException e) {
+                // same as a line cut short
+            }
+        }
+        return replay;
+    }
+
+    private void add(Entry entry) {
+        entries.add(entry);
+        String id = entry.get("id");
+        FlowJournal.Event event;
+        try {
+            event = FlowJournal.Event.valueOf(entry.getEvent());
+        } catch (IllegalArgumentException e) {
+            // recorded by a later version
+            return;
+        }
+        if (id == null) {
+            decisions.add(entry);
+            return;
+        }
+        Invocation invocation = invocations.get(id);
+        if (invocation == null) {
+            invocation = new Invocation(id, entry.get("job"));
+            invocations.put(id, invocation);
+        }
+        if (entry.get("build") != null) {
+            invocation.build = Integer.parseInt(entry.get("build"));
+        }
+        switch (event) {
+            case SCHEDULED:
+                invocation.scheduled = entry.getTime();
+                String upstream = entry.get("detail");
+                if (upstream != null && upstream.length() > 0) {
+                    Collections.addAll(invocation.upstream, upstream.split(","));
+                }
+                break;
+            case QUEUED:
+                invocation.queued = entry.getTime();
+                break;
+            case STARTED:
+                invocation.started = entry.getTime();
+                break;
+            case COMPLETED:
+                invocation.completed = entry.getTime();
+                invocation.result = entry.get("detail");
+                break;
+            case FINALIZED:
+                invocation.finalized = entry.getTime();
+                break;
+            case REUSED:
+                invocation.reused = true;
+                break;
+            case CANCELLED:
+                invocation.cancelled = true;
+                decisions.add(entry);
+                break;
+            default:
+                decisions.add(entry);
+        }
+    }
+
+    /**
+     * @return every event of the journal but the {@link FlowJournal.Event#OPENED} ones, in order
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return the job invocations in the order they have been scheduled
+     */
+    public Collection<Invocation> getInvocations() {
+        return Collections.unmodifiableCollection(invocations.values());
+    }
+
+    public Invocation getInvocation(String id) {
+        return invocations.get(id);
+    }
+
+    /**
+     * @return the events about the flow rather than a single build: graph scheduling, retries, guards, aborts
+     */
+    public List<Entry> getDecisions() {
+        return Collections.unmodifiableList(decisions);
+    }
+
+    /**
+     * @return nanoseconds between the completion of the last upstream build and the scheduling of the invocation,
+     *         <code>-1</code> if unknown
+     */
+    public long getSchedulingLatency(Invocation invocation) {
+        if (invocation.scheduled < 0) {
+            return -1;
+        }
+        long ready = -1;
+        for (String id : invocation.upstream) {
+            Invocation up = invocations.get(id);
+            if (up == null || up.completed < 0) {
+                // the upstream is the flow itself, or was built before a restart
+                continue;
+            }
+            ready = Math.max(ready, up.completed);
+        }
+        return ready < 0 ? -1 : invocation.scheduled - ready;
+    }
+
+    public void writeReport(PrintStream out) {
+        if (entries.isEmpty()) {
+            out.println("Empty journal");
+            return;
+        }
+        long origin = entries.get(0).getTime();
+
+        out.println("Builds (times in ms since the flow started):");
+        out.printf("%-10s %-30s %6s %-20s %9s %9s %9s %9s %9s  %s%n", "id", "job", "build", "upstream",
+                "scheduled", "latency", "queued", "run", "finalize", "result");
+        for (Invocation i : invocations.values()) {
+            out.printf("%-10s %-30s %6s %-20s %9s %9s %9s %9s %9s  %s%n", i.id, i.job,
+                    i.build > 0 ? "#" + i.build : "",
+                    join(i.upstream),
+                    millis(i.scheduled < 0 ? -1 : i.scheduled - origin),
+                    millis(getSchedulingLatency(i)),
+                    millis(i.getQueueNanos()),
+                    millis(i.getRunNanos()),
+                    millis(i.finalized >= 0 && i.completed >= 0 ? i.finalized - i.completed : -1),
+                    i.reused ? "reused" : i.cancelled ? "cancelled" : i.result != null ? i.result : "");
+        }
+
+        out.println();
+        out.println("Scheduler decisions:");
+        for (Entry e : decisions) {
+            StringBuilder line = new StringBuilder();
+            line.append(String.format("%9s  %-14s", millis(e.getTime() - origin), e.getEvent()));
+            for (String field : new String[]{"branch", "id", "job", "detail"}) {
+                if (e.get(field) != null) {
+                    line.append(' ').append(field).append('=').append(e.get(field));
+                }
+            }
+            out.println(line);
+        }
+
+        writeTop(out, "Longest scheduling latencies:", new Comparator<Invocation>() {
+            public int compare(Invocation a, Invocation b) {
+                return compareNanos(getSchedulingLatency(b), getSchedulingLatency(a));
+            }
+        }, true);
+        writeTop(out, "Longest queue waits:", new Comparator<Invocation>() {
+            public int compare(Invocation a, Invocation b) {
+                return compareNanos(b.getQueueNanos(), a.getQueueNanos());
+            }
+        }, false);
+    }
+
+    private void writeTop(PrintStream out, String title, Comparator<Invocation> longestFirst, boolean latency) {
+        List<Invocation> sorted = new ArrayList<Invocation>(invocations.values());
+        Collections.sort(sorted, longestFirst);
+        out.println();
+        out.println(title);
+        for (Invocation i : sorted.subList(0, Math.min(TOP, sorted.size()))) {
+            long nanos = latency ? getSchedulingLatency(i) : i.getQueueNanos();
+            if (nanos < 0) {
+                break;
+            }
+            out.printf("%9s  %s %s%n", millis(nanos), i.id, i.job);
+        }
+    }
+
+    private static int compareNanos(long a, long b) {
+        return a < b ? -1 : a == b ? 0 : 1;
+    }
+
+    private static String millis(long nanos) {
+        return nanos < 0 ? "-" : String.valueOf(nanos / 1000000L);
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder joined = new StringBuilder();
+        for (String value : values) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(value);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Parses a flat JSON object with string and number values, as written by {@link FlowJournal}
+     *
+     * @return <code>null</code> if the line is not such an object
+     */
+    /* package */ static Map<String, String> parse(String line) {
+        Map<String, String> fields = new HashMap<String, String>();
+        int[] pos = {skipSpaces(line, 0)};
+        if (!expect(line, pos, '{')) {
+            return null;
+        }
+        if (expect(line, pos, '}')) {
+            return fields;
+        }
+        do {
+            String name = readString(line, pos);
+            if (name == null || !expect(line, pos, ':')) {
+                return null;
+            }
+            String value;
+            if (pos[0] < line.length() && line.charAt(pos[0]) == '"') {
+                value = readString(line, pos);
+            } else {
+                int start = pos[0];
+                while (pos[0] < line.length() && ",} ".indexOf(line.charAt(pos[0])) < 0) {
+                    pos[0]++;
+                }
+                value = line.substring(start, pos[0]);
+                pos[0] = skipSpaces(line, pos[0]);
+            }
+            if (value == null) {
+                return null;
+            }
+            fields.put(name, value);
+        } while (expect(line, pos, ','));
+        return expect(line, pos, '}') ? fields : null;
+    }
+
+    private static boolean expect(String line, int[] pos, char c) {
+        if (pos[0] < line.length() && line.charAt(pos[0]) == c) {
+            pos[0] = skipSpaces(line, pos[0] + 1);
+            return true;
+        }
+        return false;
+    }
+
+    private static int skipSpaces(String line, int pos) {
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static String readString(String line, int[] pos) {
+        if (pos[0] >= line.length() || line.charAt(pos[0]) != '"') {
+            return null;
+        }
+        StringBuilder value = new StringBuilder();
+        int i = pos[0] + 1;
+        while (i < line.length()) {
+            char c = line.charAt(i++);
+            if (c == '"') {
+                pos[0] = skipSpaces(line, i);
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (i >= line.length()) {
+                return null;
+            }
+            char escaped = line.charAt(i++);
+            switch (escaped) {
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 > line.length()) {
+                        return null;
+                    }
+                    value.append((char) Integer.parseInt(line.substring(i, i + 4), 16));
+                    i += 4;
+                    break;
+                default:
+                    value.append(escaped);
+            }
+        }
+        return null;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java " + FlowJournalReplay.class.getName() + " <build dir>/" + FlowJournal.FILE_NAME);
+            System.exit(1);
+        }
+        File file = new File(args[0]);
+        if (file.isDirectory()) {
+            file = new File(file, FlowJournal.FILE_NAME);
+        }
+        read(file).writeReport(System.out);
+    }
+}
@@ -25,6 +25,9 @@
 package com.cloudbees.plugins.flow;
 
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import hudson.Extension;
 import hudson.model.TaskListener;
@@ -32,12 +35,51 @@ import hudson.model.AbstractBuild;
 import hudson.model.Cause;
 import hudson.model.listeners.RunListener;
 
+/**
+ * Routes the events of the builds triggered by a flow to their {@link JobInvocation}.
+ *
+ * Every build of the controller goes through this listener, so builds of projects without any build triggered by a
+ * flow in flight are skipped after a single map lookup, without looking at their causes nor taking any lock.
+ */
 @Extension
 public class FlowListener extends RunListener<AbstractBuild<?, ?>> {
 
+    /**
+     * Number of builds triggered by a flow and not finalized yet, per project full name. Entries are never removed,
+     * there is at most one per project.
+     */
+    private static final ConcurrentMap<String, AtomicInteger> IN_FLIGHT = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /* package */ static void buildScheduled(String project) {
+        AtomicInteger count = IN_FLIGHT.get(project);
+        if (count == null) {
+            AtomicInteger created = new AtomicInteger();
+            count = IN_FLIGHT.putIfAbsent(project, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /* package */ static void buildDone(String project) {
+        AtomicInteger count = IN_FLIGHT.get(project);
+        if (count != null) {
+            count.decrementAndGet();
+        }
+    }
+
+    /* package */ static boolean hasBuildInFlight(String project) {
+        AtomicInteger count = IN_FLIGHT.get(project);
+        return count != null && count.get() > 0;
+    }
+
     @Override
-    public synchronized void onStarted(AbstractBuild<?, ?> startedBuild,
+    public void onStarted(AbstractBuild<?, ?> startedBuild,
             TaskListener listener) {
+        if (!hasBuildInFlight(startedBuild.getParent().getFullName())) {
+            return;
+        }
         List<Cause> causes = startedBuild.getCauses();
         for (Cause cause : causes) {
             if (cause instanceof FlowCause) {
@@ -48,18 +90,38 @@ public class FlowListener extends RunListener<AbstractBuild<?, ?>> {
     }
 
     @Override
-    public synchronized void onCompleted(AbstractBuild<?, ?> finishedBuild,
+    public void onCompleted(AbstractBuild<?, ?> finishedBuild,
             TaskListener listener) {
+        if (!hasBuildInFlight(finishedBuild.getParent().getFullName())) {
+            return;
+        }
         List<Cause> causes = finishedBuild.getCauses();
         for (Cause cause : causes) {
             if (cause instanceof FlowCause) {
-                ((FlowCause) cause).getAssociatedJob().buildCompleted();
+                JobInvocation job = ((FlowCause) cause).getAssociatedJob();
+                recordDuration(job, finishedBuild);
+                job.buildCompleted();
             }
         }
     }
 
+    private void recordDuration(JobInvocation job, AbstractBuild<?, ?> build) {
+        AbstractBuild<?, ?> flowRun = job.getFlowRun();
+        if (!(flowRun instanceof FlowRun)) {
+            return;
+        }
+        long queueMillis = job.getScheduledAt() > 0 ? Math.max(0, build.getTimeInMillis() - job.getScheduledAt()) : 0;
+        long runMillis = build.getDuration() > 0 ? build.getDuration()
+                : Math.max(0, System.currentTimeMillis() - build.getTimeInMillis());
+        ((FlowRun) flowRun).getBuildFlow().getDurationStore().record(job.getName(), queueMillis, runMillis,
+                build.getResult());
+    }
+
     @Override
-    public synchronized void onFinalized(AbstractBuild<?, ?> finalizedBuild) {
+    public void onFinalized(AbstractBuild<?, ?> finalizedBuild) {
+        if (!hasBuildInFlight(finalizedBuild.getParent().getFullName())) {
+            return;
+        }
         List<Cause> causes = finalizedBuild.getCauses();
         for (Cause cause : causes) {
             if (cause instanceof FlowCause) {
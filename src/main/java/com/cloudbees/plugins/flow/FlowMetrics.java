@@ -0,0 +1,196 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import org.jgrapht.DirectedGraph;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Live metrics of the flows, registered in the platform MBean server as {@link #OBJECT_NAME} by
+ * {@link BuildFlowPlugin}.
+ *
+ * Recording is kept off the hot path: the running flows are only registered, the state of their builds and graph
+ * builds is looked at when the gauges are read.
+ */
+public final class FlowMetrics implements FlowMetricsMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger(FlowMetrics.class.getName());
+
+    public static final String OBJECT_NAME = "com.cloudbees.plugins.flow:type=FlowMetrics";
+
+    private static final FlowMetrics INSTANCE = new FlowMetrics();
+
+    private final Set<FlowRun> runs = Collections.newSetFromMap(new ConcurrentHashMap<FlowRun, Boolean>());
+
+    private final LatencyHistogram compileTime = new LatencyHistogram();
+
+    private final LatencyHistogram schedulingLatency = new LatencyHistogram();
+
+    /* package */ FlowMetrics() {
+    }
+
+    public static FlowMetrics get() {
+        return INSTANCE;
+    }
+
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            LOGGER.fine("flow metrics already registered");
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "failed to register the flow metrics", e);
+        }
+    }
+
+    public void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (InstanceNotFoundException e) {
+            // not registered
+        } catch (MalformedObjectNameException e) {
+            throw new AssertionError(e);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "failed to unregister the flow metrics", e);
+        }
+    }
+
+    /* package */ void runStarted(FlowRun run) {
+        runs.add(run);
+    }
+
+    /* package */ void runCompleted(FlowRun run) {
+        runs.remove(run);
+    }
+
+    /* package */ void compiled(long millis) {
+        compileTime.add(millis);
+    }
+
+    /* package */ void buildStarted(long scheduledAt, long startedAt) {
+        schedulingLatency.add(startedAt - scheduledAt);
+    }
+
+    public int getActiveRuns() {
+        return runs.size();
+    }
+
+    public int getQueuedBuilds() {
+        return countBuilds()[0];
+    }
+
+    public int getRunningBuilds() {
+        return countBuilds()[1];
+    }
+
+    public int getCompletingBuilds() {
+        return countBuilds()[2];
+    }
+
+    /**
+     * @return the number of queued, running and completing builds of the running flows
+     */
+    private int[] countBuilds() {
+        int[] counts = new int[3];
+        for (FlowRun run : runs) {
+            DirectedGraph<JobInvocation, FlowRun.JobEdge> graph = run.getJobsGraph();
+            List<JobInvocation> invocations;
+            synchronized (graph) {
+                invocations = new ArrayList<JobInvocation>(graph.vertexSet());
+            }
+            for (JobInvocation job : invocations) {
+                if (job == run.getStartJob() || job.isFinalized() || job.getStartedFuture().isCancelled()) {
+                    continue;
+                }
+                counts[job.isCompleted() ? 2 : job.isStarted() ? 1 : 0]++;
+            }
+        }
+        return counts;
+    }
+
+    public int getGraphBuilds() {
+        int count = 0;
+        for (FlowRun run : runs) {
+            count += run.getGraphBuilds().size();
+        }
+        return count;
+    }
+
+    public int getReadyJobs() {
+        int count = 0;
+        for (FlowRun run : runs) {
+            for (FlowGraphExecutor graphBuild : run.getGraphBuilds()) {
+                count += graphBuild.getReadyCount();
+            }
+        }
+        return count;
+    }
+
+    public int getSchedulerPoolSize() {
+        return BuildFlowPlugin.getScheduler().getPoolSize();
+    }
+
+    public int getSchedulerMaxThreads() {
+        return BuildFlowPlugin.getScheduler().getMaxThreads();
+    }
+
+    public int getSchedulerActiveCount() {
+        return BuildFlowPlugin.getScheduler().getActiveCount();
+    }
+
+    public int getSchedulerQueueDepth() {
+        return BuildFlowPlugin.getScheduler().getQueueDepth();
+    }
+
+    public long getScriptCacheHitCount() {
+        return FlowScriptCache.get().getHitCount();
+    }
+
+    public long getScriptCacheMissCount() {
+        return FlowScriptCache.get().getMissCount();
+    }
+
+    public LatencyHistogram.Snapshot getCompileTime() {
+        return compileTime.snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getSchedulingLatency() {
+        return schedulingLatency.snapshot();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+/**
+ * Gauges and histograms of the plugin, see {@link FlowMetrics}
+ */
+public interface FlowMetricsMXBean {
+
+    /**
+     * @return the number of flows running their DSL
+     */
+    int getActiveRuns();
+
+    /**
+     * @return the number of builds triggered by the running flows and not started yet
+     */
+    int getQueuedBuilds();
+
+    /**
+     * @return the number of builds triggered by the running flows and running
+     */
+    int getRunningBuilds();
+
+    /**
+     * @return the number of builds triggered by the running flows which have a result but are not finalized yet
+     */
+    int getCompletingBuilds();
+
+    /**
+     * @return the number of graph builds in progress
+     */
+    int getGraphBuilds();
+
+    /**
+     * @return the number of jobs of the graph builds in progress which are ready to build but not started yet
+     */
+    int getReadyJobs();
+
+    /**
+     * @return the number of threads of the scheduler of the parallel branches and graph builds, busy or idle
+     */
+    int getSchedulerPoolSize();
+
+    int getSchedulerMaxThreads();
+
+    int getSchedulerActiveCount();
+
+    /**
+     * @return the number of tasks waiting for a thread of the scheduler
+     */
+    int getSchedulerQueueDepth();
+
+    long getScriptCacheHitCount();
+
+    long getScriptCacheMissCount();
+
+    /**
+     * @return the time spent compiling the DSL of the flows not found in the cache
+     */
+    LatencyHistogram.Snapshot getCompileTime();
+
+    /**
+     * @return the time from scheduling a build to its start
+     */
+    LatencyHistogram.Snapshot getSchedulingLatency();
+}
@@ -25,9 +25,11 @@
 package com.cloudbees.plugins.flow;
 
 import com.google.common.base.Optional;
+import hudson.Util;
 import hudson.model.Action;
 import hudson.model.Build;
 import hudson.model.BuildListener;
+import hudson.model.Job;
 import hudson.model.Result;
 import hudson.model.Run;
 import org.jgrapht.DirectedGraph;
@@ -38,10 +40,16 @@ import org.kohsuke.stapler.StaplerResponse;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static hudson.model.Result.FAILURE;
@@ -63,8 +71,46 @@ public class FlowRun extends Build<BuildFlow, FlowRun> {
 
     private JobInvocation.Start startJob;
 
+    /**
+     * Only set for runs recorded before the graph was kept in {@link JobsGraphFile}, moved there on the next save
+     */
     private DirectedGraph<JobInvocation, JobEdge> jobsGraph;
 
+    /**
+     * Graph of the builds of the run, loaded from {@link JobsGraphFile} the first time it is needed
+     */
+    private transient volatile DirectedGraph<JobInvocation, JobEdge> graph;
+
+    /**
+     * Whether {@link #graph} has been read from its file and not changed since, it is not saved again then
+     */
+    private transient volatile boolean graphLoaded;
+
+    /**
+     * First invocation of every job name in {@link #graph}, rebuilt from the graph when the run is loaded
+     */
+    private transient volatile ConcurrentMap<String, JobInvocation> jobsByName;
+
+    /**
+     * Graph builds in progress, to estimate the remaining time
+     */
+    private transient volatile Set<FlowGraphExecutor> graphBuilds;
+
+    /**
+     * Parameters of the jobs triggered by the run by job name, see {@link #getJobParameters(Job)}
+     */
+    private transient volatile ConcurrentMap<String, JobParameters> jobParameters;
+
+    /**
+     * Events of the builds of the run, see {@link #getJournal()}
+     */
+    private transient volatile FlowJournal journal;
+
+    /**
+     * Timings of the builds of the run, see {@link #getTimings()}
+     */
+    private transient volatile FlowTimingAction timings;
+
     private transient ThreadLocal<FlowState> state = new ThreadLocal<FlowState>();
     
     private transient AtomicInteger buildIndex = new AtomicInteger(1);
@@ -77,12 +123,11 @@ public class FlowRun extends Build<BuildFlow, FlowRun> {
     public FlowRun(BuildFlow job) throws IOException {
         super(job);
         setup(job);
+        graph = new SimpleDirectedGraph<JobInvocation, JobEdge>(JobEdge.class);
+        graph.addVertex(startJob);
     }
 
     private void setup(BuildFlow job) {
-        if (jobsGraph == null) {
-            jobsGraph = new SimpleDirectedGraph<JobInvocation, JobEdge>(JobEdge.class);
-        }
         if (startJob == null) {
             startJob = new JobInvocation.Start(this);
         }
@@ -90,7 +135,6 @@ public class FlowRun extends Build<BuildFlow, FlowRun> {
         this.dslFile = job.getDslFile();
         this.buildNeedsWorkspace = job.getBuildNeedsWorkspace();
         startJob.buildStarted(this);
-        jobsGraph.addVertex(startJob);
         state.set(new FlowState(SUCCESS, startJob));
     }
 
@@ -111,6 +155,83 @@ public class FlowRun extends Build<BuildFlow, FlowRun> {
         return job.getBuild();
     }
 
+    /**
+     * @return the journal of the events of the builds of the run, in the build directory
+     */
+    public FlowJournal getJournal() {
+        FlowJournal j = journal;
+        if (j == null) {
+            synchronized (this) {
+                j = journal;
+                if (j == null) {
+                    j = new FlowJournal(new File(getRootDir(), FlowJournal.FILE_NAME));
+                    journal = j;
+                }
+            }
+        }
+        return j;
+    }
+
+    /**
+     * @return the timings of the builds of the run and of its DSL, kept as an action of the run
+     */
+    public FlowTimingAction getTimings() {
+        FlowTimingAction t = timings;
+        if (t == null) {
+            synchronized (this) {
+                t = timings;
+                if (t == null) {
+                    t = getAction(FlowTimingAction.class);
+                    if (t == null) {
+                        t = new FlowTimingAction(getTimeInMillis());
+                        addAction(t);
+                    } else {
+                        t.setJournal(new File(getRootDir(), FlowJournal.FILE_NAME));
+                    }
+                    timings = t;
+                }
+            }
+        }
+        return t;
+    }
+
+    /**
+     * @return the parameters of the job, resolved again only if its configuration has changed since the last build
+     *         of the job triggered by the run
+     */
+    public JobParameters getJobParameters(Job<?, ?> job) {
+        ConcurrentMap<String, JobParameters> cache = jobParameters;
+        if (cache == null) {
+            synchronized (this) {
+                cache = jobParameters;
+                if (cache == null) {
+                    cache = new ConcurrentHashMap<String, JobParameters>();
+                    jobParameters = cache;
+                }
+            }
+        }
+        JobParameters parameters = cache.get(job.getFullName());
+        if (parameters == null || !parameters.isUpToDate(job)) {
+            parameters = JobParameters.of(job);
+            cache.put(job.getFullName(), parameters);
+        }
+        return parameters;
+    }
+
+    /* package */ void journal(FlowJournal.Event event, JobInvocation job, String detail) {
+        getJournal().record(event, job.getId(), job.getName(), job.getBuildNumber(), getBranch(), detail);
+        getTimings().record(event, job.getId(), job.getName(), job.getBuildNumber());
+    }
+
+    /* package */ void journal(FlowJournal.Event event, String jobName, String detail) {
+        getJournal().record(event, null, jobName, 0, getBranch(), detail);
+    }
+
+    private String getBranch() {
+        FlowState current = state.get();
+        return current != null ? current.getBranch() : null;
+    }
+
     /* package */ FlowState getState() {
         return state.get();
     }
@@ -119,8 +240,130 @@ public class FlowRun extends Build<BuildFlow, FlowRun> {
         state.set(s);
     }
 
+    /* package */ void graphBuildStarted(FlowGraphExecutor graphBuild) {
+        getGraphBuilds().add(graphBuild);
+    }
+
+    /* package */ void graphBuildCompleted(FlowGraphExecutor graphBuild) {
+        getGraphBuilds().remove(graphBuild);
+    }
+
+    /**
+     * @return the graph builds in progress
+     */
+    /* package */ Set<FlowGraphExecutor> getGraphBuilds() {
+        Set<FlowGraphExecutor> builds = graphBuilds;
+        if (builds == null) {
+            synchronized (this) {
+                builds = graphBuilds;
+                if (builds == null) {
+                    builds = Collections.newSetFromMap(new ConcurrentHashMap<FlowGraphExecutor, Boolean>());
+                    graphBuilds = builds;
+                }
+            }
+        }
+        return builds;
+    }
+
+    /**
+     * Estimates the time left before the flow completes from the expected duration of the remaining jobs of the
+     * graph builds in progress and of the builds running. Jobs the DSL will trigger later are not known.
+     *
+     * @return the estimated time left in milliseconds, <code>0</code> if the flow is not building
+     */
+    public long getEstimatedRemainingMillis() {
+        if (!isBuilding()) {
+            return 0;
+        }
+        long remaining = 0;
+        for (FlowGraphExecutor graphBuild : getGraphBuilds()) {
+            remaining = Math.max(remaining, graphBuild.estimateRemainingMillis());
+        }
+
+        List<JobInvocation> invocations;
+        DirectedGraph<JobInvocation, JobEdge> g = getJobsGraph();
+        synchronized (g) {
+            invocations = new ArrayList<JobInvocation>(g.vertexSet());
+        }
+        FlowDurationStore store = getBuildFlow().getDurationStore();
+        long now = System.currentTimeMillis();
+        for (JobInvocation job : invocations) {
+            if (job == startJob || job.isCompleted()) {
+                continue;
+            }
+            long expected = store.estimateRunMillis(job.getName());
+            if (expected < 0) {
+                continue;
+            }
+            long elapsed = 0;
+            if (job.isStarted()) {
+                try {
+                    elapsed = now - job.getBuild().getTimeInMillis();
+                } catch (Exception e) {
+                    // the build is there once started
+                }
+            }
+            remaining = Math.max(remaining, expected - elapsed);
+        }
+        return remaining;
+    }
+
+    /**
+     * @return the estimated time left, <code>null</code> if the flow is not building or nothing is known
+     */
+    public String getEstimatedRemainingTime() {
+        long remaining = getEstimatedRemainingMillis();
+        return remaining > 0 ? Util.getTimeSpanString(remaining) : null;
+    }
+
+    /**
+     * @return the graph of the builds of the run, read from {@link JobsGraphFile} on first access for a run loaded
+     *         from disk
+     */
     public DirectedGraph<JobInvocation, JobEdge> getJobsGraph() {
-        return jobsGraph;
+        DirectedGraph<JobInvocation, JobEdge> g = graph;
+        if (g == null) {
+            synchronized (this) {
+                g = graph;
+                if (g == null) {
+                    g = loadJobsGraph();
+                    graph = g;
+                }
+            }
+        }
+        return g;
+    }
+
+    private DirectedGraph<JobInvocation, JobEdge> loadJobsGraph() {
+        if (jobsGraph != null) {
+            DirectedGraph<JobInvocation, JobEdge> legacy = jobsGraph;
+            jobsGraph = null;
+            return legacy;
+        }
+        File file = new File(getRootDir(), JobsGraphFile.FILE_NAME);
+        if (file.exists()) {
+            try {
+                DirectedGraph<JobInvocation, JobEdge> g = JobsGraphFile.read(file, startJob);
+                graphLoaded = true;
+                return g;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "failed to load the graph of the builds of " + this, e);
+            }
+        }
+        DirectedGraph<JobInvocation, JobEdge> g = new SimpleDirectedGraph<JobInvocation, JobEdge>(JobEdge.class);
+        g.addVertex(startJob);
+        return g;
+    }
+
+    @Override
+    public synchronized void save() throws IOException {
+        super.save();
+        DirectedGraph<JobInvocation, JobEdge> g = graph;
+        if (g != null && !graphLoaded) {
+            synchronized (g) {
+                JobsGraphFile.write(g, startJob, new File(getRootDir(), JobsGraphFile.FILE_NAME));
+            }
+        }
     }
 
     public JobInvocation getStartJob() {
@@ -132,49 +375,92 @@ public class FlowRun extends Build<BuildFlow, FlowRun> {
     }
 
     public void doGetDot(StaplerRequest req, StaplerResponse rsp) throws IOException {
-        new DOTExporter().export(rsp.getWriter(), jobsGraph);
+        new DOTExporter().export(rsp.getWriter(), getJobsGraph());
+    }
+
+    public void doGetTimings(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        rsp.setContentType("application/json;charset=UTF-8");
+        getTimings().writeJson(rsp.getWriter());
     }
 
     public Optional<JobInvocation> findJob(String name) {
-        if (jobsGraph != null && !jobsGraph.vertexSet().isEmpty()) {
-            for(JobInvocation ji: jobsGraph.vertexSet()) {
-                if (ji.getName().equals(name)) {
-                    return Optional.of(ji);
+        return Optional.fromNullable(getJobsByName().get(name));
+    }
+
+    private ConcurrentMap<String, JobInvocation> getJobsByName() {
+        ConcurrentMap<String, JobInvocation> index = jobsByName;
+        if (index == null) {
+            DirectedGraph<JobInvocation, JobEdge> g = getJobsGraph();
+            synchronized (g) {
+                index = jobsByName;
+                if (index == null) {
+                    index = new ConcurrentHashMap<String, JobInvocation>();
+                    for (JobInvocation ji : g.vertexSet()) {
+                        index.putIfAbsent(ji.getName(), ji);
+                    }
+                    jobsByName = index;
                 }
             }
         }
+        return index;
+    }
 
-        return Optional.absent();
+    /**
+     * Adds the job to the execution graph. Parents are looked up by name without any lock, only the graph update
+     * itself is serialized.
+     */
+    public void addBuild(JobInvocation job) throws ExecutionException, InterruptedException {
+        FlowState current = state.get();
+        Collection<JobInvocation> parents = getUpstreamOf(job);
+        if (current.getGraph() != null && parents.isEmpty()) {
+            parents = Collections.<JobInvocation>singleton(startJob);
+        }
+        addToGraph(job, parents);
+        if (current.getGraph() == null) {
+            current.setLastCompleted(job);
+        }
+        StringBuilder upstream = new StringBuilder();
+        for (JobInvocation up : parents) {
+            upstream.append(upstream.length() > 0 ? "," : "").append(up.getId());
+        }
+        journal(FlowJournal.Event.SCHEDULED, job, upstream.toString());
     }
 
-    public synchronized void addBuild(JobInvocation job) throws ExecutionException, InterruptedException {
-        jobsGraph.addVertex(job);
-        if (state.get().getGraph() != null) {
-            boolean foundParents = false;
-            if (state.get().getGraph().hasIncomingEdges(job)) {
-                Set<GraphEdge> incomingEdges = state.get().getGraph().getIncomingEdgesOf(job);
-                for (GraphEdge edge: incomingEdges) {
-                    for (JobInvocation vertex: jobsGraph.vertexSet()) {
-                        if (vertex.getName().equals(edge.getSource())) {
-                            foundParents = true;
-                            jobsGraph.addEdge(vertex, job, new JobEdge(vertex, job));
-                            break;
-                        }
-                    }
+    /**
+     * @return the invocations the job will depend on once added, the parents in the graph being built or else the
+     *         last completed ones
+     */
+    /* package */ Collection<JobInvocation> getUpstreamOf(JobInvocation job) {
+        FlowState current = state.get();
+        FlowGraph graph = current.getGraph();
+        if (graph == null) {
+            return current.getLastCompleted();
+        }
+        List<JobInvocation> parents = new ArrayList<JobInvocation>();
+        Set<String> names = graph.getParents(job.getName());
+        if (!names.isEmpty()) {
+            ConcurrentMap<String, JobInvocation> index = getJobsByName();
+            for (String name : names) {
+                JobInvocation parent = index.get(name);
+                if (parent != null) {
+                    parents.add(parent);
                 }
             }
+        }
+        return parents;
+    }
 
-            if (!foundParents) {
-                jobsGraph.addEdge(startJob, job, new JobEdge(startJob, job));
-            }
-
-        } else {
-            for (JobInvocation up : state.get().getLastCompleted()) {
-                String edge = up.getId() + " => " + job.getId();
-                LOGGER.fine("added build to execution graph " + edge);
-                jobsGraph.addEdge(up, job, new JobEdge(up, job));
+    private void addToGraph(JobInvocation job, Collection<JobInvocation> parents) {
+        ConcurrentMap<String, JobInvocation> index = getJobsByName();
+        DirectedGraph<JobInvocation, JobEdge> g = getJobsGraph();
+        synchronized (g) {
+            graphLoaded = false;
+            g.addVertex(job);
+            for (JobInvocation up : parents) {
+                LOGGER.fine("added build to execution graph " + up.getId() + " => " + job.getId());
+                g.addEdge(up, job, new JobEdge(up, job));
             }
-            state.get().setLastCompleted(job);
+            index.putIfAbsent(job.getName(), job);
         }
     }
 
@@ -0,0 +1,319 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the parallel branches and graph builds of every flow on a bounded set of threads shared by the whole plugin.
+ *
+ * Each flow gets its own lane. Lanes are served round robin and a lane never has more than
+ * {@link #getMaxThreadsPerFlow()} tasks running, so one flow fanning out wide cannot starve the others and the
+ * number of threads stays flat however many flows run at once.
+ *
+ * A task which has not been picked up yet is run by the thread waiting for its result, so a branch waiting for nested
+ * branches never waits for a thread to free up.
+ *
+ * Reactions to builds starting and completing run outside of the lanes, see {@link #execute(String, Runnable)}.
+ *
+ * @see BuildFlowPlugin#getScheduler()
+ */
+public class FlowScheduler {
+
+    public static final int DEFAULT_MAX_THREADS = Integer.getInteger(FlowScheduler.class.getName() + ".maxThreads", 64);
+
+    public static final int DEFAULT_MAX_THREADS_PER_FLOW = Integer.getInteger(FlowScheduler.class.getName() + ".maxThreadsPerFlow", 16);
+
+    private final ThreadPoolExecutor carriers;
+
+    private final ThreadPoolExecutor callbacks;
+
+    private final Map<Object, Lane> lanes = new HashMap<Object, Lane>();
+
+    /**
+     * Lanes in the order they are served
+     */
+    private final Queue<Lane> rotation = new ArrayDeque<Lane>();
+
+    private int maxThreads;
+
+    private int maxThreadsPerFlow;
+
+    private int active;
+
+    private int queued;
+
+    public FlowScheduler() {
+        this(DEFAULT_MAX_THREADS, DEFAULT_MAX_THREADS_PER_FLOW);
+    }
+
+    public FlowScheduler(int maxThreads, int maxThreadsPerFlow) {
+        this.maxThreads = maxThreads;
+        this.maxThreadsPerFlow = maxThreadsPerFlow;
+        this.carriers = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new CarrierThreadFactory("BuildFlow scheduler thread #"));
+        this.carriers.allowCoreThreadTimeOut(true);
+        this.callbacks = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new CarrierThreadFactory("BuildFlow callback thread #"));
+    }
+
+    /**
+     * Queues a task in the lane of the given flow.
+     *
+     * @param owner the flow the task belongs to, tasks are shared fairly between owners
+     * @param name  name given to the thread while it runs the task
+     */
+    public <T> Future<T> submit(Object owner, String name, Callable<T> task) {
+        Task<T> t = new Task<T>(name, task);
+        synchronized (this) {
+            Lane lane = lanes.get(owner);
+            if (lane == null) {
+                lane = new Lane(owner);
+                lanes.put(owner, lane);
+                rotation.add(lane);
+            }
+            t.lane = lane;
+            lane.tasks.add(t);
+            queued++;
+            dispatch();
+        }
+        return t;
+    }
+
+    /**
+     * Runs a short task reacting to a build of the flow, without going through its lane. The branches of the flow may
+     * hold every thread of the lane while waiting for the reaction, so it must not wait for one of them to free up.
+     *
+     * @param name name given to the thread while it runs the task
+     */
+    public void execute(String name, Runnable task) {
+        callbacks.execute(new Task<Object>(name, Executors.callable(task)));
+    }
+
+    /**
+     * Hands queued tasks to the carrier threads, one lane after the other, while threads are available
+     */
+    private synchronized void dispatch() {
+        while (active < maxThreads) {
+            Lane lane = nextLane();
+            if (lane == null) {
+                return;
+            }
+            final Task<?> task = lane.tasks.poll();
+            queued--;
+            task.dispatched = true;
+            lane.running++;
+            active++;
+            carriers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        done(task.lane);
+                    }
+                }
+            });
+        }
+    }
+
+    private Lane nextLane() {
+        for (int i = rotation.size(); i > 0; i--) {
+            Lane lane = rotation.poll();
+            rotation.add(lane);
+            if (!lane.tasks.isEmpty() && lane.running < maxThreadsPerFlow) {
+                return lane;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void done(Lane lane) {
+        lane.running--;
+        active--;
+        removeIfIdle(lane);
+        dispatch();
+    }
+
+    private void removeIfIdle(Lane lane) {
+        if (lane.running == 0 && lane.tasks.isEmpty()) {
+            lanes.remove(lane.owner);
+            rotation.remove(lane);
+        }
+    }
+
+    /**
+     * Takes the task out of its lane if no thread has picked it up yet
+     *
+     * @return <code>true</code> if the caller has to run the task itself
+     */
+    private synchronized boolean claim(Task<?> task) {
+        if (task.dispatched || task.isDone()) {
+            return false;
+        }
+        task.dispatched = true;
+        task.lane.tasks.remove(task);
+        queued--;
+        removeIfIdle(task.lane);
+        return true;
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread, all flows included
+     */
+    public synchronized int getQueueDepth() {
+        return queued;
+    }
+
+    /**
+     * @return the number of tasks being run by the scheduler threads
+     */
+    public synchronized int getActiveCount() {
+        return active;
+    }
+
+    /**
+     * @return the number of flows having tasks queued or running
+     */
+    public synchronized int getFlowCount() {
+        return lanes.size();
+    }
+
+    /**
+     * @return the number of threads currently alive, busy or idle
+     */
+    public int getPoolSize() {
+        return carriers.getPoolSize();
+    }
+
+    public synchronized int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public synchronized void setMaxThreads(int maxThreads) {
+        if (maxThreads > this.maxThreads) {
+            carriers.setMaximumPoolSize(maxThreads);
+            carriers.setCorePoolSize(maxThreads);
+        } else {
+            carriers.setCorePoolSize(maxThreads);
+            carriers.setMaximumPoolSize(maxThreads);
+        }
+        this.maxThreads = maxThreads;
+        dispatch();
+    }
+
+    public synchronized int getMaxThreadsPerFlow() {
+        return maxThreadsPerFlow;
+    }
+
+    public synchronized void setMaxThreadsPerFlow(int maxThreadsPerFlow) {
+        this.maxThreadsPerFlow = maxThreadsPerFlow;
+        dispatch();
+    }
+
+    public void shutdown() {
+        carriers.shutdown();
+        callbacks.shutdown();
+    }
+
+    private static final class Lane {
+        private final Object owner;
+        private final Queue<Task<?>> tasks = new ArrayDeque<Task<?>>();
+        private int running;
+
+        private Lane(Object owner) {
+            this.owner = owner;
+        }
+    }
+
+    private final class Task<T> extends FutureTask<T> {
+        private final String name;
+        private Lane lane;
+        private boolean dispatched;
+
+        private Task(String name, Callable<T> callable) {
+            super(callable);
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            Thread thread = Thread.currentThread();
+            String threadName = thread.getName();
+            thread.setName(name);
+            try {
+                super.run();
+            } finally {
+                thread.setName(threadName);
+            }
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            if (claim(this)) {
+                run();
+            }
+            return super.get();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (claim(this)) {
+                run();
+            }
+            return super.get(timeout, unit);
+        }
+    }
+
+    private static final class CarrierThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private CarrierThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = Executors.defaultThreadFactory().newThread(r);
+            thread.setName(prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
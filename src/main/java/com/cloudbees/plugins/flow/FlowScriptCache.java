@@ -0,0 +1,210 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyCodeSource;
+import groovy.lang.Script;
+import hudson.model.Result;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.spring.ClosureScript;
+import jenkins.model.Jenkins;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ImportCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded cache of compiled flow scripts keyed by the SHA-1 of the DSL text.
+ *
+ * Compiling the DSL is the most expensive part of starting a flow and every compilation defines a new class, so
+ * flows that run often share one script class and only get a fresh script instance, bound to their own delegate,
+ * per run. Every class is defined by its own class loader so that it can be unloaded once evicted.
+ */
+public final class FlowScriptCache {
+
+    private static final Logger LOGGER = Logger.getLogger(FlowScriptCache.class.getName());
+
+    /**
+     * Maximum number of compiled scripts kept around.
+     */
+    public static final int MAX_SIZE = Integer.getInteger(FlowScriptCache.class.getName() + ".maxSize", 256);
+
+    private static final FlowScriptCache INSTANCE = new FlowScriptCache(MAX_SIZE);
+
+    private final Cache<String, CompiledScript> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Compiles the scripts to warm, created when first needed and dropped by {@link #shutdown()}
+     */
+    private ExecutorService warmer;
+
+    /* package */ FlowScriptCache(int maxSize) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+    }
+
+    public static FlowScriptCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return a new instance of the compiled DSL, ready to be given a delegate
+     */
+    public ClosureScript newScript(String dsl) throws CompilationFailedException {
+        return (ClosureScript) InvokerHelper.createScript(compile(dsl), new Binding());
+    }
+
+    /**
+     * @return the script class for the DSL, compiled against the current plugins class loader
+     */
+    public Class<? extends Script> compile(String dsl) throws CompilationFailedException {
+        ClassLoader loader = Jenkins.getInstance().getPluginManager().uberClassLoader;
+        String key = hash(dsl);
+        CompiledScript compiled = cache.getIfPresent(key);
+        if (compiled != null && compiled.loader == loader) {
+            hits.incrementAndGet();
+            return compiled.scriptClass;
+        }
+        misses.incrementAndGet();
+        long start = System.currentTimeMillis();
+        compiled = new CompiledScript(loader, parse(loader, dsl, key));
+        FlowMetrics.get().compiled(System.currentTimeMillis() - start);
+        cache.put(key, compiled);
+        return compiled.scriptClass;
+    }
+
+    /**
+     * Compiles the DSL in the background so that the next run finds it in the cache. Errors are left for the run to
+     * report.
+     */
+    public void warm(final String dsl) {
+        if (dsl == null || dsl.trim().length() == 0) {
+            return;
+        }
+        submitWarming(new Runnable() {
+            public void run() {
+                try {
+                    if (cache.getIfPresent(hash(dsl)) == null) {
+                        compile(dsl);
+                    }
+                } catch (Exception e) {
+                    LOGGER.log(Level.FINE, "failed to compile flow script", e);
+                }
+            }
+        });
+    }
+
+    private synchronized void submitWarming(Runnable task) {
+        if (warmer == null) {
+            warmer = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+        }
+        warmer.submit(task);
+    }
+
+    /**
+     * Stops the thread warming the scripts, dropping the scripts still waiting to be compiled. The cache itself is
+     * kept, and the next script to warm starts a new thread.
+     */
+    public synchronized void shutdown() {
+        if (warmer != null) {
+            warmer.shutdownNow();
+            warmer = null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends Script> parse(ClassLoader loader, String dsl, String key) {
+        // parse the script in such a way that it delegates to the flow object as default
+        CompilerConfiguration cc = new CompilerConfiguration();
+        cc.setScriptBaseClass(ClosureScript.class.getName());
+        ImportCustomizer ic = new ImportCustomizer();
+        ic.addStaticStars(Result.class.getName());
+        ic.addStarImports("org.jgrapht");
+        ic.addImports(FailurePolicy.class.getName());
+        cc.addCompilationCustomizers(ic);
+
+        GroovyClassLoader gcl = new GroovyClassLoader(loader, cc);
+        String name = "BuildFlowScript_" + key.substring(0, 12) + ".groovy";
+        return gcl.parseClass(new GroovyCodeSource(dsl, name, "/groovy/shell"), false);
+    }
+
+    /* package */ static String hash(String dsl) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] bytes = digest.digest(dsl.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private static final class CompiledScript {
+        private final ClassLoader loader;
+        private final Class<? extends Script> scriptClass;
+
+        private CompiledScript(ClassLoader loader, Class<? extends Script> scriptClass) {
+            this.loader = loader;
+            this.scriptClass = scriptClass;
+        }
+    }
+}
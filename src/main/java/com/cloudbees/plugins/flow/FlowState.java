@@ -40,6 +40,21 @@ public class FlowState {
 
     private FlowGraph graph;
 
+    /**
+     * Whether builds with the same inputs as a previous successful build reuse it, see {@link BuildAvoidanceIndex}
+     */
+    private boolean buildAvoidance;
+
+    /**
+     * Id of the parallel branch the state belongs to, empty outside of any <code>parallel</code>
+     */
+    private String branch = "";
+
+    /**
+     * Indentation level of the lines printed to the flow console
+     */
+    private int indent;
+
     public FlowState(Result result, Set<JobInvocation> previous) {
         assert result != null;
         this.result = result;
@@ -56,6 +71,9 @@ public class FlowState {
         this.result = state.result;
         this.lastCompleted = state.lastCompleted;
         this.graph = graph;
+        this.buildAvoidance = state.buildAvoidance || graph.getBuildAvoidance();
+        this.branch = state.branch;
+        this.indent = state.indent;
     }
 
     public Result getResult() {
@@ -87,4 +105,28 @@ public class FlowState {
         return graph;
     }
 
+    public boolean isBuildAvoidance() {
+        return buildAvoidance;
+    }
+
+    public void setBuildAvoidance(boolean buildAvoidance) {
+        this.buildAvoidance = buildAvoidance;
+    }
+
+    public String getBranch() {
+        return branch;
+    }
+
+    public void setBranch(String branch) {
+        this.branch = branch;
+    }
+
+    public int getIndent() {
+        return indent;
+    }
+
+    public void setIndent(int indent) {
+        this.indent = indent;
+    }
+
 }
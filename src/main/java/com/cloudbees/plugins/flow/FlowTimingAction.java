@@ -0,0 +1,318 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.model.InvisibleAction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * When the builds of a flow run were scheduled, left the queue, completed and were finalized, and how long the thread
+ * of the flow spent running the DSL rather than waiting for builds. Tells whether a slow flow waits for executors,
+ * for its builds or for its own script.
+ * <p>
+ * Times are in milliseconds from the start of the run, <code>-1</code> until it happens. Only the times of the flow
+ * itself are kept in the build record, the ones of its builds are read back from the {@link FlowJournal} of the run
+ * when first asked for.
+ */
+public class FlowTimingAction extends InvisibleAction {
+
+    private static final Logger LOGGER = Logger.getLogger(FlowTimingAction.class.getName());
+
+    public static class Build {
+        private final String id;
+        private final String job;
+        private int number;
+        private boolean reused;
+        private long scheduled = -1;
+        private long started = -1;
+        private long completed = -1;
+        private long finalized = -1;
+
+        private Build(String id, String job) {
+            this.id = id;
+            this.job = job;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getJob() {
+            return job;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * @return <code>true</code> if a previous build has been reused, see {@link BuildAvoidanceIndex}
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        public long getScheduled() {
+            return scheduled;
+        }
+
+        public long getStarted() {
+            return started;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        public long getFinalized() {
+            return finalized;
+        }
+
+        /**
+         * @return the time spent in the queue, <code>-1</code> if the build has not started
+         */
+        public long getQueueMillis() {
+            return scheduled >= 0 && started >= 0 ? started - scheduled : -1;
+        }
+
+        /**
+         * @return the time from the start of the build to its finalization, <code>-1</code> if not finalized
+         */
+        public long getRunMillis() {
+            return started >= 0 && finalized >= 0 ? finalized - started : -1;
+        }
+    }
+
+    /**
+     * Start of the run, the origin of the times
+     */
+    private final long origin;
+
+    /**
+     * <code>null</code> until read back from the journal once loaded
+     */
+    private transient List<Build> builds = new ArrayList<Build>();
+
+    private transient File journal;
+
+    private long dslMillis = -1;
+
+    private long waitMillis;
+
+    private transient Map<String, Build> buildsById;
+
+    // tracks the waits of the thread of the flow, which is the only one to change these
+    private transient Thread flowThread;
+    private transient long dslStartedAt;
+    private transient int waitDepth;
+    private transient long waitStartedAt;
+
+    public FlowTimingAction(long origin) {
+        this.origin = origin;
+    }
+
+    /**
+     * Records the time of the events of the builds found in the journal of the run
+     */
+    /* package */ synchronized void record(FlowJournal.Event event, String id, String job, int number) {
+        if (buildsById == null) {
+            buildsById = new HashMap<String, Build>();
+            for (Build build : getLoadedBuilds()) {
+                buildsById.put(build.id, build);
+            }
+        }
+        Build build = buildsById.get(id);
+        if (build == null) {
+            build = new Build(id, job);
+            builds.add(build);
+            buildsById.put(id, build);
+        }
+        long t = now();
+        switch (event) {
+            case SCHEDULED:
+                build.scheduled = t;
+                break;
+            case STARTED:
+                build.started = t;
+                build.number = number;
+                break;
+            case COMPLETED:
+                build.completed = t;
+                break;
+            case FINALIZED:
+                build.finalized = t;
+                break;
+            case REUSED:
+                build.reused = true;
+                break;
+            default:
+        }
+    }
+
+    /**
+     * Called by the thread of the flow before running the DSL
+     */
+    /* package */ void dslStarted() {
+        flowThread = Thread.currentThread();
+        dslStartedAt = now();
+        waitDepth = 0;
+    }
+
+    /**
+     * Called by the thread of the flow once the DSL is over
+     */
+    /* package */ synchronized void dslCompleted() {
+        if (flowThread == Thread.currentThread()) {
+            dslMillis = Math.max(0, now() - dslStartedAt - waitMillis);
+            flowThread = null;
+        }
+    }
+
+    /**
+     * Called before waiting for builds or branches. Only the waits of the thread of the flow count, the outermost
+     * one when they are nested.
+     */
+    /* package */ void waitStarted() {
+        if (flowThread == Thread.currentThread() && waitDepth++ == 0) {
+            waitStartedAt = now();
+        }
+    }
+
+    /* package */ synchronized void waitCompleted() {
+        if (flowThread == Thread.currentThread() && --waitDepth == 0) {
+            waitMillis += now() - waitStartedAt;
+        }
+    }
+
+    private long now() {
+        return System.currentTimeMillis() - origin;
+    }
+
+    /**
+     * Tells a loaded action where to read the times of the builds from
+     */
+    /* package */ synchronized void setJournal(File journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * @return the builds recorded so far, read back from the journal if the action has been loaded
+     */
+    private List<Build> getLoadedBuilds() {
+        if (builds == null) {
+            builds = new ArrayList<Build>();
+            if (journal != null && journal.exists()) {
+                try {
+                    for (FlowJournalReplay.Invocation invocation : FlowJournalReplay.read(journal).getInvocations()) {
+                        Build build = new Build(invocation.getId(), invocation.getJob());
+                        build.number = invocation.getBuild();
+                        build.reused = invocation.isReused();
+                        build.scheduled = fromJournal(invocation.getScheduled());
+                        build.started = fromJournal(invocation.getStarted());
+                        build.completed = fromJournal(invocation.getCompleted());
+                        build.finalized = fromJournal(invocation.getFinalized());
+                        builds.add(build);
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "failed to read the timings of the builds from " + journal, e);
+                }
+            }
+        }
+        return builds;
+    }
+
+    /**
+     * @param nanos nanoseconds since the epoch, <code>-1</code> if unknown
+     */
+    private long fromJournal(long nanos) {
+        return nanos >= 0 ? Math.max(0, nanos / 1000000L - origin) : -1;
+    }
+
+    public synchronized List<Build> getBuilds() {
+        return new ArrayList<Build>(getLoadedBuilds());
+    }
+
+    /**
+     * @return the time the thread of the flow spent running the DSL, <code>-1</code> until the DSL is over
+     */
+    public synchronized long getDslMillis() {
+        return dslMillis;
+    }
+
+    /**
+     * @return the time the thread of the flow spent waiting for builds and parallel branches
+     */
+    public synchronized long getWaitMillis() {
+        return waitMillis;
+    }
+
+    /**
+     * Writes the timings as a JSON object, with the total time spent in the queue and running by the builds
+     */
+    public void writeJson(Writer out) throws IOException {
+        List<Build> snapshot;
+        long dsl;
+        long wait;
+        synchronized (this) {
+            snapshot = new ArrayList<Build>(getLoadedBuilds());
+            dsl = dslMillis;
+            wait = waitMillis;
+        }
+        long queueMillis = 0;
+        long runMillis = 0;
+        StringBuilder json = new StringBuilder(128 + 160 * snapshot.size());
+        json.append("{\"origin\":").append(origin)
+                .append(",\"dslMillis\":").append(dsl)
+                .append(",\"waitMillis\":").append(wait)
+                .append(",\"builds\":[");
+        for (int i = 0; i < snapshot.size(); i++) {
+            Build build = snapshot.get(i);
+            queueMillis += Math.max(0, build.getQueueMillis());
+            runMillis += Math.max(0, build.getRunMillis());
+            json.append(i > 0 ? ",{" : "{").append("\"number\":").append(build.number)
+                    .append(",\"scheduled\":").append(build.scheduled)
+                    .append(",\"started\":").append(build.started)
+                    .append(",\"completed\":").append(build.completed)
+                    .append(",\"finalized\":").append(build.finalized)
+                    .append(",\"reused\":").append(build.reused);
+            FlowJournal.appendField(json, "id", build.id);
+            FlowJournal.appendField(json, "job", build.job);
+            json.append('}');
+        }
+        json.append("],\"queueMillis\":").append(queueMillis)
+                .append(",\"runMillis\":").append(runMillis)
+                .append('}');
+        out.write(json.toString());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import hudson.model.Result;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A build of a job of a graph, as handled by {@link FlowGraphExecutor}: a {@link JobInvocation} for Jenkins jobs, a
+ * simulated build for {@link GraphSimulation}.
+ */
+public interface GraphBuild {
+
+    String getName();
+
+    boolean isStarted();
+
+    /**
+     * @return when the build started according to the clock of its {@link GraphBuildBackend}, <code>0</code> if it
+     *         has not started yet
+     */
+    long getStartTimeMillis();
+
+    /**
+     * Waits for the build to complete.
+     */
+    Result getResult() throws ExecutionException, InterruptedException;
+
+    /**
+     * Completed once the build has left the queue and started, cancelled if it is removed from the queue.
+     */
+    ListenableFuture<? extends GraphBuild> getStartedFuture();
+
+    /**
+     * Completed once the build is over, post build steps included.
+     */
+    ListenableFuture<? extends GraphBuild> getFinalizedFuture();
+
+    /**
+     * Removes the build from the queue or interrupts it. The finalized future completes once the build is over.
+     *
+     * @return <code>true</code> if the build was aborted
+     */
+    boolean abort();
+}
@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the builds of a {@link FlowGraphExecutor}: the builds of the jobs of a flow, or simulated builds with
+ * {@link GraphSimulation}.
+ */
+public interface GraphBuildBackend {
+
+    enum Note {
+        PLAIN, NOTICE, SUCCESS, ERROR
+    }
+
+    /**
+     * Schedules a build of the job, which is reported through the futures of the returned build.
+     */
+    GraphBuild schedule(String job, Map<String, ?> params) throws Exception;
+
+    /**
+     * Runs the reactions to builds starting and completing, through {@link #runInContext(Runnable)}
+     */
+    Executor getCallbackExecutor();
+
+    /**
+     * Runs a reaction to a build starting or completing with the context the graph build was started with.
+     */
+    void runInContext(Runnable task);
+
+    /**
+     * @return the current time, compared to {@link GraphBuild#getStartTimeMillis()}
+     */
+    long currentTimeMillis();
+
+    /**
+     * @return the expected duration of a build of the job, <code>-1</code> if unknown
+     */
+    long estimateDuration(String job);
+
+    /**
+     * Aborts the builds all at once, see {@link GraphBuild#abort()}
+     *
+     * @return the builds which have been aborted
+     */
+    Collection<GraphBuild> abort(Collection<GraphBuild> builds);
+
+    void started(GraphBuild build);
+
+    void finalized(GraphBuild build);
+
+    /**
+     * @return how the build is shown in the messages of the graph build
+     */
+    String describe(GraphBuild build);
+
+    void log(Note note, String message);
+
+    void journal(FlowJournal.Event event, String job, String detail);
+
+    void graphBuildStarted(FlowGraphExecutor executor);
+
+    void graphBuildCompleted(FlowGraphExecutor executor);
+
+    /**
+     * Called once every build is over if any has failed
+     */
+    void failed();
+}
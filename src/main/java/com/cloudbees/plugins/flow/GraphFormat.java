@@ -0,0 +1,314 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary format of a {@link FlowGraph}, quicker to load than a property file and able to carry the weight, label and
+ * parameters of every vertex.
+ *
+ * <pre>
+ * int     magic "BFGR"
+ * short   version
+ * int     number of vertices, then for each vertex in topological order:
+ *   UTF     name
+ *   byte    which of the following are present: 1 weight, 2 label, 4 parameters
+ *   long    weight in milliseconds
+ *   UTF     label
+ *   int     number of parameters, then the name and value of each as UTF
+ * int     number of edges, then for each edge:
+ *   int     id of the source, i.e. its position in the vertices
+ *   int     id of the target, always greater than the id of the source
+ * int     CRC32 of all the above
+ * </pre>
+ *
+ * As vertices come in topological order, a graph is loaded without checking it for cycles and its reachability index
+ * is computed in a single pass. Files can be converted from the property format with
+ * <code>java -cp build-flow.jar com.cloudbees.plugins.flow.GraphFormat graph.properties graph.bfg</code>.
+ */
+public final class GraphFormat {
+
+    public static final int MAGIC = 0x42464752;
+
+    public static final int VERSION = 1;
+
+    private static final int WEIGHT = 1;
+
+    private static final int LABEL = 2;
+
+    private static final int PARAMS = 4;
+
+    private GraphFormat() {
+    }
+
+    /**
+     * @return <code>true</code> if the content starts like a graph in this format
+     */
+    public static boolean isGraphFormat(byte[] content) {
+        return content.length >= 4
+                && ((content[0] & 0xff) << 24 | (content[1] & 0xff) << 16 | (content[2] & 0xff) << 8 | (content[3] & 0xff)) == MAGIC;
+    }
+
+    /**
+     * Reads a graph either in this format or as a property file, see
+     * {@link FlowGraph#createFromPropertyFile(InputStream)}
+     */
+    public static FlowGraph load(InputStream in) throws IOException {
+        InputStream buffered = in.markSupported() ? in : new BufferedInputStream(in);
+        buffered.mark(4);
+        byte[] head = new byte[4];
+        int read = 0;
+        for (int n; read < head.length && (n = buffered.read(head, read, head.length - read)) > 0; ) {
+            read += n;
+        }
+        buffered.reset();
+        if (read == head.length && isGraphFormat(head)) {
+            return read(buffered);
+        }
+        return FlowGraph.createFromPropertyFile(buffered);
+    }
+
+    public static void write(FlowGraph graph, OutputStream out) throws IOException {
+        List<String> vertices = topologicalOrder(graph);
+        Map<String, Integer> ids = new HashMap<String, Integer>(vertices.size() * 2);
+        for (String vertex : vertices) {
+            ids.put(vertex, ids.size());
+        }
+
+        CRC32 crc = new CRC32();
+        DataOutputStream data = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(out), crc));
+        data.writeInt(MAGIC);
+        data.writeShort(VERSION);
+        data.writeInt(vertices.size());
+        int edges = 0;
+        for (String vertex : vertices) {
+            Long weight = graph.getWeight(vertex);
+            String label = graph.getLabel(vertex);
+            Map<String, String> params = graph.getParams(vertex);
+            data.writeUTF(vertex);
+            data.writeByte((weight != null ? WEIGHT : 0) | (label != null ? LABEL : 0) | (params != null ? PARAMS : 0));
+            if (weight != null) {
+                data.writeLong(weight);
+            }
+            if (label != null) {
+                data.writeUTF(label);
+            }
+            if (params != null) {
+                data.writeInt(params.size());
+                for (Map.Entry<String, String> param : params.entrySet()) {
+                    data.writeUTF(param.getKey());
+                    data.writeUTF(String.valueOf(param.getValue()));
+                }
+            }
+            edges += graph.getChildren(vertex).size();
+        }
+        data.writeInt(edges);
+        for (String vertex : vertices) {
+            for (String child : graph.getChildren(vertex)) {
+                data.writeInt(ids.get(vertex));
+                data.writeInt(ids.get(child));
+            }
+        }
+        data.flush();
+        DataOutputStream trailer = new DataOutputStream(out);
+        trailer.writeInt((int) crc.getValue());
+        trailer.flush();
+    }
+
+    public static FlowGraph read(InputStream in) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream buffered = in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+        CheckedInputStream checked = new CheckedInputStream(buffered, crc);
+        DataInputStream data = new DataInputStream(checked);
+        try {
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Not a graph definition");
+            }
+            int version = data.readUnsignedShort();
+            if (version > VERSION) {
+                throw new IOException("Unsupported graph definition version " + version + ", at most " + VERSION
+                        + " is supported");
+            }
+
+            int count = data.readInt();
+            if (count < 0) {
+                throw new IOException("Corrupted graph definition");
+            }
+            String[] vertices = new String[count];
+            Map<String, Long> weights = new HashMap<String, Long>();
+            Map<String, String> labels = new HashMap<String, String>();
+            Map<String, Map<String, String>> params = new HashMap<String, Map<String, String>>();
+            for (int v = 0; v < count; v++) {
+                String vertex = data.readUTF();
+                vertices[v] = vertex;
+                int present = data.readByte();
+                if ((present & WEIGHT) != 0) {
+                    weights.put(vertex, data.readLong());
+                }
+                if ((present & LABEL) != 0) {
+                    labels.put(vertex, data.readUTF());
+                }
+                if ((present & PARAMS) != 0) {
+                    Map<String, String> own = new HashMap<String, String>();
+                    for (int i = data.readInt(); i > 0; i--) {
+                        own.put(data.readUTF(), data.readUTF());
+                    }
+                    params.put(vertex, own);
+                }
+            }
+
+            int edges = data.readInt();
+            if (edges < 0) {
+                throw new IOException("Corrupted graph definition");
+            }
+            int[] sources = new int[edges];
+            int[] targets = new int[edges];
+            int[] outDegree = new int[count];
+            for (int e = 0; e < edges; e++) {
+                sources[e] = data.readInt();
+                targets[e] = data.readInt();
+                if (sources[e] < 0 || sources[e] >= targets[e] || targets[e] >= count) {
+                    throw new IOException("Corrupted graph definition, edge " + sources[e] + " -> " + targets[e]
+                            + " does not follow the topological order");
+                }
+                outDegree[sources[e]]++;
+            }
+
+            long expected = crc.getValue();
+            if ((int) expected != data.readInt()) {
+                throw new IOException("Corrupted graph definition, checksum mismatch");
+            }
+
+            int[][] children = new int[count][];
+            for (int v = 0; v < count; v++) {
+                children[v] = new int[outDegree[v]];
+                outDegree[v] = 0;
+            }
+            for (int e = 0; e < edges; e++) {
+                children[sources[e]][outDegree[sources[e]]++] = targets[e];
+            }
+
+            FlowGraph graph;
+            try {
+                graph = FlowGraph.createFromTopology(vertices, children);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupted graph definition, " + e.getMessage());
+            }
+            for (Map.Entry<String, Long> weight : weights.entrySet()) {
+                graph.withWeight(weight.getKey(), weight.getValue());
+            }
+            for (Map.Entry<String, String> label : labels.entrySet()) {
+                graph.withLabel(label.getKey(), label.getValue());
+            }
+            for (Map.Entry<String, Map<String, String>> own : params.entrySet()) {
+                graph.withParams(own.getKey(), own.getValue());
+            }
+            return graph;
+        } catch (EOFException e) {
+            throw new IOException("Truncated graph definition");
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the graph has a cycle
+     */
+    private static List<String> topologicalOrder(FlowGraph graph) {
+        Set<String> vertices = graph.getVertices();
+        Map<String, Integer> inDegree = new HashMap<String, Integer>(vertices.size() * 2);
+        for (String vertex : vertices) {
+            for (String child : graph.getChildren(vertex)) {
+                Integer degree = inDegree.get(child);
+                inDegree.put(child, degree == null ? 1 : degree + 1);
+            }
+        }
+        List<String> order = new ArrayList<String>(vertices.size());
+        for (String vertex : vertices) {
+            if (!inDegree.containsKey(vertex)) {
+                order.add(vertex);
+            }
+        }
+        for (int head = 0; head < order.size(); head++) {
+            for (String child : graph.getChildren(order.get(head))) {
+                int degree = inDegree.get(child) - 1;
+                inDegree.put(child, degree);
+                if (degree == 0) {
+                    order.add(child);
+                }
+            }
+        }
+        if (order.size() != vertices.size()) {
+            Set<String> cycle = new HashSet<String>(vertices);
+            cycle.removeAll(order);
+            throw new IllegalArgumentException("Only graphs without cycles can be stored, " + cycle + " are on a cycle");
+        }
+        return order;
+    }
+
+    /**
+     * Converts a property file, see {@link FlowGraph#createFromPropertyFile(InputStream, boolean)}
+     */
+    public static void main(String[] args) throws IOException {
+        boolean inverse = args.length == 3 && "--inverse".equals(args[0]);
+        if (args.length != (inverse ? 3 : 2)) {
+            System.err.println("Usage: java " + GraphFormat.class.getName() + " [--inverse] <graph.properties> <graph.bfg>");
+            System.exit(1);
+        }
+        int first = inverse ? 1 : 0;
+        FlowGraph graph;
+        InputStream in = new FileInputStream(new File(args[first]));
+        try {
+            graph = FlowGraph.createFromPropertyFile(in, inverse);
+        } finally {
+            in.close();
+        }
+        OutputStream out = new FileOutputStream(new File(args[first + 1]));
+        try {
+            write(graph, out);
+        } finally {
+            out.close();
+        }
+        System.out.println("Wrote " + graph.getVertices().size() + " vertices to " + args[first + 1]);
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import org.jgrapht.DirectedGraph;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable transitive closure of a {@link FlowGraph}.
+ *
+ * Vertices are interned to integer ids and every vertex keeps a bit set of its descendants and another one of its
+ * ancestors, so ancestor/descendant queries are answered without walking the graph.
+ */
+public final class GraphReachability {
+
+    private final Map<String, Integer> ids;
+
+    private final String[] names;
+
+    private final BitSet[] descendants;
+
+    private final BitSet[] ancestors;
+
+    private GraphReachability(String[] names, Map<String, Integer> ids, BitSet[] descendants, BitSet[] ancestors) {
+        this.names = names;
+        this.ids = ids;
+        this.descendants = descendants;
+        this.ancestors = ancestors;
+    }
+
+    /**
+     * Computes the closure of the given graph. Acyclic graphs are processed in topological order with one bit set
+     * union per edge, graphs containing a cycle fall back to a traversal from every vertex.
+     */
+    public static <E> GraphReachability of(DirectedGraph<String, E> graph) {
+        Set<String> vertices = graph.vertexSet();
+        int n = vertices.size();
+
+        String[] names = new String[n];
+        Map<String, Integer> ids = new HashMap<String, Integer>(n * 2);
+        int id = 0;
+        for (String vertex : vertices) {
+            names[id] = vertex;
+            ids.put(vertex, id++);
+        }
+
+        int[][] children = new int[n][];
+        int[] inDegree = new int[n];
+        for (int v = 0; v < n; v++) {
+            Set<E> edges = graph.outgoingEdgesOf(names[v]);
+            children[v] = new int[edges.size()];
+            int i = 0;
+            for (E edge : edges) {
+                int child = ids.get(graph.getEdgeTarget(edge));
+                children[v][i++] = child;
+                inDegree[child]++;
+            }
+        }
+
+        int[] order = topologicalOrder(children, inDegree);
+        if (order != null) {
+            return closure(names, ids, children, order);
+        }
+
+        // the graph has a cycle, traverse it from every vertex
+        BitSet[] descendants = newBitSets(n);
+        BitSet[] ancestors = newBitSets(n);
+        Deque<Integer> stack = new ArrayDeque<Integer>();
+        for (int v = 0; v < n; v++) {
+            BitSet reached = descendants[v];
+            stack.push(v);
+            while (!stack.isEmpty()) {
+                for (int child : children[stack.pop()]) {
+                    if (!reached.get(child)) {
+                        reached.set(child);
+                        stack.push(child);
+                    }
+                }
+            }
+            // a vertex is never its own parent, even when it sits on a cycle
+            reached.clear(v);
+            for (int d = reached.nextSetBit(0); d >= 0; d = reached.nextSetBit(d + 1)) {
+                ancestors[d].set(v);
+            }
+        }
+
+        return new GraphReachability(names, ids, descendants, ancestors);
+    }
+
+    /**
+     * Computes the closure of a graph whose vertices are already numbered in topological order, i.e. every child has
+     * a greater id than its parents, as stored by {@link GraphFormat}. No topological sort is needed.
+     *
+     * @param names    the vertices by id
+     * @param children the ids of the children of every vertex
+     * @throws IllegalArgumentException if a child does not come after its parent or a vertex is there twice
+     */
+    public static GraphReachability ofTopological(String[] names, int[][] children) {
+        int n = names.length;
+        Map<String, Integer> ids = new HashMap<String, Integer>(n * 2);
+        int[] order = new int[n];
+        for (int v = 0; v < n; v++) {
+            if (ids.put(names[v], v) != null) {
+                throw new IllegalArgumentException("vertex " + names[v] + " is there twice");
+            }
+            order[v] = v;
+            for (int child : children[v]) {
+                if (child <= v || child >= n) {
+                    throw new IllegalArgumentException("vertex " + child + " is not after its parent " + v);
+                }
+            }
+        }
+        return closure(names, ids, children, order);
+    }
+
+    private static GraphReachability closure(String[] names, Map<String, Integer> ids, int[][] children, int[] order) {
+        int n = names.length;
+        BitSet[] descendants = newBitSets(n);
+        BitSet[] ancestors = newBitSets(n);
+        for (int i = n - 1; i >= 0; i--) {
+            int v = order[i];
+            for (int child : children[v]) {
+                descendants[v].set(child);
+                descendants[v].or(descendants[child]);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            int v = order[i];
+            for (int child : children[v]) {
+                ancestors[child].set(v);
+                ancestors[child].or(ancestors[v]);
+            }
+        }
+        return new GraphReachability(names, ids, descendants, ancestors);
+    }
+
+    private static BitSet[] newBitSets(int n) {
+        BitSet[] sets = new BitSet[n];
+        for (int v = 0; v < n; v++) {
+            sets[v] = new BitSet(n);
+        }
+        return sets;
+    }
+
+    /**
+     * @return vertices in topological order, or <code>null</code> if the graph has a cycle
+     */
+    private static int[] topologicalOrder(int[][] children, int[] inDegree) {
+        int n = children.length;
+        int[] remaining = inDegree.clone();
+        int[] order = new int[n];
+        int head = 0, tail = 0;
+        for (int v = 0; v < n; v++) {
+            if (remaining[v] == 0) {
+                order[tail++] = v;
+            }
+        }
+        while (head < tail) {
+            for (int child : children[order[head++]]) {
+                if (--remaining[child] == 0) {
+                    order[tail++] = child;
+                }
+            }
+        }
+        return tail == n ? order : null;
+    }
+
+    /**
+     * @return the interned id of the vertex or <code>-1</code> if the vertex is not part of the graph
+     */
+    public int idOf(String vertex) {
+        Integer id = ids.get(vertex);
+        return id != null ? id : -1;
+    }
+
+    public String nameOf(int id) {
+        return names[id];
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @return <code>true</code> if there is a non empty path from source to target
+     */
+    public boolean pathExists(String source, String target) {
+        int s = idOf(source);
+        int t = idOf(target);
+        return s >= 0 && t >= 0 && descendants[s].get(t);
+    }
+
+    /**
+     * @return <code>true</code> if any of the jobs, other than the vertex itself, is an ancestor of the vertex
+     */
+    public boolean isChildOfAny(String vertex, Iterable<String> jobs) {
+        return containsAny(ancestors, vertex, jobs);
+    }
+
+    /**
+     * @return <code>true</code> if any of the jobs, other than the vertex itself, is a descendant of the vertex
+     */
+    public boolean isParentOfAny(String vertex, Iterable<String> jobs) {
+        return containsAny(descendants, vertex, jobs);
+    }
+
+    private boolean containsAny(BitSet[] closure, String vertex, Iterable<String> jobs) {
+        int v = idOf(vertex);
+        if (v < 0) {
+            return false;
+        }
+        BitSet related = closure[v];
+        if (related.isEmpty()) {
+            return false;
+        }
+        for (String job : jobs) {
+            int j = idOf(job);
+            if (j >= 0 && j != v && related.get(j)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a copy of the ids of every vertex reachable from the given one
+     */
+    public BitSet descendantsOf(String vertex) {
+        int v = idOf(vertex);
+        return v >= 0 ? (BitSet) descendants[v].clone() : new BitSet();
+    }
+
+    /**
+     * @return a copy of the ids of every vertex the given one can be reached from
+     */
+    public BitSet ancestorsOf(String vertex) {
+        int v = idOf(vertex);
+        return v >= 0 ? (BitSet) ancestors[v].clone() : new BitSet();
+    }
+}
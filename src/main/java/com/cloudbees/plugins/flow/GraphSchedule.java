@@ -0,0 +1,297 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Kahn style ready queue over the jobs of a {@link FlowGraph} that have to be built.
+ *
+ * Every job keeps the number of its unfinished predecessors and is released into the ready queue the moment that
+ * number drops to zero, so completing a job costs time proportional to the number of its dependants rather than to
+ * the size of the graph. A job depends on another one if there is a path between them in the graph which does not
+ * go through any other job to be built.
+ *
+ * When given the expected duration of the jobs, ready jobs are handed out longest remaining critical path first: the
+ * rank of a job is its own duration plus the highest rank of its dependants, so long chains start as early as
+ * possible when executors are scarce. Otherwise ready jobs are handed out in the order they have been released.
+ *
+ * Not thread safe, callers are expected to synchronize.
+ */
+public class GraphSchedule {
+
+    private final Set<String> jobs;
+
+    private final Map<String, List<String>> dependants = new HashMap<String, List<String>>();
+
+    private final Map<String, Integer> unfinishedPredecessors = new HashMap<String, Integer>();
+
+    private final Map<String, Long> ranks = new HashMap<String, Long>();
+
+    private final Queue<String> ready;
+
+    private final Set<String> finished = new HashSet<String>();
+
+    private final Set<String> skipped = new LinkedHashSet<String>();
+
+    private int notStarted;
+
+    public GraphSchedule(FlowGraph graph, Collection<String> jobsToBuild) {
+        this(graph, jobsToBuild, null);
+    }
+
+    /**
+     * @param durations expected duration of the jobs, jobs without any get the average one. <code>null</code> to
+     *                  hand out ready jobs in the order they are released
+     */
+    public GraphSchedule(FlowGraph graph, Collection<String> jobsToBuild, Map<String, Long> durations) {
+        this.jobs = Collections.unmodifiableSet(new LinkedHashSet<String>(jobsToBuild));
+        this.notStarted = jobs.size();
+        if (durations == null) {
+            this.ready = new ArrayDeque<String>();
+        } else {
+            final Map<String, Integer> order = new HashMap<String, Integer>();
+            for (String job : jobs) {
+                order.put(job, order.size());
+            }
+            this.ready = new PriorityQueue<String>(Math.max(1, jobs.size()), new Comparator<String>() {
+                public int compare(String a, String b) {
+                    long rankA = ranks.get(a);
+                    long rankB = ranks.get(b);
+                    if (rankA != rankB) {
+                        return rankA > rankB ? -1 : 1;
+                    }
+                    return order.get(a) - order.get(b);
+                }
+            });
+        }
+
+        for (String job : jobs) {
+            unfinishedPredecessors.put(job, 0);
+        }
+        for (String job : jobs) {
+            List<String> jobDependants = collectDependants(graph, job);
+            dependants.put(job, jobDependants);
+            for (String dependant : jobDependants) {
+                unfinishedPredecessors.put(dependant, unfinishedPredecessors.get(dependant) + 1);
+            }
+        }
+        if (durations != null) {
+            computeRanks(durations);
+        }
+        for (String job : jobs) {
+            if (unfinishedPredecessors.get(job) == 0) {
+                ready.add(job);
+            }
+        }
+    }
+
+    /**
+     * Ranks the jobs in reverse topological order. Jobs on a cycle, which can never be built anyway, are only
+     * ranked by their own duration.
+     */
+    private void computeRanks(Map<String, Long> durations) {
+        long known = 0;
+        int knownCount = 0;
+        for (String job : jobs) {
+            Long duration = durations.get(job);
+            if (duration != null && duration > 0) {
+                known += duration;
+                knownCount++;
+            }
+        }
+        long defaultDuration = knownCount > 0 ? known / knownCount : 1;
+
+        Map<String, Integer> remaining = new HashMap<String, Integer>(unfinishedPredecessors);
+        List<String> order = new ArrayList<String>(jobs.size());
+        for (String job : jobs) {
+            if (remaining.get(job) == 0) {
+                order.add(job);
+            }
+        }
+        for (int i = 0; i < order.size(); i++) {
+            for (String dependant : dependants.get(order.get(i))) {
+                int left = remaining.get(dependant) - 1;
+                remaining.put(dependant, left);
+                if (left == 0) {
+                    order.add(dependant);
+                }
+            }
+        }
+
+        for (String job : jobs) {
+            Long duration = durations.get(job);
+            ranks.put(job, duration != null && duration > 0 ? duration : defaultDuration);
+        }
+        for (int i = order.size() - 1; i >= 0; i--) {
+            String job = order.get(i);
+            long longestDependant = 0;
+            for (String dependant : dependants.get(job)) {
+                longestDependant = Math.max(longestDependant, ranks.get(dependant));
+            }
+            ranks.put(job, ranks.get(job) + longestDependant);
+        }
+    }
+
+    /**
+     * Walks down from the job until it reaches other jobs to be built, going through the vertices which are not built
+     */
+    private List<String> collectDependants(FlowGraph graph, String job) {
+        List<String> found = new ArrayList<String>();
+        Set<String> visited = new HashSet<String>();
+        Deque<String> toVisit = new ArrayDeque<String>(graph.getChildren(job));
+        while (!toVisit.isEmpty()) {
+            String vertex = toVisit.pop();
+            if (!visited.add(vertex)) {
+                continue;
+            }
+            if (jobs.contains(vertex)) {
+                found.add(vertex);
+            } else {
+                toVisit.addAll(graph.getChildren(vertex));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the next job whose predecessors have all finished, or <code>null</code> if there is none right now
+     */
+    public String poll() {
+        String job = ready.poll();
+        if (job != null) {
+            notStarted--;
+        }
+        return job;
+    }
+
+    /**
+     * Marks the job as finished and releases its dependants which do not wait for anything else.
+     *
+     * @return the released jobs
+     */
+    public List<String> complete(String job) {
+        if (!jobs.contains(job) || !finished.add(job)) {
+            return Collections.emptyList();
+        }
+        List<String> released = new ArrayList<String>();
+        for (String dependant : dependants.get(job)) {
+            int remaining = unfinishedPredecessors.get(dependant) - 1;
+            unfinishedPredecessors.put(dependant, remaining);
+            if (remaining == 0 && !skipped.contains(dependant)) {
+                ready.add(dependant);
+                released.add(dependant);
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Marks the job as finished without releasing anything: every job depending on it, directly or not, is skipped
+     * and will never be handed out.
+     *
+     * @return the newly skipped jobs
+     */
+    public List<String> fail(String job) {
+        if (!jobs.contains(job) || !finished.add(job)) {
+            return Collections.emptyList();
+        }
+        List<String> newlySkipped = new ArrayList<String>();
+        Deque<String> toSkip = new ArrayDeque<String>(dependants.get(job));
+        while (!toSkip.isEmpty()) {
+            String dependant = toSkip.pop();
+            if (finished.add(dependant)) {
+                skipped.add(dependant);
+                newlySkipped.add(dependant);
+                notStarted--;
+                toSkip.addAll(dependants.get(dependant));
+            }
+        }
+        return newlySkipped;
+    }
+
+    public boolean isFinished() {
+        return finished.size() == jobs.size();
+    }
+
+    /**
+     * @return every job to be built, in the order they have been given
+     */
+    public Set<String> getJobs() {
+        return jobs;
+    }
+
+    /**
+     * @return the number of jobs which have not been handed out by {@link #poll()} yet
+     */
+    public int getWaitingCount() {
+        return notStarted;
+    }
+
+    /**
+     * @return the jobs skipped because a job they depend on has failed
+     */
+    public Set<String> getSkipped() {
+        return Collections.unmodifiableSet(skipped);
+    }
+
+    /**
+     * @return the remaining critical path length of the job, <code>null</code> if jobs are not ranked
+     */
+    public Long getRank(String job) {
+        return ranks.get(job);
+    }
+
+    /**
+     * @return the highest rank of the ready jobs, <code>0</code> if there is none or jobs are not ranked
+     */
+    public long getHighestReadyRank() {
+        long highest = 0;
+        for (String job : ready) {
+            Long rank = ranks.get(job);
+            if (rank != null) {
+                highest = Math.max(highest, rank);
+            }
+        }
+        return highest;
+    }
+
+    public int getReadyCount() {
+        return ready.size();
+    }
+}
@@ -0,0 +1,553 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import hudson.model.Result;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * Builds a graph with a {@link FlowGraphExecutor} as a flow would, but with simulated jobs instead of Jenkins ones,
+ * to see how the scheduling copes with large graphs. The builds run on a limited number of executors and last a
+ * random time according to a virtual clock, so that hours of builds are simulated in a few seconds.
+ * <pre>
+ * GraphSimulation.Report report = new GraphSimulation()
+ *         .withExecutors(20)
+ *         .withDuration(GraphSimulation.Distribution.logNormal(60000, 0.5))
+ *         .withFailureRate(0.01)
+ *         .run(graph.withMustBuildJobs(jobs));
+ * </pre>
+ * As with Jenkins jobs, only the jobs connected to the must build jobs of the graph are built.
+ */
+public class GraphSimulation implements GraphBuildBackend {
+
+    /**
+     * Duration of simulated builds, in milliseconds
+     */
+    public static abstract class Distribution {
+
+        public abstract long sample(Random random);
+
+        /**
+         * @return the expected duration, given to the scheduler as the estimated duration of the jobs
+         */
+        public abstract long getMean();
+
+        public static Distribution constant(final long millis) {
+            return new Distribution() {
+                public long sample(Random random) {
+                    return millis;
+                }
+
+                public long getMean() {
+                    return millis;
+                }
+            };
+        }
+
+        public static Distribution uniform(final long minMillis, final long maxMillis) {
+            return new Distribution() {
+                public long sample(Random random) {
+                    return minMillis + (long) (random.nextDouble() * (maxMillis - minMillis));
+                }
+
+                public long getMean() {
+                    return (minMillis + maxMillis) / 2;
+                }
+            };
+        }
+
+        public static Distribution exponential(final long meanMillis) {
+            return new Distribution() {
+                public long sample(Random random) {
+                    return (long) (-meanMillis * Math.log(1 - random.nextDouble()));
+                }
+
+                public long getMean() {
+                    return meanMillis;
+                }
+            };
+        }
+
+        /**
+         * Build durations are usually close to the median with a few much longer ones
+         *
+         * @param sigma standard deviation of the logarithm of the duration
+         */
+        public static Distribution logNormal(final long medianMillis, final double sigma) {
+            return new Distribution() {
+                public long sample(Random random) {
+                    return (long) (medianMillis * Math.exp(sigma * random.nextGaussian()));
+                }
+
+                public long getMean() {
+                    return (long) (medianMillis * Math.exp(sigma * sigma / 2));
+                }
+            };
+        }
+    }
+
+    private static class Job {
+        private final Distribution duration;
+        private final double failureRate;
+
+        private Job(Distribution duration, double failureRate) {
+            this.duration = duration;
+            this.failureRate = failureRate;
+        }
+    }
+
+    private int executors = 1;
+
+    private long queueLatency;
+
+    private Distribution duration = Distribution.constant(60000);
+
+    private double failureRate;
+
+    private final Map<String, Job> jobs = new HashMap<String, Job>();
+
+    private boolean durationEstimates = true;
+
+    private long seed;
+
+    private PrintStream out;
+
+    // state of the current run
+
+    private FlowGraph graph;
+
+    private Random random;
+
+    private long now;
+
+    private long sequence;
+
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+
+    private final Queue<SimulatedBuild> queue = new ArrayDeque<SimulatedBuild>();
+
+    private int freeExecutors;
+
+    private int builds;
+
+    private long busyMillis;
+
+    private long queueWaitMillis;
+
+    private int maxQueueLength;
+
+    private boolean failed;
+
+    /**
+     * @param executors number of builds running at once, the other builds wait in the queue
+     */
+    public GraphSimulation withExecutors(int executors) {
+        this.executors = executors;
+        return this;
+    }
+
+    /**
+     * @param millis time between scheduling a build and the build being in the queue, <code>0</code> by default
+     */
+    public GraphSimulation withQueueLatency(long millis) {
+        this.queueLatency = millis;
+        return this;
+    }
+
+    /**
+     * @param duration duration of the builds of the jobs without their own, one minute by default
+     */
+    public GraphSimulation withDuration(Distribution duration) {
+        this.duration = duration;
+        return this;
+    }
+
+    /**
+     * @param failureRate probability of a build of a job without its own to fail, <code>0</code> by default
+     */
+    public GraphSimulation withFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    public GraphSimulation withJob(String job, Distribution duration, double failureRate) {
+        jobs.put(job, new Job(duration, failureRate));
+        return this;
+    }
+
+    /**
+     * @param durationEstimates whether the scheduler knows how long the jobs last, from the weight of the jobs in
+     *                          the graph or else the mean of their duration. Otherwise every job is expected to last
+     *                          the same. <code>true</code> by default
+     */
+    public GraphSimulation withDurationEstimates(boolean durationEstimates) {
+        this.durationEstimates = durationEstimates;
+        return this;
+    }
+
+    /**
+     * @param seed seed of the durations and failures, the same seed always giving the same builds
+     */
+    public GraphSimulation withSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * @param out where to print the messages of the graph build, nowhere by default
+     */
+    public GraphSimulation withOutput(PrintStream out) {
+        this.out = out;
+        return this;
+    }
+
+    /**
+     * Builds the graph, returning once every build is over
+     */
+    public synchronized Report run(FlowGraph graph) {
+        this.graph = graph;
+        random = new Random(seed);
+        now = 0;
+        events.clear();
+        queue.clear();
+        freeExecutors = executors;
+        builds = 0;
+        busyMillis = 0;
+        queueWaitMillis = 0;
+        maxQueueLength = 0;
+        failed = false;
+
+        FlowGraphExecutor executor = new FlowGraphExecutor(this, graph);
+        executor.start();
+        Event event;
+        while ((event = events.poll()) != null) {
+            if (!event.cancelled) {
+                now = event.time;
+                event.task.run();
+            }
+        }
+        if (!executor.isCompleted()) {
+            throw new IllegalStateException("The graph build is not over although no build is left to run");
+        }
+        Map<String, Result> results = executor.awaitResults();
+        return new Report(results, now, builds, executors, busyMillis, queueWaitMillis, maxQueueLength, failed);
+    }
+
+    private Event at(long time, Runnable task) {
+        Event event = new Event(time, sequence++, task);
+        events.add(event);
+        return event;
+    }
+
+    private Job getJob(String name) {
+        Job job = jobs.get(name);
+        return job != null ? job : new Job(duration, failureRate);
+    }
+
+    private void enqueue(SimulatedBuild build) {
+        if (build.finished) {
+            // aborted before reaching the queue
+            return;
+        }
+        queue.add(build);
+        maxQueueLength = Math.max(maxQueueLength, queue.size());
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (freeExecutors > 0 && !queue.isEmpty()) {
+            final SimulatedBuild build = queue.poll();
+            freeExecutors--;
+            build.started = true;
+            build.startedAt = now;
+            queueWaitMillis += now - build.scheduledAt;
+            Job job = getJob(build.name);
+            long buildDuration = Math.max(0, job.duration.sample(random));
+            final Result result = random.nextDouble() < job.failureRate ? Result.FAILURE : Result.SUCCESS;
+            build.completion = at(now + buildDuration, new Runnable() {
+                public void run() {
+                    finish(build, result);
+                    build.finalizedFuture.set(build);
+                    dispatch();
+                }
+            });
+            build.startedFuture.set(build);
+        }
+    }
+
+    private void finish(SimulatedBuild build, Result result) {
+        build.finished = true;
+        build.result = result;
+        if (build.started) {
+            freeExecutors++;
+            busyMillis += now - build.startedAt;
+        }
+    }
+
+    private boolean abort(final SimulatedBuild build) {
+        if (build.finished) {
+            return false;
+        }
+        if (build.completion != null) {
+            build.completion.cancelled = true;
+        }
+        queue.remove(build);
+        finish(build, Result.ABORTED);
+        // reported once the executor is done with the failure that caused the abort, as Jenkins would
+        at(now, new Runnable() {
+            public void run() {
+                build.finalizedFuture.set(build);
+                dispatch();
+            }
+        });
+        return true;
+    }
+
+    public GraphBuild schedule(String job, Map<String, ?> params) {
+        final SimulatedBuild build = new SimulatedBuild(job, now);
+        builds++;
+        at(now + queueLatency, new Runnable() {
+            public void run() {
+                enqueue(build);
+            }
+        });
+        return build;
+    }
+
+    public Executor getCallbackExecutor() {
+        return MoreExecutors.sameThreadExecutor();
+    }
+
+    public void runInContext(Runnable task) {
+        task.run();
+    }
+
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    public long estimateDuration(String job) {
+        if (!durationEstimates) {
+            return -1;
+        }
+        Long weight = graph.getWeight(job);
+        return weight != null ? weight : getJob(job).duration.getMean();
+    }
+
+    public Collection<GraphBuild> abort(Collection<GraphBuild> builds) {
+        List<GraphBuild> aborted = new ArrayList<GraphBuild>();
+        for (GraphBuild build : builds) {
+            if (build.abort()) {
+                aborted.add(build);
+            }
+        }
+        return aborted;
+    }
+
+    public void started(GraphBuild build) {
+    }
+
+    public void finalized(GraphBuild build) {
+    }
+
+    public String describe(GraphBuild build) {
+        return build.getName();
+    }
+
+    public void log(Note note, String message) {
+        if (out != null) {
+            out.println(String.format("%8.1fs %s", now / 1000.0, message));
+        }
+    }
+
+    public void journal(FlowJournal.Event event, String job, String detail) {
+    }
+
+    public void graphBuildStarted(FlowGraphExecutor executor) {
+    }
+
+    public void graphBuildCompleted(FlowGraphExecutor executor) {
+    }
+
+    public void failed() {
+        failed = true;
+    }
+
+    private static class Event implements Comparable<Event> {
+        private final long time;
+        private final long sequence;
+        private final Runnable task;
+        private boolean cancelled;
+
+        private Event(long time, long sequence, Runnable task) {
+            this.time = time;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        public int compareTo(Event other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : sequence > other.sequence ? 1 : 0;
+        }
+    }
+
+    private class SimulatedBuild implements GraphBuild {
+        private final String name;
+        private final long scheduledAt;
+        private final SettableFuture<SimulatedBuild> startedFuture = SettableFuture.create();
+        private final SettableFuture<SimulatedBuild> finalizedFuture = SettableFuture.create();
+        private boolean started;
+        private long startedAt;
+        private boolean finished;
+        private Result result;
+        private Event completion;
+
+        private SimulatedBuild(String name, long scheduledAt) {
+            this.name = name;
+            this.scheduledAt = scheduledAt;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isStarted() {
+            return started;
+        }
+
+        public long getStartTimeMillis() {
+            return started ? startedAt : 0;
+        }
+
+        public Result getResult() {
+            return result;
+        }
+
+        public ListenableFuture<SimulatedBuild> getStartedFuture() {
+            return startedFuture;
+        }
+
+        public ListenableFuture<SimulatedBuild> getFinalizedFuture() {
+            return finalizedFuture;
+        }
+
+        public boolean abort() {
+            return GraphSimulation.this.abort(this);
+        }
+    }
+
+    /**
+     * Outcome of a simulated graph build
+     */
+    public static class Report {
+        private final Map<String, Result> results;
+        private final long makespanMillis;
+        private final int builds;
+        private final int executors;
+        private final long busyMillis;
+        private final long queueWaitMillis;
+        private final int maxQueueLength;
+        private final boolean failed;
+
+        private Report(Map<String, Result> results, long makespanMillis, int builds, int executors, long busyMillis,
+                       long queueWaitMillis, int maxQueueLength, boolean failed) {
+            this.results = Collections.unmodifiableMap(new HashMap<String, Result>(results));
+            this.makespanMillis = makespanMillis;
+            this.builds = builds;
+            this.executors = executors;
+            this.busyMillis = busyMillis;
+            this.queueWaitMillis = queueWaitMillis;
+            this.maxQueueLength = maxQueueLength;
+            this.failed = failed;
+        }
+
+        /**
+         * @return the result of every job the graph had to build
+         */
+        public Map<String, Result> getResults() {
+            return results;
+        }
+
+        /**
+         * @return the virtual time from the start of the graph build to the end of its last build
+         */
+        public long getMakespanMillis() {
+            return makespanMillis;
+        }
+
+        public int getBuilds() {
+            return builds;
+        }
+
+        /**
+         * @return the share of the time the executors were building, from <code>0</code> to <code>1</code>
+         */
+        public double getUtilization() {
+            return makespanMillis > 0 ? (double) busyMillis / executors / makespanMillis : 0;
+        }
+
+        /**
+         * @return the time spent by the builds in the queue, waiting for an executor
+         */
+        public long getQueueWaitMillis() {
+            return queueWaitMillis;
+        }
+
+        public int getMaxQueueLength() {
+            return maxQueueLength;
+        }
+
+        /**
+         * @return <code>true</code> if a build has failed, which fails the flow
+         */
+        public boolean isFailed() {
+            return failed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d builds in %.1fs, %.0f%% executor utilization, %.1fs waited in the queue, "
+                    + "%d builds queued at most%s", builds, makespanMillis / 1000.0, getUtilization() * 100,
+                    queueWaitMillis / 1000.0, maxQueueLength, failed ? ", failed" : "");
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import hudson.model.BooleanParameterDefinition;
+import hudson.model.ChoiceParameterDefinition;
+import hudson.model.Job;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.PasswordParameterDefinition;
+import hudson.model.SimpleParameterDefinition;
+import hudson.model.StringParameterDefinition;
+import hudson.model.TextParameterDefinition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parameter definitions of a job, resolved once for all the builds of the job triggered by a flow run.
+ *
+ * The default values of the built-in parameter types which do not depend on anything else are computed once, the
+ * other ones, e.g. the last build of a job, every time they are asked for.
+ *
+ * @see FlowRun#getJobParameters(Job)
+ */
+public final class JobParameters {
+
+    /**
+     * Parameter types whose default value never changes as long as the job configuration does not
+     */
+    private static final Set<Class<?>> STATIC_DEFAULTS = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+            StringParameterDefinition.class, BooleanParameterDefinition.class, ChoiceParameterDefinition.class,
+            TextParameterDefinition.class, PasswordParameterDefinition.class));
+
+    static final JobParameters NONE = new JobParameters(null);
+
+    /**
+     * The property the definitions come from, a new one is created whenever the job configuration is saved
+     */
+    private final ParametersDefinitionProperty property;
+
+    private final List<ParameterDefinition> definitions;
+
+    private final Map<String, SimpleParameterDefinition> simpleDefinitions;
+
+    /**
+     * Default value of each definition, <code>null</code> for the ones to compute every time
+     */
+    private final ParameterValue[] defaultValues;
+
+    private JobParameters(ParametersDefinitionProperty property) {
+        this.property = property;
+        this.definitions = property == null ? Collections.<ParameterDefinition>emptyList()
+                : new ArrayList<ParameterDefinition>(property.getParameterDefinitions());
+        this.simpleDefinitions = new HashMap<String, SimpleParameterDefinition>();
+        this.defaultValues = new ParameterValue[definitions.size()];
+        for (int i = 0; i < definitions.size(); i++) {
+            ParameterDefinition definition = definitions.get(i);
+            if (definition instanceof SimpleParameterDefinition && !simpleDefinitions.containsKey(definition.getName())) {
+                simpleDefinitions.put(definition.getName(), (SimpleParameterDefinition) definition);
+            }
+            if (STATIC_DEFAULTS.contains(definition.getClass())) {
+                defaultValues[i] = definition.getDefaultParameterValue();
+            }
+        }
+    }
+
+    /**
+     * @return the parameters of the job, as currently configured
+     */
+    public static JobParameters of(Job<?, ?> job) {
+        ParametersDefinitionProperty property = job.getProperty(ParametersDefinitionProperty.class);
+        return property == null ? NONE : new JobParameters(property);
+    }
+
+    /**
+     * @return <code>true</code> if the job configuration has not changed since the parameters were resolved
+     */
+    public boolean isUpToDate(Job<?, ?> job) {
+        return job.getProperty(ParametersDefinitionProperty.class) == property;
+    }
+
+    public List<ParameterDefinition> getDefinitions() {
+        return Collections.unmodifiableList(definitions);
+    }
+
+    /**
+     * @return the definition of the parameter if it is a {@link SimpleParameterDefinition}, <code>null</code>
+     *         otherwise
+     */
+    public SimpleParameterDefinition getSimpleDefinition(String name) {
+        return simpleDefinitions.get(name);
+    }
+
+    /**
+     * @param except names of the parameters which already have a value
+     * @return the default values of the other parameters, in the order they are defined
+     */
+    public List<ParameterValue> getDefaultValues(Collection<String> except) {
+        List<ParameterValue> values = new ArrayList<ParameterValue>(definitions.size());
+        for (int i = 0; i < definitions.size(); i++) {
+            ParameterDefinition definition = definitions.get(i);
+            if (except.contains(definition.getName())) {
+                continue;
+            }
+            values.add(defaultValues[i] != null ? defaultValues[i] : definition.getDefaultParameterValue());
+        }
+        return values;
+    }
+}
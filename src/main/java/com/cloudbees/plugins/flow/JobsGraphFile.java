@@ -0,0 +1,239 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import org.jgrapht.DirectedGraph;
+import org.jgrapht.graph.SimpleDirectedGraph;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact format of the graph of the builds of a {@link FlowRun}, kept next to its <code>build.xml</code> so that
+ * loading the run does not load its graph, see {@link FlowRun#getJobsGraph()}.
+ *
+ * <pre>
+ * int     magic "BFJG"
+ * short   version
+ * int     number of job names, then each name as UTF
+ * int     number of vertices, then for each vertex:
+ *   int     uid of the invocation
+ *   int     id of the job name, i.e. its position in the names
+ *   int     build number
+ *   byte    flags: 1 started, 2 completed, 4 finalized, 8 reused, 16 start of the flow
+ * int     number of edges, then for each edge:
+ *   int     id of the source, i.e. its position in the vertices
+ *   int     id of the target
+ * int     CRC32 of all the above
+ * </pre>
+ */
+public final class JobsGraphFile {
+
+    public static final String FILE_NAME = "jobsGraph.bin";
+
+    public static final int MAGIC = 0x42464a47;
+
+    public static final int VERSION = 1;
+
+    private static final int STARTED = 1;
+
+    private static final int COMPLETED = 2;
+
+    private static final int FINALIZED = 4;
+
+    private static final int REUSED = 8;
+
+    private static final int START = 16;
+
+    private JobsGraphFile() {
+    }
+
+    /**
+     * Writes the graph to a temporary file first, so that the file is either the previous graph or the new one
+     */
+    public static void write(DirectedGraph<JobInvocation, FlowRun.JobEdge> graph, JobInvocation start, File file)
+            throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            write(graph, start, out);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Failed to write " + file);
+            }
+        }
+    }
+
+    public static void write(DirectedGraph<JobInvocation, FlowRun.JobEdge> graph, JobInvocation start,
+                             OutputStream out) throws IOException {
+        List<String> names = new ArrayList<String>();
+        Map<String, Integer> nameIds = new HashMap<String, Integer>();
+        Map<JobInvocation, Integer> ids = new HashMap<JobInvocation, Integer>();
+        for (JobInvocation job : graph.vertexSet()) {
+            ids.put(job, ids.size());
+            if (!nameIds.containsKey(job.getName())) {
+                nameIds.put(job.getName(), names.size());
+                names.add(job.getName());
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        DataOutputStream data = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(out), crc));
+        data.writeInt(MAGIC);
+        data.writeShort(VERSION);
+        data.writeInt(names.size());
+        for (String name : names) {
+            data.writeUTF(name);
+        }
+        data.writeInt(ids.size());
+        for (JobInvocation job : graph.vertexSet()) {
+            data.writeInt(job.getUid());
+            data.writeInt(nameIds.get(job.getName()));
+            data.writeInt(job.getBuildNumber());
+            data.writeByte((job.isStarted() ? STARTED : 0) | (job.isCompleted() ? COMPLETED : 0)
+                    | (job.isFinalized() ? FINALIZED : 0) | (job.isReused() ? REUSED : 0)
+                    | (job.equals(start) ? START : 0));
+        }
+        data.writeInt(graph.edgeSet().size());
+        for (FlowRun.JobEdge edge : graph.edgeSet()) {
+            data.writeInt(ids.get(edge.getSource()));
+            data.writeInt(ids.get(edge.getTarget()));
+        }
+        data.flush();
+        DataOutputStream trailer = new DataOutputStream(out);
+        trailer.writeInt((int) crc.getValue());
+        trailer.flush();
+    }
+
+    public static DirectedGraph<JobInvocation, FlowRun.JobEdge> read(File file, JobInvocation start)
+            throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return read(in, start);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param start the invocation to use for the start of the flow, a new one is created if <code>null</code>
+     */
+    public static DirectedGraph<JobInvocation, FlowRun.JobEdge> read(InputStream in, JobInvocation start)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream buffered = in instanceof BufferedInputStream ? in : new BufferedInputStream(in);
+        DataInputStream data = new DataInputStream(new CheckedInputStream(buffered, crc));
+        try {
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Not a graph of builds");
+            }
+            int version = data.readUnsignedShort();
+            if (version > VERSION) {
+                throw new IOException("Unsupported graph of builds version " + version + ", at most " + VERSION
+                        + " is supported");
+            }
+
+            String[] names = new String[checkCount(data.readInt())];
+            for (int n = 0; n < names.length; n++) {
+                names[n] = data.readUTF();
+            }
+
+            JobInvocation[] vertices = new JobInvocation[checkCount(data.readInt())];
+            for (int v = 0; v < vertices.length; v++) {
+                int uid = data.readInt();
+                int name = data.readInt();
+                int buildNumber = data.readInt();
+                int flags = data.readByte();
+                if (name < 0 || name >= names.length) {
+                    throw new IOException("Corrupted graph of builds, unknown job name " + name);
+                }
+                if ((flags & START) != 0 && start != null) {
+                    vertices[v] = start;
+                } else {
+                    vertices[v] = new JobInvocation(names[name], uid, buildNumber, (flags & STARTED) != 0,
+                            (flags & COMPLETED) != 0, (flags & FINALIZED) != 0, (flags & REUSED) != 0);
+                }
+            }
+
+            int edges = checkCount(data.readInt());
+            int[] sources = new int[edges];
+            int[] targets = new int[edges];
+            for (int e = 0; e < edges; e++) {
+                sources[e] = data.readInt();
+                targets[e] = data.readInt();
+                if (sources[e] < 0 || sources[e] >= vertices.length || targets[e] < 0 || targets[e] >= vertices.length) {
+                    throw new IOException("Corrupted graph of builds, edge " + sources[e] + " -> " + targets[e]);
+                }
+            }
+
+            long expected = crc.getValue();
+            if ((int) expected != data.readInt()) {
+                throw new IOException("Corrupted graph of builds, checksum mismatch");
+            }
+
+            SimpleDirectedGraph<JobInvocation, FlowRun.JobEdge> graph =
+                    new SimpleDirectedGraph<JobInvocation, FlowRun.JobEdge>(FlowRun.JobEdge.class);
+            for (JobInvocation vertex : vertices) {
+                graph.addVertex(vertex);
+            }
+            for (int e = 0; e < edges; e++) {
+                JobInvocation source = vertices[sources[e]];
+                JobInvocation target = vertices[targets[e]];
+                graph.addEdge(source, target, new FlowRun.JobEdge(source, target));
+            }
+            return graph;
+        } catch (EOFException e) {
+            throw new IOException("Truncated graph of builds");
+        }
+    }
+
+    private static int checkCount(int count) throws IOException {
+        if (count < 0) {
+            throw new IOException("Corrupted graph of builds");
+        }
+        return count;
+    }
+}
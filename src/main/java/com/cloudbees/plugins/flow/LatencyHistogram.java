@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow;
+
+import java.beans.ConstructorProperties;
+import java.util.Arrays;
+
+/**
+ * Distribution of a duration: count, total and maximum since startup, and percentiles over the last {@link #WINDOW}
+ * samples.
+ *
+ * Adding a sample is constant time, percentiles are only computed when a snapshot is taken.
+ */
+public class LatencyHistogram {
+
+    public static final int WINDOW = 1024;
+
+    private final long[] window = new long[WINDOW];
+
+    private int next;
+
+    private long count;
+
+    private long totalMillis;
+
+    private long maxMillis;
+
+    public synchronized void add(long millis) {
+        millis = Math.max(0, millis);
+        window[next] = millis;
+        next = (next + 1) % WINDOW;
+        count++;
+        totalMillis += millis;
+        maxMillis = Math.max(maxMillis, millis);
+    }
+
+    public synchronized Snapshot snapshot() {
+        int size = (int) Math.min(count, WINDOW);
+        long[] sorted = Arrays.copyOf(window, size);
+        Arrays.sort(sorted);
+        return new Snapshot(count, count > 0 ? totalMillis / count : 0, maxMillis,
+                percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99));
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Values of the histogram at a point in time, exposed as composite data through JMX
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final long meanMillis;
+        private final long maxMillis;
+        private final long p50Millis;
+        private final long p95Millis;
+        private final long p99Millis;
+
+        @ConstructorProperties({"count", "meanMillis", "maxMillis", "p50Millis", "p95Millis", "p99Millis"})
+        public Snapshot(long count, long meanMillis, long maxMillis, long p50Millis, long p95Millis, long p99Millis) {
+            this.count = count;
+            this.meanMillis = meanMillis;
+            this.maxMillis = maxMillis;
+            this.p50Millis = p50Millis;
+            this.p95Millis = p95Millis;
+            this.p99Millis = p99Millis;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanMillis() {
+            return meanMillis;
+        }
+
+        public long getMaxMillis() {
+            return maxMillis;
+        }
+
+        public long getP50Millis() {
+            return p50Millis;
+        }
+
+        public long getP95Millis() {
+            return p95Millis;
+        }
+
+        public long getP99Millis() {
+            return p99Millis;
+        }
+    }
+}
@@ -212,4 +212,77 @@ class AbortTest extends DSLTestCase {
 		assertBuildStatusSuccess(flows[0].flow.get())
 		assertBuildStatusSuccess(flows[2].flow.get())
 	}
+
+	/**
+	 * Tests that when a Flow is aborted all the jobs it queued are removed from the queue.
+	 */
+	public void testThatAbortCancelsAllQueuedJobs() {
+		// no node has the label, the builds stay in the queue
+		def label = Jenkins.instance.getLabel("nowhere")
+		def jobs = (1..10).collect { createJob("job$it") }
+		jobs.each { it.assignedLabel = label }
+
+		def future = schedule("parallel(" + (1..10).collect { "{ build(\"job$it\") }" }.join(", ") + ")")
+
+		def flow = future.waitForStart()
+		def queue = Jenkins.instance.queue
+		while (queue.items.size() < jobs.size()) {
+			Thread.sleep(10L)
+		}
+
+		// abort the flow
+		flow.oneOffExecutor.interrupt(Result.ABORTED)
+		// wait for the flow to finish executing.
+		future.get();
+
+		assertBuildStatus(Result.ABORTED, flow)
+		assertEquals(0, queue.items.size())
+		jobs.each { assertDidNotRun(it) }
+		assertTrue(flow.jobsGraph.vertexSet().every { it.startedFuture.cancelled || it == flow.startJob })
+	}
+
+	/**
+	 * Tests that the jobs queued by concurrent flows are tracked and aborted separately, their invocations having
+	 * the same ids.
+	 */
+	public void testThatConcurrentFlowsKeepTheirQueuedJobsApart() {
+		// no node has the label, the builds stay in the queue
+		def label = Jenkins.instance.getLabel("nowhere")
+		def jobs = (1..2).collect { createJob("job$it") }
+		jobs.each { it.assignedLabel = label }
+
+		def futures = (1..2).collect { schedule("build(\"job$it\")") }
+
+		def flows = futures*.waitForStart()
+		def queue = Jenkins.instance.queue
+		while (queue.items.size() < jobs.size()) {
+			Thread.sleep(10L)
+		}
+		def queued = flows.collect { flow -> flow.jobsGraph.vertexSet().find { it != flow.startJob } }
+		assertEquals(queued[0].id, queued[1].id)
+		// the invocations are registered once their build is in the queue
+		while (!queued.every { job -> JobInvocation.queued.any { it.is(job) } }) {
+			Thread.sleep(10L)
+		}
+
+		// abort the first flow
+		flows[0].oneOffExecutor.interrupt(Result.ABORTED)
+		futures[0].get();
+
+		assertBuildStatus(Result.ABORTED, flows[0])
+		assertTrue(queued[0].startedFuture.cancelled)
+		assertFalse(queued[1].startedFuture.cancelled)
+		assertFalse(JobInvocation.queued.any { it.is(queued[0]) })
+		assertTrue(JobInvocation.queued.any { it.is(queued[1]) })
+		assertEquals(1, queue.items.size())
+
+		// abort the second flow
+		flows[1].oneOffExecutor.interrupt(Result.ABORTED)
+		futures[1].get();
+
+		assertBuildStatus(Result.ABORTED, flows[1])
+		assertTrue(queued[1].startedFuture.cancelled)
+		assertEquals(0, queue.items.size())
+		jobs.each { assertDidNotRun(it) }
+	}
 }
@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import hudson.model.FileParameterValue
+import hudson.model.Job
+import hudson.model.ParameterValue
+import hudson.model.ParametersAction
+import hudson.model.ParametersDefinitionProperty
+import hudson.model.PasswordParameterDefinition
+import hudson.model.StringParameterValue
+
+import static hudson.model.Result.*
+
+class BuildAvoidanceTest extends DSLTestCase {
+
+    public void testUnchangedJobIsReused() {
+        Job job1 = createJob("job1")
+        def script = """
+            buildAvoidance {
+                build("job1", param1: "foo")
+            }
+        """
+
+        def flow1 = run(script)
+        def flow2 = run(script)
+
+        assert SUCCESS == flow1.result
+        assert SUCCESS == flow2.result
+        assertRan(job1, 1, SUCCESS)
+        assert flow2.log.contains("Reuse ")
+        def reused = flow2.findJob("job1").get()
+        assert reused.reused
+        assert job1.builds.lastBuild == reused.build
+    }
+
+    public void testChangedParametersAreBuilt() {
+        Job job1 = createJob("job1")
+
+        run("""
+            buildAvoidance {
+                build("job1", param1: "foo")
+            }
+        """)
+        run("""
+            buildAvoidance {
+                build("job1", param1: "bar")
+            }
+        """)
+
+        assertRan(job1, 2, SUCCESS)
+    }
+
+    public void testJobIsBuiltWithoutBuildAvoidance() {
+        Job job1 = createJob("job1")
+
+        run("""
+            buildAvoidance {
+                build("job1")
+            }
+        """)
+        run("""
+            build("job1")
+        """)
+
+        assertRan(job1, 2, SUCCESS)
+    }
+
+    public void testFailedBuildIsNotReused() {
+        Job willFail = createFailJob("willFail", 1)
+        def script = """
+            buildAvoidance {
+                build("willFail")
+            }
+        """
+
+        run(script)
+        def flow = run(script)
+        run(script)
+
+        assert SUCCESS == flow.result
+        assert 2 == willFail.builds.size()
+    }
+
+    public void testReusedBuildIsPassedDownstream() {
+        Job job1 = createJob("job1")
+        Job job2 = createJob("job2")
+        def script = """
+            buildAvoidance {
+                def b = build("job1")
+                build("job2", upstreamNumber: b.build.number)
+            }
+        """
+
+        run(script)
+        def flow = run(script)
+
+        assertRan(job1, 1, SUCCESS)
+        assertRan(job2, 1, SUCCESS)
+        assertHasParameter(job2, "upstreamNumber", "1")
+        def job1Invocation = flow.findJob("job1").get()
+        def job2Invocation = flow.findJob("job2").get()
+        assert flow.jobsGraph.containsEdge(flow.startJob, job1Invocation)
+        assert flow.jobsGraph.containsEdge(job1Invocation, job2Invocation)
+    }
+
+    public void testGraphBuildReusesUnchangedJobs() {
+        def jobs = createJobs(["job0", "job1", "job2"])
+        def script = """
+            build(graph(["job0", "job1"], ["job1", "job2"]).withMustBuildJobs(["job0"]).withBuildAvoidance(true))
+        """
+
+        def flow1 = run(script)
+        def flow2 = run(script)
+
+        assert SUCCESS == flow1.result
+        assert SUCCESS == flow2.result
+        jobs.each { assertRan(it, 1, SUCCESS) }
+        assert flow2.findJob("job2").get().reused
+    }
+
+    public void testChangedPasswordIsBuilt() {
+        Job job1 = createJob("job1")
+        job1.addProperty(new ParametersDefinitionProperty(new PasswordParameterDefinition("password", "", "")))
+        def script = { password ->
+            """
+            buildAvoidance {
+                build("job1", password: "$password")
+            }
+            """
+        }
+
+        run(script("foo"))
+        def flow = run(script("bar"))
+        run(script("bar"))
+
+        assert !flow.findJob("job1").get().reused
+        assertRan(job1, 2, SUCCESS)
+    }
+
+    public void testChangedFileContentChangesTheFingerprint() {
+        def job1 = createJob("job1")
+        def file = File.createTempFile("param", ".txt")
+        def fingerprint = {
+            def value = new FileParameterValue("file", new FileParameterValue.FileItemImpl(file))
+            BuildAvoidanceIndex.fingerprint(job1, [new ParametersAction(value)], [])
+        }
+
+        try {
+            file.text = "foo"
+            def first = fingerprint()
+            file.text = "bar"
+
+            assert first != null
+            assert first != fingerprint()
+        } finally {
+            file.delete()
+        }
+    }
+
+    public void testUnknownParameterTypeDisablesBuildAvoidance() {
+        def job1 = createJob("job1")
+        def unknown = new ParameterValue("unknown") {}
+
+        assert null != BuildAvoidanceIndex.fingerprint(job1, [new ParametersAction(new StringParameterValue("p", "v"))], [])
+        assert null == BuildAvoidanceIndex.fingerprint(job1, [new ParametersAction(unknown)], [])
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpHandler
+import com.sun.net.httpserver.HttpServer
+import junit.framework.TestCase
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+
+class DefinitionCacheTest extends TestCase {
+
+    private File file
+    private DefinitionCache cache
+    private HttpServer server
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp()
+        file = File.createTempFile("graph", ".properties")
+        cache = new DefinitionCache(10)
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete()
+        server?.stop(0)
+        super.tearDown()
+    }
+
+    public void testFileIsOnlyParsedAgainOnceChanged() {
+        file.text = "job1=job0\n"
+        def url = file.toURI().toString()
+
+        assertEquals([job1: "job0"], cache.getProperties(url))
+        assertEquals([job1: "job0"], cache.getProperties(url))
+        assertEquals(1L, cache.downloadCount)
+        assertEquals(1L, cache.hitCount)
+
+        file.text = "job1=job0\njob2=job1\n"
+        assertEquals([job1: "job0", job2: "job1"], cache.getProperties(url))
+        assertEquals(2L, cache.downloadCount)
+    }
+
+    public void testGraphsAreCopiesOfTheParsedTemplate() {
+        file.text = "job1=job0\njob2=job1\n"
+        def url = file.toURI().toString()
+
+        def first = cache.getGraph(url)
+        def second = cache.getGraph(url)
+        first.withMustBuildJobs(["job0"]).withParams([param: "value"]).addEdge("job2", "job3")
+
+        assertNotSame(first, second)
+        assertTrue(second.mustBuildJobs.isEmpty())
+        assertTrue(second.params.isEmpty())
+        assertTrue(first.containsEdge("job2", "job3"))
+        assertFalse(second.containsVertex("job3"))
+        assertFalse(cache.getGraph(url).containsVertex("job3"))
+        assertTrue(second.pathExists("job0", "job2"))
+        assertEquals(1L, cache.downloadCount)
+    }
+
+    public void testHttpDefinitionIsRevalidatedWithItsETag() {
+        def full = new AtomicInteger()
+        def notModified = new AtomicInteger()
+        def url = serve { HttpExchange exchange ->
+            if (exchange.requestHeaders.getFirst("If-None-Match") == '"v1"') {
+                notModified.incrementAndGet()
+                exchange.sendResponseHeaders(304, -1)
+            } else {
+                full.incrementAndGet()
+                def body = "job1=job0\n".bytes
+                exchange.responseHeaders.add("ETag", '"v1"')
+                exchange.sendResponseHeaders(200, body.length)
+                exchange.responseBody.write(body)
+            }
+            exchange.close()
+        }
+
+        assertTrue(cache.getGraph(url).containsEdge("job0", "job1"))
+        assertTrue(cache.getGraph(url).containsEdge("job0", "job1"))
+
+        assertEquals(1, full.get())
+        assertEquals(1, notModified.get())
+        assertEquals(1L, cache.downloadCount)
+    }
+
+    public void testFlowsStartingAtOnceMakeASingleRequest() {
+        def requests = new AtomicInteger()
+        def url = serve { HttpExchange exchange ->
+            requests.incrementAndGet()
+            Thread.sleep(500)
+            def body = "job1=job0\n".bytes
+            exchange.sendResponseHeaders(200, body.length)
+            exchange.responseBody.write(body)
+            exchange.close()
+        }
+        def start = new CountDownLatch(1)
+
+        def threads = (1..10).collect {
+            Thread.start {
+                start.await()
+                cache.getGraph(url)
+            }
+        }
+        start.countDown()
+        threads*.join()
+
+        assertEquals(1, requests.get())
+    }
+
+    private String serve(Closure handler) {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0)
+        server.createContext("/graph.properties", handler as HttpHandler)
+        server.start()
+        return "http://127.0.0.1:${server.address.port}/graph.properties"
+    }
+}
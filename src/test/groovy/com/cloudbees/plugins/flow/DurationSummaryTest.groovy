@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import junit.framework.TestCase
+
+import static hudson.model.Result.FAILURE
+import static hudson.model.Result.SUCCESS
+
+class DurationSummaryTest extends TestCase {
+
+    public void testEmptySummary() {
+        def summary = new DurationSummary()
+
+        assertEquals(0, summary.count)
+        assertEquals(-1L, summary.ewmaRunMillis)
+        assertEquals(-1L, summary.ewmaQueueMillis)
+        assertEquals(-1L, summary.getRunPercentile(50))
+        assertNull(summary.lastResult)
+    }
+
+    public void testMovingAverages() {
+        def summary = new DurationSummary()
+
+        summary.add(100, 1000, SUCCESS)
+        assertEquals(100L, summary.ewmaQueueMillis)
+        assertEquals(1000L, summary.ewmaRunMillis)
+
+        summary.add(200, 2000, FAILURE)
+        assertEquals(130L, summary.ewmaQueueMillis)
+        assertEquals(1300L, summary.ewmaRunMillis)
+        assertEquals(FAILURE, summary.lastResult)
+        assertEquals(2, summary.count)
+    }
+
+    public void testPercentilesOverTheLastBuilds() {
+        def summary = new DurationSummary()
+        // the first builds fall out of the window
+        10.times { summary.add(0, 1000000, SUCCESS) }
+        (1..DurationSummary.WINDOW).each { summary.add(0, it * 10, SUCCESS) }
+
+        assertEquals(DurationSummary.WINDOW + 10, summary.count)
+        assertEquals(160L, summary.getRunPercentile(50))
+        assertEquals(290L, summary.getRunPercentile(90))
+        assertEquals(320L, summary.getRunPercentile(100))
+        assertEquals(10L, summary.getRunPercentile(1))
+    }
+}
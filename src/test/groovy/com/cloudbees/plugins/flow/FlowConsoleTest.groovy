@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import junit.framework.TestCase
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class FlowConsoleTest extends TestCase {
+
+    private static final String EOL = System.getProperty("line.separator")
+
+    public void testIndentsLines() {
+        def bytes = new ByteArrayOutputStream()
+        def console = new FlowConsole(new PrintStream(bytes, true))
+
+        console.println("", 0, "parallel {")
+        console.println("1", 1, "build(\"job1\")")
+        console.println("", 0, "}")
+
+        assertEquals("parallel {" + EOL + "    build(\"job1\")" + EOL + "}" + EOL, bytes.toString())
+    }
+
+    public void testBranchesDoNotMixTheirLines() {
+        def bytes = new ByteArrayOutputStream()
+        def console = new FlowConsole(new PrintStream(bytes, true))
+        def branches = 32
+        def linesPerBranch = 200
+        def start = new CountDownLatch(1)
+
+        def threads = (1..branches).collect { branch ->
+            Thread.start {
+                start.await()
+                linesPerBranch.times { line -> console.println("$branch", 1, "branch $branch line $line") }
+            }
+        }
+        start.countDown()
+        threads*.join()
+        console.flush()
+
+        def lines = bytes.toString().split(EOL)
+        assertEquals(branches * linesPerBranch, lines.length)
+        def next = [:]
+        lines.each { line ->
+            def matcher = line =~ /^    branch (\d+) line (\d+)$/
+            assertTrue(line, matcher.matches())
+            def branch = matcher.group(1)
+            assertEquals(next.get(branch, 0), matcher.group(2) as int)
+            next[branch] = next[branch] + 1
+        }
+    }
+
+    public void testLinesQueuedWhileWritingAreWrittenInOneBatch() {
+        def writing = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        def writes = []
+        def out = new PrintStream(new ByteArrayOutputStream()) {
+            @Override
+            void print(Object obj) {
+                writes.add(obj.toString())
+                writing.countDown()
+                release.await()
+            }
+        }
+        def console = new FlowConsole(out)
+
+        def writer = Thread.start { console.println("1", 0, "first") }
+        assertTrue(writing.await(10, TimeUnit.SECONDS))
+        // does not wait for the build log, the writer thread prints these lines
+        10.times { console.println("2", 0, "line $it") }
+        assertEquals(1, writes.size())
+        release.countDown()
+        writer.join()
+
+        assertEquals(2, writes.size())
+        assertEquals(10, writes[1].split(EOL).length)
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import jenkins.model.Jenkins
+
+class FlowDownStreamRunDeclarerTest extends DSLTestCase {
+
+    def declarer = new FlowDownStreamRunDeclarer()
+
+    public void testDownStreamOfAFlowAndOfItsBuilds() {
+        // given
+        def jobs = createJobs(["job1", "job2", "job3"])
+
+        // when
+        def flow = run("""
+            build("job1")
+            parallel(
+                { build("job2") },
+                { build("job3") }
+            )
+        """)
+
+        // then
+        def job1 = jobs[0].lastBuild
+        assert [job1] == declarer.getDownStream(flow)
+        assert [jobs[1].lastBuild, jobs[2].lastBuild] as Set == declarer.getDownStream(job1) as Set
+        assert [] == declarer.getDownStream(jobs[1].lastBuild)
+    }
+
+    public void testBuildsNotStartedAreLeftOut() {
+        // given
+        def job1 = createJob("job1")
+        def run = new FlowRun(new BuildFlow(Jenkins.instance, getName()))
+
+        // when
+        run.addBuild(new JobInvocation(run, job1))
+
+        // then
+        assert [] == declarer.getDownStream(run)
+    }
+
+    public void testFlowOfABuildIsLookedUpAgainOnceCollected() {
+        // given
+        def job1 = createJob("job1")
+        def flow = run("""
+            build("job1")
+        """)
+        def cause = job1.lastBuild.getCause(FlowCause)
+
+        // when
+        cause.@flowRun = null
+
+        // then
+        assert flow.number == cause.flowRun.number
+        assert cause.@flowRun.get() != null
+    }
+}
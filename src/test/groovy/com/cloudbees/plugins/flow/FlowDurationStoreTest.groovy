@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import junit.framework.TestCase
+
+import static hudson.model.Result.FAILURE
+import static hudson.model.Result.SUCCESS
+
+class FlowDurationStoreTest extends TestCase {
+
+    private File file
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp()
+        file = File.createTempFile("durations", ".log")
+        file.delete()
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete()
+        super.tearDown()
+    }
+
+    public void testRecordedBuildsAreReloaded() {
+        // given
+        def store = new FlowDurationStore(file)
+        store.record("job1", 10, 1000, SUCCESS)
+        store.record("job1", 20, 2000, FAILURE)
+        store.record("folder/job2", 0, 500, SUCCESS)
+        store.flush()
+
+        // when
+        def reloaded = new FlowDurationStore(file)
+
+        // then
+        assertEquals(3, file.readLines().size())
+        assertEquals(["job1", "folder/job2"] as Set, reloaded.summaries.keySet())
+        assertEquals(2, reloaded.getSummary("job1").count)
+        assertEquals(store.estimateRunMillis("job1"), reloaded.estimateRunMillis("job1"))
+        assertEquals(FAILURE, reloaded.getSummary("job1").lastResult)
+        assertEquals(500L, reloaded.estimateRunMillis("folder/job2"))
+        assertEquals(-1L, reloaded.estimateRunMillis("job3"))
+    }
+
+    public void testFileIsCompacted() {
+        // given
+        def store = new FlowDurationStore(file)
+
+        // when
+        (FlowDurationStore.MAX_LINES + 1).times { store.record("job${it % 2}", 0, it, SUCCESS) }
+        store.flush()
+
+        // then
+        def lines = file.readLines()
+        assertEquals(2 * DurationSummary.WINDOW + 1, lines.size())
+        def reloaded = new FlowDurationStore(file)
+        assertEquals(store.getSummary("job0").getRunPercentile(50), reloaded.getSummary("job0").getRunPercentile(50))
+        assertEquals(store.getSummary("job1").getRunPercentile(90), reloaded.getSummary("job1").getRunPercentile(90))
+    }
+
+    public void testBuildsAreWrittenInBatches() {
+        // given
+        def store = new FlowDurationStore(file)
+
+        // when
+        store.record("job1", 10, 1000, SUCCESS)
+        store.record("job2", 20, 2000, SUCCESS)
+
+        // then
+        assertFalse(file.exists())
+        assertEquals(1000L, store.estimateRunMillis("job1"))
+        FlowDurationStore.flushAll()
+        assertEquals([FlowDurationStore.line("job1", 10, 1000, SUCCESS), FlowDurationStore.line("job2", 20, 2000, SUCCESS)]
+                .join(""), file.text)
+        store.flush()
+        assertEquals(2, file.readLines().size())
+    }
+
+    public void testBuildsAreKeptUntilWritten() {
+        // given
+        def dir = new File(file.path + ".d")
+        def store = new FlowDurationStore(new File(dir, "durations.log"))
+        store.record("job1", 10, 1000, SUCCESS)
+
+        // when
+        // the directory does not exist yet
+        store.flush()
+        dir.mkdirs()
+        store.flush()
+
+        // then
+        try {
+            assertEquals(FlowDurationStore.line("job1", 10, 1000, SUCCESS), new File(dir, "durations.log").text)
+        } finally {
+            dir.deleteDir()
+        }
+    }
+}
@@ -185,4 +185,106 @@ class FlowGraphTest extends TestCase {
         assertTrue(graph.findPath("job2", "non-existing") == null)
         assertTrue(graph.findPath("non-existing", "job2") == null)
     }
+
+    public void testReachabilityMatchesShortestPathSearch() {
+        // given
+        def InputStream graphIs = FlowGraphTest.class.getClassLoader().getResourceAsStream("real-gumtree-graph.properties")
+        def graph = FlowGraph.createFromPropertyFile(graphIs).freeze()
+        def vertices = graph.getVertices()
+
+        // when + then
+        vertices.each { source ->
+            vertices.each { target ->
+                def path = graph.findPath(source, target)
+                assertEquals("${source} -> ${target}", path != null && !path.isEmpty(), graph.pathExists(source, target))
+            }
+        }
+    }
+
+    public void testChildAndParentQueries() {
+        // given
+        def graph = new FlowGraph()
+                .addEdge("job1", "job2")
+                .addEdge("job2", "job3")
+                .addEdge("job1", "job4")
+                .freeze()
+
+        // when + then
+        assertTrue(graph.isChildOfAny("job3", ["job4", "job1"]))
+        assertFalse(graph.isChildOfAny("job3", ["job3", "job4"]))
+        assertTrue(graph.isParentOfAny("job1", ["job3"]))
+        assertFalse(graph.isParentOfAny("job2", ["job4", "job2", "non-existing"]))
+        assertTrue(graph.isNotChildOfAny("job1", ["job2", "job3", "job4"]))
+    }
+
+    public void testConnectedToAnyMustBuildJob() {
+        // given
+        def graph = new FlowGraph().withEdges(["job1", "job2"], ["job2", "job3"], ["job1", "job4"])
+
+        // when + then
+        assertTrue(graph.isConnectedToAny("job2", ["job2"]))
+        assertTrue(graph.isConnectedToAny("job1", ["job2"]))
+        assertTrue(graph.isConnectedToAny("job3", ["job2"]))
+        assertFalse(graph.isConnectedToAny("job4", ["job2"]))
+
+        graph.withBuildDependOnJobs(false)
+        assertFalse(graph.isConnectedToAny("job1", ["job2"]))
+        assertTrue(graph.isConnectedToAny("job3", ["job2"]))
+
+        graph.withBuildDependantJobs(false)
+        assertFalse(graph.isConnectedToAny("job3", ["job2"]))
+        assertTrue(graph.isConnectedToAny("job2", ["job1", "job3"]))
+    }
+
+    public void testReachabilityIsRecomputedAfterAddingAnEdge() {
+        // given
+        def graph = new FlowGraph()
+                .addEdge("job1", "job2")
+                .freeze()
+        assertFalse(graph.pathExists("job1", "job3"))
+
+        // when
+        graph.addEdge("job2", "job3")
+
+        // then
+        assertTrue(graph.pathExists("job1", "job3"))
+    }
+
+    public void testReachabilityOnCyclicGraph() {
+        // given
+        def graph = new FlowGraph()
+                .addEdge("job1", "job2")
+                .addEdge("job2", "job3")
+                .addEdge("job3", "job1")
+                .addEdge("job3", "job4")
+
+        // when + then
+        assertTrue(graph.pathExists("job2", "job1"))
+        assertTrue(graph.pathExists("job1", "job4"))
+        assertFalse(graph.pathExists("job4", "job1"))
+        assertFalse(graph.pathExists("job1", "job1"))
+    }
+
+    public void testCopiesDoNotShareChanges() {
+        // given
+        def graph = new FlowGraph()
+                .addEdge("job1", "job2")
+                .withFailurePolicy(FailurePolicy.DRAIN)
+                .withMustBuildJobs(["job1"])
+                .freeze()
+
+        // when
+        def copy = graph.copy().withMustBuildJobs(["job2"])
+        graph.addEdge("job2", "job3")
+        copy.addEdge("job1", "job4")
+
+        // then
+        assertEquals(FailurePolicy.DRAIN, copy.failurePolicy)
+        assertEquals(["job1"], graph.mustBuildJobs)
+        assertEquals(["job1", "job2"], copy.mustBuildJobs)
+        assertTrue(graph.pathExists("job1", "job3"))
+        assertFalse(graph.containsVertex("job4"))
+        assertFalse(copy.containsVertex("job3"))
+        assertTrue(copy.pathExists("job1", "job4"))
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import junit.framework.TestCase
+
+import static com.cloudbees.plugins.flow.FlowJournal.Event.*
+
+class FlowJournalTest extends TestCase {
+
+    private File file
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp()
+        file = File.createTempFile("journal", ".log")
+        file.delete()
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete()
+        super.tearDown()
+    }
+
+    public void testReplaysTheTimelineOfTheBuilds() {
+        def journal = new FlowJournal(file)
+        journal.record(FLOW_STARTED, null, "flow", 0, "", null)
+        journal.record(SCHEDULED, "build-2", "job1", 0, "", "build-1")
+        journal.record(QUEUED, "build-2", "job1", 0, "", null)
+        journal.record(STARTED, "build-2", "job1", 7, "", null)
+        journal.record(COMPLETED, "build-2", "job1", 7, "", "SUCCESS")
+        journal.record(FINALIZED, "build-2", "job1", 7, "", null)
+        journal.record(GRAPH_READY, null, "job2", 0, "", "released by job1")
+        Thread.sleep(5)
+        journal.record(SCHEDULED, "build-3", "job2", 0, "1", "build-2")
+        journal.record(CANCELLED, "build-3", "job2", 0, "1", null)
+        journal.close()
+
+        def replay = FlowJournalReplay.read(file)
+
+        assertEquals(["build-2", "build-3"], replay.invocations*.id)
+        def job1 = replay.getInvocation("build-2")
+        assertEquals("job1", job1.job)
+        assertEquals(7, job1.build)
+        assertEquals(["build-1"], job1.upstream)
+        assertEquals("SUCCESS", job1.result)
+        assertTrue(job1.scheduled <= job1.queued && job1.queued <= job1.started)
+        assertTrue(job1.completed <= job1.finalized)
+        // the flow itself is not in the journal
+        assertEquals(-1L, replay.getSchedulingLatency(job1))
+
+        def job2 = replay.getInvocation("build-3")
+        assertTrue(job2.cancelled)
+        assertEquals(-1L, job2.queueNanos)
+        assertTrue(replay.getSchedulingLatency(job2) >= 5000000L)
+
+        assertEquals([FLOW_STARTED.name(), GRAPH_READY.name(), CANCELLED.name()], replay.decisions*.event)
+        assertEquals("1", replay.decisions[2].get("branch"))
+    }
+
+    public void testKeepsTheTimeAcrossReopening() {
+        def journal = new FlowJournal(file)
+        journal.record(SCHEDULED, "build-2", "job1", 0, null, "")
+        journal.close()
+        journal.record(STARTED, "build-2", "job1", 3, null, null)
+        journal.close()
+
+        assertEquals(2, file.readLines().count { it.contains('"OPENED"') })
+        def job1 = FlowJournalReplay.read(file).getInvocation("build-2")
+        assertTrue(job1.queueNanos >= 0)
+        assertEquals([], job1.upstream)
+    }
+
+    public void testEscapesValues() {
+        def journal = new FlowJournal(file)
+        journal.record(RETRY, null, "folder/job \"1\"", 0, null, "line\nwith\ttabs \\ and \u0001")
+        journal.close()
+
+        def entry = FlowJournalReplay.read(file).decisions[0]
+        assertEquals("folder/job \"1\"", entry.get("job"))
+        assertEquals("line\nwith\ttabs \\ and \u0001", entry.get("detail"))
+    }
+
+    public void testSkipsTruncatedLines() {
+        def journal = new FlowJournal(file)
+        journal.record(SCHEDULED, "build-2", "job1", 0, null, null)
+        journal.close()
+        file.append('{"t":12,"event":"STAR')
+
+        def replay = FlowJournalReplay.read(file)
+        assertEquals(1, replay.entries.size())
+        assertNull(FlowJournalReplay.parse('{"t":12,"event":"STAR'))
+        assertEquals([t: "12", event: "STARTED"], FlowJournalReplay.parse('{"t":12, "event" : "STARTED"}'))
+    }
+
+    public void testWritesAReport() {
+        def journal = new FlowJournal(file)
+        journal.record(SCHEDULED, "build-2", "job1", 0, null, "build-1")
+        journal.record(STARTED, "build-2", "job1", 4, null, null)
+        journal.record(COMPLETED, "build-2", "job1", 4, null, "FAILURE")
+        journal.record(GRAPH_SKIPPED, null, "job2", 0, null, "job1 failed")
+        journal.close()
+
+        def bytes = new ByteArrayOutputStream()
+        FlowJournalReplay.read(file).writeReport(new PrintStream(bytes, true))
+        def report = bytes.toString()
+
+        assertTrue(report, (report =~ /build-2\s+job1\s+#4\s+build-1\s.*FAILURE/).find())
+        assertTrue(report, (report =~ /GRAPH_SKIPPED\s+job=job2 detail=job1 failed/).find())
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import hudson.model.AbstractBuild
+import hudson.model.AbstractProject
+import hudson.model.Cause
+import junit.framework.TestCase
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import static org.mockito.Mockito.*
+
+class FlowListenerTest extends TestCase {
+
+    private final FlowListener listener = new FlowListener()
+
+    public void testBuildsOfProjectsWithoutFlowBuildInFlightAreSkipped() {
+        // given
+        def build = mockBuild("FlowListenerTest-unrelated")
+
+        // when
+        listener.onStarted(build, null)
+        listener.onCompleted(build, null)
+        listener.onFinalized(build)
+
+        // then
+        verify(build, never()).getCauses()
+    }
+
+    public void testCausesOfProjectsWithFlowBuildInFlightAreLookedAt() {
+        // given
+        def build = mockBuild("FlowListenerTest-triggered")
+        when(build.getCauses()).thenReturn([new Cause.UserCause()])
+        FlowListener.buildScheduled("FlowListenerTest-triggered")
+
+        try {
+            // when
+            listener.onStarted(build, null)
+            listener.onCompleted(build, null)
+            listener.onFinalized(build)
+
+            // then
+            verify(build, times(3)).getCauses()
+        } finally {
+            FlowListener.buildDone("FlowListenerTest-triggered")
+        }
+        assertFalse(FlowListener.hasBuildInFlight("FlowListenerTest-triggered"))
+    }
+
+    public void testConcurrentBuildsAreRoutedOnce() {
+        // given
+        // builds triggered by flows of the same project running on many executors, with unrelated builds in between
+        def threads = 16
+        def builds = 200
+        def jobs = (0..<threads).collect { thread ->
+            (0..<builds).collect { new CountingInvocation("FlowListenerTest-flow", thread * builds + it) }
+        }
+        def triggered = jobs.collect { it.collect { mockTriggeredBuild(it) } }
+        def unrelated = (0..<threads).collect { mockBuild("FlowListenerTest-unrelated$it") }
+        def executor = Executors.newFixedThreadPool(threads)
+        def start = new CountDownLatch(1)
+        def done = new CountDownLatch(threads)
+
+        try {
+            threads.times { thread ->
+                executor.submit {
+                    start.await()
+                    triggered[thread].each { build ->
+                        FlowListener.buildScheduled("FlowListenerTest-flow")
+                        listener.onStarted(build, null)
+                        listener.onCompleted(unrelated[thread], null)
+                        listener.onCompleted(build, null)
+                        listener.onFinalized(build)
+                    }
+                    done.countDown()
+                }
+            }
+
+            // when
+            start.countDown()
+            assertTrue(done.await(60, TimeUnit.SECONDS))
+
+            // then
+            jobs.flatten().each { CountingInvocation job ->
+                assertEquals(1, job.starts.get())
+                assertEquals(1, job.completions.get())
+                assertEquals(1, job.finalizations.get())
+            }
+            assertFalse(FlowListener.hasBuildInFlight("FlowListenerTest-flow"))
+            unrelated.each { verify(it, never()).getCauses() }
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    private static AbstractBuild mockBuild(String projectName) {
+        def project = mock(AbstractProject.class)
+        when(project.getFullName()).thenReturn(projectName)
+        def build = mock(AbstractBuild.class)
+        when(build.getParent()).thenReturn(project)
+        return build
+    }
+
+    private static AbstractBuild mockTriggeredBuild(JobInvocation job) {
+        def cause = mock(FlowCause.class)
+        when(cause.getAssociatedJob()).thenReturn(job)
+        def build = mockBuild(job.getName())
+        when(build.getCauses()).thenReturn([cause])
+        return build
+    }
+
+    /**
+     * Counts the events routed to the invocation, which leaves the flight once finalized as a scheduled one does.
+     */
+    private static class CountingInvocation extends JobInvocation {
+
+        final AtomicInteger starts = new AtomicInteger()
+        final AtomicInteger completions = new AtomicInteger()
+        final AtomicInteger finalizations = new AtomicInteger()
+
+        CountingInvocation(String name, int uid) {
+            super(name, uid, 0, false, false, false, false)
+        }
+
+        @Override
+        void buildStarted(AbstractBuild build) {
+            starts.incrementAndGet()
+        }
+
+        @Override
+        void buildCompleted() {
+            completions.incrementAndGet()
+        }
+
+        @Override
+        void buildFinalized() {
+            finalizations.incrementAndGet()
+            FlowListener.buildDone(getName())
+        }
+    }
+}
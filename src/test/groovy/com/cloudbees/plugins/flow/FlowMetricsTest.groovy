@@ -0,0 +1,93 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import junit.framework.TestCase
+
+import javax.management.ObjectName
+import javax.management.openmbean.CompositeData
+import java.lang.management.ManagementFactory
+
+class FlowMetricsTest extends TestCase {
+
+    def server = ManagementFactory.platformMBeanServer
+
+    def name = new ObjectName(FlowMetrics.OBJECT_NAME)
+
+    public void tearDown() {
+        FlowMetrics.get().unregister()
+    }
+
+    public void testEmptyHistogram() {
+        def snapshot = new LatencyHistogram().snapshot()
+
+        assertEquals(0L, snapshot.count)
+        assertEquals(0L, snapshot.meanMillis)
+        assertEquals(0L, snapshot.p99Millis)
+    }
+
+    public void testHistogramPercentilesOverTheLastSamples() {
+        def histogram = new LatencyHistogram()
+        // the first samples fall out of the window but still count in the maximum
+        10.times { histogram.add(1000000) }
+        (1..LatencyHistogram.WINDOW).each { histogram.add(it) }
+
+        def snapshot = histogram.snapshot()
+        assertEquals(LatencyHistogram.WINDOW + 10L, snapshot.count)
+        assertEquals(1000000L, snapshot.maxMillis)
+        assertEquals(512L, snapshot.p50Millis)
+        assertEquals(973L, snapshot.p95Millis)
+        assertEquals(1014L, snapshot.p99Millis)
+    }
+
+    public void testExposedThroughJmx() {
+        // given
+        def metrics = FlowMetrics.get()
+        metrics.register()
+        metrics.compiled(40)
+        metrics.buildStarted(1000, 1250)
+
+        // when
+        def compileTime = (CompositeData) server.getAttribute(name, "CompileTime")
+        def schedulingLatency = (CompositeData) server.getAttribute(name, "SchedulingLatency")
+
+        // then
+        assertTrue(compileTime.get("count") >= 1L)
+        assertTrue(compileTime.get("maxMillis") >= 40L)
+        assertTrue(schedulingLatency.get("maxMillis") >= 250L)
+        assertEquals(0, server.getAttribute(name, "ActiveRuns"))
+        assertEquals(0, server.getAttribute(name, "ReadyJobs"))
+        assertEquals(BuildFlowPlugin.scheduler.maxThreads, server.getAttribute(name, "SchedulerMaxThreads"))
+    }
+
+    public void testRegisteredOnce() {
+        FlowMetrics.get().register()
+        FlowMetrics.get().register()
+        assertTrue(server.isRegistered(name))
+
+        FlowMetrics.get().unregister()
+        assertFalse(server.isRegistered(name))
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import jenkins.model.Jenkins
+
+class FlowRunTest extends DSLTestCase {
+
+    public void testFindJobReturnsTheFirstInvocationOfAJob() {
+        // given
+        def job1 = createJob("job1")
+        def job2 = createJob("job2")
+        def run = new FlowRun(new BuildFlow(Jenkins.instance, getName()))
+        def first = new JobInvocation(run, job1)
+        run.addBuild(first)
+        run.addBuild(new JobInvocation(run, job2))
+        run.addBuild(new JobInvocation(run, job1))
+
+        // then
+        assert first.is(run.findJob("job1").get())
+        assert "job2" == run.findJob("job2").get().name
+        assert !run.findJob("job3").isPresent()
+        assert 4 == run.jobsGraph.vertexSet().size()
+    }
+
+    public void testGraphParentsAreLookedUpByName() {
+        // given
+        def parent = createJob("parent")
+        def child = createJob("child")
+        def run = new FlowRun(new BuildFlow(Jenkins.instance, getName()))
+        run.state = new FlowState(run.state, new FlowGraph().withEdges(["parent", "child"], ["missing", "child"]))
+
+        // when
+        def parentInvocation = new JobInvocation(run, parent)
+        def childInvocation = new JobInvocation(run, child)
+        run.addBuild(parentInvocation)
+        run.addBuild(childInvocation)
+
+        // then
+        assert run.jobsGraph.containsEdge(run.startJob, parentInvocation)
+        assert run.jobsGraph.containsEdge(parentInvocation, childInvocation)
+        assert 1 == run.jobsGraph.incomingEdgesOf(childInvocation).size()
+    }
+
+    public void testBuildsWithoutParentsInTheRunFollowTheStart() {
+        // given
+        // none of the parents of the job is part of the run, every add has to look them all up
+        def job = createJob("job")
+        def run = new FlowRun(new BuildFlow(Jenkins.instance, getName()))
+        run.state = new FlowState(run.state, new FlowGraph().withEdges(["missing", "job"]))
+
+        // when
+        def invocations = (1..100).collect { new JobInvocation(run, job) }
+        invocations.each { run.addBuild(it) }
+
+        // then
+        assert invocations.size() + 1 == run.jobsGraph.vertexSet().size()
+        assert invocations.every { run.jobsGraph.incomingEdgesOf(it)*.source == [run.startJob] }
+        assert invocations[0].is(run.findJob("job").get())
+    }
+
+    public void testDurationOfTriggeredBuildsIsRecorded() {
+        // given
+        def job1 = createJob("job1")
+        def job2 = createJob("job2")
+
+        // when
+        def flow = run("""
+            build("job1")
+            build("job2")
+            build("job1")
+        """)
+
+        // then
+        def store = flow.buildFlow.durationStore
+        assertEquals(2, store.getSummary("job1").count)
+        assertEquals(1, store.getSummary("job2").count)
+        assert store.estimateRunMillis("job1") >= 0
+        store.flush()
+        assert new File(flow.buildFlow.rootDir, "durations.log").readLines().size() == 3
+        assert 0L == flow.estimatedRemainingMillis
+    }
+
+    public void testJournalRecordsTheBuildsOfTheFlow() {
+        // given
+        createJobs(["job1", "job2", "clean"])
+
+        // when
+        def flow = run("""
+            build("job1")
+            guard {
+                build("job2")
+            } rescue {
+                build("clean")
+            }
+        """)
+
+        // then
+        def replay = FlowJournalReplay.read(new File(flow.rootDir, FlowJournal.FILE_NAME))
+        def invocations = replay.invocations as List
+        assert ["job1", "job2", "clean"] == invocations*.job
+        assert invocations.every { it.result == "SUCCESS" && it.finalized >= it.completed && it.started >= it.scheduled }
+        assert [invocations[0].id] == invocations[1].upstream
+        def events = replay.decisions*.event
+        assert events.first() == "FLOW_STARTED"
+        assert events.containsAll(["GUARD", "RESCUE"])
+        assert events.last() == "FLOW_COMPLETED"
+    }
+
+    public void testTimingsOfTheBuildsOfTheFlow() {
+        // given
+        createJobs(["job1", "job2"])
+
+        // when
+        def flow = run("""
+            build("job1")
+            parallel(
+                { build("job2") }
+            )
+        """)
+
+        // then
+        def timings = flow.timings
+        assert timings.is(flow.getAction(FlowTimingAction))
+        assert ["job1", "job2"] == timings.builds*.job
+        assert timings.builds.every {
+            it.number > 0 && it.started >= it.scheduled && it.completed >= it.started && it.finalized >= it.completed
+        }
+        assert timings.dslMillis >= 0
+        assert timings.waitMillis >= timings.builds*.runMillis.max()
+    }
+
+    public void testJobsGraphIsKeptOutOfTheBuildRecord() {
+        // given
+        createJobs(["job1", "job2"])
+        def flow = run("""
+            build("job1")
+            build("job2")
+        """)
+
+        // when
+        def loaded = new FlowRun(flow.project, flow.rootDir)
+
+        // then
+        assert new File(flow.rootDir, JobsGraphFile.FILE_NAME).exists()
+        assert !new File(flow.rootDir, "build.xml").text.contains("jobsGraph")
+        assert loaded.@graph == null
+        def vertices = loaded.jobsGraph.vertexSet() as List
+        assert loaded.startJob.is(vertices[0])
+        assert ["job1", "job2"] == vertices.tail()*.name
+        assert flow.jobsGraph.edgeSet()*.toString() == loaded.jobsGraph.edgeSet()*.toString()
+        assert vertices.tail().every { it.finalized && it.build.number == it.buildNumber }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import junit.framework.TestCase
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class FlowSchedulerTest extends TestCase {
+
+    def FlowScheduler scheduler
+
+    @Override
+    protected void tearDown() throws Exception {
+        scheduler?.shutdown()
+        super.tearDown()
+    }
+
+    public void testThreadCountStaysFlatWhenFlowsFanOut() {
+        // given
+        scheduler = new FlowScheduler(8, 2)
+        def release = new CountDownLatch(1)
+
+        // when
+        // 40 flows with 10 parallel branches each
+        def tasks = []
+        (1..40).each { flow ->
+            (1..10).each { branch ->
+                tasks.add(scheduler.submit("flow$flow", "branch $flow.$branch", { release.await() } as Callable))
+            }
+        }
+
+        // then
+        assertEquals(8, scheduler.activeCount)
+        assertEquals(392, scheduler.queueDepth)
+        assertTrue(scheduler.poolSize <= 8)
+
+        release.countDown()
+        tasks.each { it.get(10, TimeUnit.SECONDS) }
+        assertEquals(0, scheduler.activeCount)
+        assertEquals(0, scheduler.queueDepth)
+        assertEquals(0, scheduler.flowCount)
+    }
+
+    public void testFlowsGetAFairShare() {
+        // given
+        scheduler = new FlowScheduler(4, 2)
+        def release = new CountDownLatch(1)
+        def wideFlow = (1..10).collect { scheduler.submit("wide", "wide", { release.await() } as Callable) }
+
+        // when
+        def otherFlow = scheduler.submit("other", "other", { "done" } as Callable)
+
+        // then
+        // the wide flow has used its share, so the other one does not wait behind it
+        assertEquals("done", otherFlow.get(10, TimeUnit.SECONDS))
+        assertEquals(8, scheduler.queueDepth)
+
+        release.countDown()
+        wideFlow.each { it.get(10, TimeUnit.SECONDS) }
+    }
+
+    public void testWaitingThreadRunsTheTaskItWaitsFor() {
+        // given
+        scheduler = new FlowScheduler(1, 1)
+
+        // when
+        // the only thread waits for a nested branch which can only be run by the waiting thread itself
+        def outer = scheduler.submit("flow", "outer", {
+            def inner = scheduler.submit("flow", "inner", { Thread.currentThread().name } as Callable)
+            inner.get()
+        } as Callable)
+
+        // then
+        assertEquals("inner", outer.get(10, TimeUnit.SECONDS))
+    }
+
+    public void testCancelledTaskDoesNotRun() {
+        // given
+        scheduler = new FlowScheduler(1, 1)
+        def release = new CountDownLatch(1)
+        def ran = false
+        def blocking = scheduler.submit("flow", "blocking", { release.await() } as Callable)
+        def queued = scheduler.submit("flow", "queued", { ran = true } as Callable)
+
+        // when
+        queued.cancel(false)
+        release.countDown()
+        blocking.get(10, TimeUnit.SECONDS)
+
+        // then
+        assertTrue(queued.isCancelled())
+        assertFalse(ran)
+    }
+
+    public void testCallbacksDoNotWaitForTheLane() {
+        // given
+        scheduler = new FlowScheduler(2, 2)
+        def release = new CountDownLatch(1)
+        // the branches hold every thread and wait for the callback
+        def branches = (1..2).collect { scheduler.submit("flow", "branch", { release.await() } as Callable) }
+
+        // when
+        scheduler.execute("callback", { release.countDown() } as Runnable)
+
+        // then
+        branches.each { it.get(10, TimeUnit.SECONDS) }
+        assertEquals(0, scheduler.activeCount)
+    }
+}
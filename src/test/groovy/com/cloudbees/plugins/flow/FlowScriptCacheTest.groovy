@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import static hudson.model.Result.SUCCESS
+
+class FlowScriptCacheTest extends DSLTestCase {
+
+    public void testScriptIsCompiledOnce() {
+        // given
+        def job1 = createJob("job1")
+        def cache = FlowScriptCache.get()
+        def script = """
+            build("job1")
+            // ${getName()}
+        """
+        def misses = cache.missCount
+        def hits = cache.hitCount
+
+        // when
+        def flow1 = run(script)
+        def flow2 = run(script)
+
+        // then
+        assert SUCCESS == flow1.result
+        assert SUCCESS == flow2.result
+        assertRan(job1, 2, SUCCESS)
+        assert misses + 1 == cache.missCount
+        assert hits + 1 == cache.hitCount
+    }
+
+    public void testEveryRunGetsItsOwnScript() {
+        def script = "build(\"job1\")"
+        def cache = FlowScriptCache.get()
+
+        assert cache.compile(script).is(cache.compile(script))
+        assert !cache.newScript(script).is(cache.newScript(script))
+        assert !cache.compile(script).is(cache.compile(script + "\n"))
+    }
+
+    public void testBoundedSize() {
+        def cache = new FlowScriptCache(2)
+        (0..<5).each { cache.compile("build(\"job$it\")") }
+
+        assert cache.size() <= 2
+        assert 5 == cache.missCount
+    }
+
+    public void testScriptsAreWarmedAgainAfterShutdown() {
+        def cache = new FlowScriptCache(2)
+        cache.warm("build(\"job0\")")
+        waitForSize(cache, 1)
+
+        cache.shutdown()
+        cache.warm("build(\"job1\")")
+
+        waitForSize(cache, 2)
+        assert 2 == cache.missCount
+    }
+
+    private static void waitForSize(FlowScriptCache cache, long size) {
+        def deadline = System.currentTimeMillis() + 10000
+        while (cache.size() < size) {
+            assert System.currentTimeMillis() < deadline
+            Thread.sleep(10)
+        }
+    }
+}
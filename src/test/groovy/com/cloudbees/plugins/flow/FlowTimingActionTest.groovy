@@ -0,0 +1,127 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import hudson.util.XStream2
+import junit.framework.TestCase
+
+import static com.cloudbees.plugins.flow.FlowJournal.Event.*
+
+class FlowTimingActionTest extends TestCase {
+
+    public void testRecordsTheTimesOfTheBuilds() {
+        // given
+        def timings = new FlowTimingAction(System.currentTimeMillis())
+
+        // when
+        timings.record(SCHEDULED, "build-2", "job1", 0)
+        timings.record(QUEUED, "build-2", "job1", 0)
+        Thread.sleep(5)
+        timings.record(STARTED, "build-2", "job1", 7)
+        timings.record(COMPLETED, "build-2", "job1", 7)
+        timings.record(FINALIZED, "build-2", "job1", 7)
+        timings.record(SCHEDULED, "build-3", "job2", 0)
+
+        // then
+        def builds = timings.builds
+        assertEquals(["job1", "job2"], builds*.job)
+        def job1 = builds[0]
+        assertEquals(7, job1.number)
+        assertTrue(job1.scheduled >= 0)
+        assertTrue(job1.queueMillis >= 5)
+        assertTrue(job1.completed >= job1.started && job1.finalized >= job1.completed)
+        assertEquals(-1L, builds[1].started)
+        assertEquals(-1L, builds[1].queueMillis)
+    }
+
+    public void testSeparatesTheDslFromTheWaits() {
+        // given
+        def timings = new FlowTimingAction(System.currentTimeMillis())
+        timings.dslStarted()
+
+        // when
+        timings.waitStarted()
+        timings.waitStarted()
+        Thread.sleep(20)
+        timings.waitCompleted()
+        timings.waitCompleted()
+        def other = Thread.start {
+            timings.waitStarted()
+            Thread.sleep(20)
+            timings.waitCompleted()
+        }
+        other.join()
+        assertEquals(-1L, timings.dslMillis)
+        timings.dslCompleted()
+
+        // then
+        assertTrue(timings.waitMillis >= 20)
+        assertTrue(timings.dslMillis >= 20)
+    }
+
+    public void testWritesJson() {
+        // given
+        def timings = new FlowTimingAction(1000)
+        timings.record(SCHEDULED, "build-2", "job \"1\"", 0)
+        timings.record(REUSED, "build-2", "job \"1\"", 0)
+
+        // when
+        def out = new StringWriter()
+        timings.writeJson(out)
+
+        // then
+        def json = out.toString()
+        assertTrue(json, json.startsWith('{"origin":1000,"dslMillis":-1,"waitMillis":0,"builds":[{"number":0,'))
+        assertTrue(json, json.contains('"reused":true,"id":"build-2","job":"job \\"1\\""}]'))
+        assertTrue(json, json.endsWith('"queueMillis":0,"runMillis":0}'))
+    }
+
+    public void testReadsTheBuildsBackFromTheJournal() {
+        // given
+        def file = File.createTempFile("journal", ".log")
+        file.deleteOnExit()
+        def journal = new FlowJournal(file)
+        def timings = new FlowTimingAction(System.currentTimeMillis())
+        [SCHEDULED, STARTED, COMPLETED, FINALIZED].each { event ->
+            journal.record(event, "build-2", "job1", 7, null, null)
+            timings.record(event, "build-2", "job1", 7)
+        }
+        journal.close()
+
+        // when
+        def xstream = new XStream2()
+        def xml = xstream.toXML(timings)
+        def loaded = (FlowTimingAction) xstream.fromXML(xml)
+        loaded.setJournal(file)
+
+        // then
+        assertFalse(xml, xml.contains("build-2"))
+        def build = loaded.builds[0]
+        assertEquals(["job1"], loaded.builds*.job)
+        assertEquals(7, build.number)
+        assertTrue(Math.abs(build.started - timings.builds[0].started) <= 5)
+        assertTrue(build.finalized >= build.completed && build.completed >= build.started)
+    }
+}
@@ -347,6 +347,104 @@ class GraphBuildTest extends DSLTestCase {
         assertAborted(slowJob)
     }
 
+    public void testAbortPolicyReleasesExecutorsRightAfterTheFailure() {
+        // given
+        Jenkins.getInstance().setNumExecutors(3)
+        def Job[] jobs = createJobs(["job0"])
+        def willFail = createFailJob("willFail")
+        def slowJob = createDelayedJob("slowJob", 60000)
+        def otherSlowJob = createDelayedJob("otherSlowJob", 60000)
+
+        // when
+        def flow = run("""
+            build(graph(["job0", "willFail"], ["job0", "slowJob"], ["job0", "otherSlowJob"])
+                .withMustBuildJobs(["job0"])
+                .withFailurePolicy(FailurePolicy.ABORT))
+        """)
+
+        // then
+        assert FAILURE == flow.result
+        assertFailure(willFail)
+        assertAborted(slowJob)
+        assertAborted(otherSlowJob)
+        assert 0 == Jenkins.getInstance().toComputer().countBusy()
+    }
+
+    public void testCancelQueuedPolicyLetsRunningBuildsFinish() {
+        // given
+        Jenkins.getInstance().setNumExecutors(3)
+        def Job[] jobs = createJobs(["job0"])
+        def willFail = createFailJob("willFail")
+        def delayJob = createDelayedJob("delayJob", 3000)
+        def queuedJob = createJob("queuedJob")
+        // never leaves the queue
+        queuedJob.setAssignedLabel(Jenkins.getInstance().getLabel("nowhere"))
+
+        // when
+        def flow = run("""
+            build(graph(["job0", "willFail"], ["job0", "delayJob"], ["job0", "queuedJob"])
+                .withMustBuildJobs(["job0"])
+                .withFailurePolicy(FailurePolicy.CANCEL_QUEUED))
+        """)
+
+        // then
+        assert FAILURE == flow.result
+        assertFailure(willFail)
+        assertSuccess(delayJob)
+        assertDidNotRun(queuedJob)
+        assert Jenkins.getInstance().queue.isEmpty()
+    }
+
+    public void testDrainPolicyLetsRunningBuildsFinish() {
+        // given
+        Jenkins.getInstance().setNumExecutors(3)
+        def Job[] jobs = createJobs(["job0", "job1"])
+        def willFail = createFailJob("willFail")
+        def delayJob = createDelayedJob("delayJob", 3000)
+
+        // when
+        def flow = run("""
+            build(graph(["job0", "willFail"], ["job0", "delayJob"], ["delayJob", "job1"])
+                .withMustBuildJobs(["job0"])
+                .withFailurePolicy("DRAIN"))
+        """)
+
+        // then
+        assert FAILURE == flow.result
+        assertFailure(willFail)
+        assertSuccess(delayJob)
+        // no new build once a build has failed
+        assertDidNotRun(jobs[1])
+    }
+
+    public void testContinuePolicyBuildsIndependentBranches() {
+        // given
+        // job0 -> willFail -> job1
+        //      -> job2     -> job3
+        //                  -> job1
+        // job4
+        def Job[] jobs = createJobs(["job0", "job1", "job2", "job3", "job4"])
+        def willFail = createFailJob("willFail")
+
+        // when
+        def flow = run("""
+            build(graph(["job0", "willFail"], ["willFail", "job1"], ["job0", "job2"], ["job2", "job3"], ["job2", "job1"])
+                .addVertex("job4")
+                .withMustBuildJobs(["job0", "job4"])
+                .withFailurePolicy(FailurePolicy.CONTINUE))
+        """)
+
+        // then
+        assert FAILURE == flow.result
+        assertFailure(willFail)
+        assertAllSuccess([jobs[0], jobs[2], jobs[3], jobs[4]])
+        assertDidNotRun(jobs[1])
+        def log = flow.log
+        assert log.contains("Skipping job1 because willFail job has failed")
+        assert log.contains("Summary: ")
+        assert log.contains("NOT_BUILT [1]: job1")
+    }
+
     public void testChangedDependantAndDependOnJobAreBuild() {
         // given
         // job0 -> job1 -> job3 -> job6
@@ -444,4 +542,68 @@ class GraphBuildTest extends DSLTestCase {
         assertAllDidNotRun([jobs[0], jobs[2], jobs[4], jobs[5], jobs[7]])
         assert SUCCESS == flow.result
     }
+
+    public void testGraphWiderThanThePerFlowThreadLimit() {
+        // given
+        // a build waiting in the queue or running does not hold any of the flow's threads
+        def scheduler = BuildFlowPlugin.getScheduler()
+        def maxThreadsPerFlow = scheduler.maxThreadsPerFlow
+        scheduler.maxThreadsPerFlow = 1
+        Jenkins.getInstance().setNumExecutors(8)
+        def names = (0..<8).collect { "job$it".toString() }
+        def jobs = createJobs(names + "join")
+        def edges = names.collect { "[\"$it\", \"join\"]" }.join(", ")
+
+        try {
+            // when
+            def flow = run("""
+                build(graph(${edges}).withMustBuildJobs(${names.collect { "\"$it\"" }}))
+            """)
+
+            // then
+            assertAllSuccess(jobs)
+            assert SUCCESS == flow.result
+        } finally {
+            scheduler.maxThreadsPerFlow = maxThreadsPerFlow
+        }
+    }
+
+    public void testFlowCompletesRightAfterLastBuildOnLargeGraph() {
+        // given
+        // 10 layers of 20 jobs, every job depends on the job with the same index in the previous layer
+        Jenkins.getInstance().setNumExecutors(10)
+        def names = (0..<200).collect { "job$it".toString() }
+        def jobs = createJobs(names)
+        def edges = (20..<200).collect { i -> "[\"job${i - 20}\", \"job$i\"]" }.join(", ")
+
+        // when
+        def flow = run("""
+            build(graph(${edges}).withMustBuildJobs(${(0..<20).collect { "\"job$it\"" }}))
+        """)
+
+        // then
+        assertAllSuccess(jobs)
+        assert SUCCESS == flow.result
+
+        // the graph build is woken up by the last build being finalized, nothing happens in between
+        def events = FlowJournalReplay.read(new File(flow.rootDir, FlowJournal.FILE_NAME)).entries*.event
+        assert events.count("FINALIZED") == jobs.size()
+        assert ["FINALIZED", "FLOW_COMPLETED"] == events[-2..-1]
+    }
+
+    public void testParallelGraphBuildsWiderThanTheLane() {
+        // given
+        // every branch waits for its graph build, which is driven by callbacks
+        def width = FlowScheduler.DEFAULT_MAX_THREADS_PER_FLOW + 1
+        def jobs = createJobs((1..width).collect { "job$it" })
+
+        // when
+        def flow = run("parallel(" + (1..width).collect {
+            "{ build(graph().addVertex(\"job$it\").withMustBuildJobs([\"job$it\"])) }"
+        }.join(", ") + ")")
+
+        // then
+        assertAllSuccess(jobs)
+        assert SUCCESS == flow.result
+    }
 }
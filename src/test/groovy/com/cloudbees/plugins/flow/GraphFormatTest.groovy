@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import junit.framework.TestCase
+
+class GraphFormatTest extends TestCase {
+
+    public void testGraphAndMetadataSurviveARoundTrip() {
+        // given
+        def graph = new FlowGraph().withEdges(["job0", "job1"], ["job0", "job2"], ["job1", "job3"], ["job2", "job3"])
+                .withWeight("job0", 60000)
+                .withLabel("job1", "Compile")
+                .withParams("job3", [TARGET: "prod"])
+
+        // when
+        def loaded = GraphFormat.read(new ByteArrayInputStream(write(graph)))
+
+        // then
+        assertEquals(graph, loaded)
+        assertEquals(60000L, loaded.getWeight("job0"))
+        assertNull(loaded.getWeight("job1"))
+        assertEquals("Compile", loaded.getLabel("job1"))
+        assertEquals([TARGET: "prod"], loaded.getParams("job3"))
+        assertTrue(loaded.pathExists("job0", "job3"))
+        assertFalse(loaded.pathExists("job1", "job2"))
+    }
+
+    public void testLoadedGraphCanBeQueriedAndChanged() {
+        // given
+        def graph = new FlowGraph().withEdges(["job0", "job1"], ["job0", "job2"], ["job1", "job3"])
+        def loaded = GraphFormat.read(new ByteArrayInputStream(write(graph)))
+
+        // when
+        def copy = loaded.copy().addEdge("job3", "job4")
+
+        // then
+        assertEquals(["job1", "job2"] as Set, loaded.getChildren("job0"))
+        assertEquals(["job1"] as Set, loaded.getParents("job3"))
+        assertEquals([] as Set, loaded.getParents("job0"))
+        assertEquals([] as Set, loaded.getParents("job4"))
+        assertEquals(4, loaded.vertexCount)
+        assertEquals(3, loaded.edgeCount)
+        // none of the queries above needs the edges to be indexed
+        assertNull(loaded.@topology.@graph)
+        assertTrue(loaded.containsVertex("job3"))
+        assertFalse(loaded.containsVertex("job4"))
+        assertTrue(copy.containsEdge("job3", "job4"))
+        assertTrue(copy.pathExists("job0", "job4"))
+        assertEquals(graph, loaded)
+    }
+
+    public void testMetadataOfACopyIsChangedWithoutCopyingTheGraph() {
+        // given
+        def graph = new FlowGraph().withEdges(["job0", "job1"], ["job1", "job2"])
+                .withWeight("job0", 60000)
+                .withLabel("job1", "Compile")
+        def loaded = GraphFormat.read(new ByteArrayInputStream(write(graph)))
+
+        // when
+        def copy = loaded.copy()
+                .withWeight("job0", 30000)
+                .withLabel("job2", "Deploy")
+                .withParams("job2", [TARGET: "prod"])
+
+        // then
+        assertEquals(30000L, copy.getWeight("job0"))
+        assertEquals("Compile", copy.getLabel("job1"))
+        assertEquals("Deploy", copy.getLabel("job2"))
+        assertEquals([TARGET: "prod"], copy.getParams("job2"))
+        assertEquals(60000L, loaded.getWeight("job0"))
+        assertNull(loaded.getLabel("job2"))
+        assertNull(loaded.getParams("job2"))
+        // both still share the vertices and edges as read, without having indexed them
+        assertSame(loaded.@topology, copy.@topology)
+        assertNull(loaded.@topology.@graph)
+    }
+
+    public void testLoadDetectsTheFormat() {
+        def properties = "job1=job0\njob2=job1\n"
+        def graph = FlowGraph.createFromPropertyFile(new ByteArrayInputStream(properties.bytes))
+
+        assertEquals(graph, GraphFormat.load(new ByteArrayInputStream(properties.bytes)))
+        assertEquals(graph, GraphFormat.load(new ByteArrayInputStream(write(graph))))
+    }
+
+    public void testCorruptedDefinitionsAreRejected() {
+        def bytes = write(new FlowGraph().withEdges(["job0", "job1"]).withWeight("job0", 1000))
+
+        // the last byte of the weight of job0
+        def corrupted = bytes.clone()
+        corrupted[4 + 2 + 4 + 2 + 4 + 1 + 7] = (byte) (corrupted[4 + 2 + 4 + 2 + 4 + 1 + 7] ^ 1)
+        assertRejected(corrupted, "checksum")
+
+        assertRejected(Arrays.copyOf(bytes, bytes.length - 2), "Truncated")
+
+        def newer = bytes.clone()
+        newer[5] = (byte) (GraphFormat.VERSION + 1)
+        assertRejected(newer, "version")
+    }
+
+    public void testGraphsWithACycleCannotBeWritten() {
+        try {
+            write(new FlowGraph().withEdges(["job0", "job1"], ["job1", "job0"]))
+            fail("cycles cannot be written in topological order")
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.message, e.message.contains("job0"))
+        }
+    }
+
+    public void testConvertsAPropertyFile() {
+        def properties = File.createTempFile("graph", ".properties")
+        def converted = File.createTempFile("graph", ".bfg")
+        try {
+            properties.text = "job1=job0\njob2=job0,job1\n"
+
+            GraphFormat.main(properties.path, converted.path)
+
+            def expected = properties.withInputStream { FlowGraph.createFromPropertyFile(it) }
+            assertEquals(expected, converted.withInputStream { GraphFormat.read(it) })
+            assertEquals(expected, DefinitionCache.get().getGraph(converted.toURI().toString()))
+        } finally {
+            properties.delete()
+            converted.delete()
+        }
+    }
+
+    private static byte[] write(FlowGraph graph) {
+        def out = new ByteArrayOutputStream()
+        GraphFormat.write(graph, out)
+        out.toByteArray()
+    }
+
+    private static void assertRejected(byte[] bytes, String reason) {
+        try {
+            GraphFormat.read(new ByteArrayInputStream(bytes))
+            fail("expected to be rejected: " + reason)
+        } catch (IOException e) {
+            assertTrue(e.message, e.message.contains(reason))
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import junit.framework.TestCase
+
+class GraphScheduleTest extends TestCase {
+
+    public void testReleasesJobsInDependencyOrder() {
+        // given
+        // job0 -> job1 -> job3
+        //      -> job2 -> job3
+        def graph = new FlowGraph().withEdges(["job0", "job1"], ["job0", "job2"], ["job1", "job3"], ["job2", "job3"])
+        def schedule = new GraphSchedule(graph, ["job0", "job1", "job2", "job3"])
+
+        // when + then
+        assertEquals("job0", schedule.poll())
+        assertNull(schedule.poll())
+
+        assertEquals(["job1", "job2"], schedule.complete("job0"))
+        assertEquals("job1", schedule.poll())
+        assertEquals("job2", schedule.poll())
+
+        assertTrue(schedule.complete("job1").isEmpty())
+        assertEquals(["job3"], schedule.complete("job2"))
+        assertEquals("job3", schedule.poll())
+        assertFalse(schedule.isFinished())
+
+        schedule.complete("job3")
+        assertTrue(schedule.isFinished())
+        assertEquals(0, schedule.waitingCount)
+    }
+
+    public void testDependenciesGoThroughJobsWhichAreNotBuilt() {
+        // given
+        // job0 -> skipped -> job2
+        def graph = new FlowGraph().withEdges(["job0", "skipped"], ["skipped", "job2"])
+        def schedule = new GraphSchedule(graph, ["job0", "job2"])
+
+        // when + then
+        assertEquals("job0", schedule.poll())
+        assertNull(schedule.poll())
+        assertEquals(["job2"], schedule.complete("job0"))
+    }
+
+    public void testIndependentJobsAreReadyRightAway() {
+        // given
+        def graph = new FlowGraph().withEdges(["job0", "job1"]).addVertex("job2")
+        def schedule = new GraphSchedule(graph, ["job0", "job1", "job2"])
+
+        // when + then
+        assertEquals(2, schedule.readyCount)
+        assertEquals(3, schedule.waitingCount)
+        assertEquals("job0", schedule.poll())
+        assertEquals("job2", schedule.poll())
+        assertEquals(1, schedule.waitingCount)
+    }
+
+    public void testCompletingTwiceOrUnknownJobReleasesNothing() {
+        // given
+        def graph = new FlowGraph().withEdges(["job0", "job1"], ["job2", "job1"])
+        def schedule = new GraphSchedule(graph, ["job0", "job1", "job2"])
+
+        // when + then
+        assertTrue(schedule.complete("job0").isEmpty())
+        assertTrue(schedule.complete("job0").isEmpty())
+        assertTrue(schedule.complete("unknown").isEmpty())
+        assertEquals(["job1"], schedule.complete("job2"))
+    }
+
+    public void testFailureSkipsOnlyTheDescendants() {
+        // given
+        // job0 -> job1 -> job3
+        //      -> job2 -> job3
+        //              -> job4
+        // job5
+        def graph = new FlowGraph().withEdges(["job0", "job1"], ["job0", "job2"], ["job1", "job3"], ["job2", "job3"],
+                ["job2", "job4"]).addVertex("job5")
+        def schedule = new GraphSchedule(graph, ["job0", "job1", "job2", "job3", "job4", "job5"])
+        assertEquals("job0", schedule.poll())
+        assertEquals("job5", schedule.poll())
+        schedule.complete("job0")
+        assertEquals("job1", schedule.poll())
+        assertEquals("job2", schedule.poll())
+
+        // when
+        def skipped = schedule.fail("job1")
+
+        // then
+        assertEquals(["job3"], skipped)
+        assertEquals(["job4"], schedule.complete("job2"))
+        assertEquals("job4", schedule.poll())
+        assertNull(schedule.poll())
+        schedule.complete("job4")
+        assertFalse(schedule.isFinished())
+        schedule.complete("job5")
+        assertTrue(schedule.isFinished())
+        assertEquals(["job3"] as Set, schedule.skipped)
+    }
+
+    public void testLongestRemainingPathIsHandedOutFirst() {
+        // given
+        // short -> end
+        // long1 -> long2 -> end
+        def graph = new FlowGraph().withEdges(["short", "end"], ["long1", "long2"], ["long2", "end"])
+        def durations = [short: 10L, long1: 10L, long2: 10L, end: 10L]
+        def schedule = new GraphSchedule(graph, ["short", "long1", "long2", "end"], durations)
+
+        // then
+        assertEquals(10L, schedule.getRank("end"))
+        assertEquals(20L, schedule.getRank("short"))
+        assertEquals(30L, schedule.getRank("long1"))
+        assertEquals("long1", schedule.poll())
+        assertEquals("short", schedule.poll())
+    }
+
+    public void testJobsWithoutDurationGetTheAverageOne() {
+        def graph = new FlowGraph().withEdges(["job0", "job1"]).addVertex("job2")
+        def schedule = new GraphSchedule(graph, ["job0", "job1", "job2"], [job0: 10L, job2: 30L])
+
+        assertEquals(20L, schedule.getRank("job1"))
+        assertEquals(30L, schedule.getRank("job0"))
+        assertEquals("job0", schedule.poll())
+    }
+
+    public void testCriticalPathFirstShortensTheMakespanOfSkewedGraphs() {
+        // given
+        // 12 independent short jobs listed before a chain of 4 jobs, 2 executors
+        def graph = new FlowGraph()
+        def jobs = []
+        def durations = [:]
+        (0..<12).each {
+            graph.addVertex("short$it".toString())
+            jobs << "short$it".toString()
+            durations["short$it".toString()] = 10L
+        }
+        (0..<4).each {
+            jobs << "chain$it".toString()
+            durations["chain$it".toString()] = 10L
+            if (it > 0) {
+                graph.addEdge("chain${it - 1}".toString(), "chain$it".toString())
+            }
+        }
+
+        // when
+        def inOrder = simulateMakespan(new GraphSchedule(graph, jobs), durations, 2)
+        def criticalPathFirst = simulateMakespan(new GraphSchedule(graph, jobs, durations), durations, 2)
+
+        // then
+        println("makespan: ${inOrder} in release order, ${criticalPathFirst} critical path first")
+        assertEquals(100L, inOrder)
+        assertEquals(80L, criticalPathFirst)
+    }
+
+    /**
+     * Runs the schedule on the given number of executors, every job taking its duration
+     */
+    private static long simulateMakespan(GraphSchedule schedule, Map<String, Long> durations, int executors) {
+        long now = 0
+        def running = []
+        while (!schedule.isFinished()) {
+            String job
+            while (running.size() < executors && (job = schedule.poll()) != null) {
+                running << [now + durations[job], job]
+            }
+            def next = running.min { it[0] }
+            running.remove(next)
+            now = next[0]
+            schedule.complete(next[1])
+        }
+        return now
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import hudson.model.Result
+import junit.framework.TestCase
+
+import static com.cloudbees.plugins.flow.GraphSimulation.Distribution.constant
+
+class GraphSimulationTest extends TestCase {
+
+    public void testBuildsOnAVirtualClock() {
+        // given
+        def graph = new FlowGraph().withEdges(["job0", "job1"], ["job1", "job2"]).withMustBuildJobs(["job0"])
+
+        // when
+        def report = new GraphSimulation().withDuration(constant(1000)).run(graph)
+
+        // then
+        assertEquals([job0: Result.SUCCESS, job1: Result.SUCCESS, job2: Result.SUCCESS], report.results)
+        assertEquals(3000, report.makespanMillis)
+        assertEquals(3, report.builds)
+        assertEquals(1.0d, report.utilization, 0.001d)
+        assertFalse(report.failed)
+    }
+
+    public void testBuildsWaitForAFreeExecutor() {
+        // given
+        def graph = new FlowGraph().withEdges(["job0", "job1"], ["job0", "job2"], ["job0", "job3"], ["job0", "job4"])
+                .withMustBuildJobs(["job0"])
+
+        // when
+        def report = new GraphSimulation().withExecutors(2).withDuration(constant(1000)).run(graph)
+
+        // then
+        assertEquals(5, report.results.size())
+        assertEquals(3000, report.makespanMillis)
+        assertEquals(2, report.maxQueueLength)
+        assertEquals(2000, report.queueWaitMillis)
+        assertEquals(5000d / 2 / 3000, report.utilization, 0.001d)
+    }
+
+    public void testFailureAbortsTheRunningBuilds() {
+        // given
+        def graph = new FlowGraph().withEdges(["job0", "failing"], ["job0", "slow"], ["slow", "job3"])
+                .withMustBuildJobs(["job0"])
+
+        // when
+        def report = new GraphSimulation()
+                .withExecutors(2)
+                .withDuration(constant(1000))
+                .withJob("failing", constant(1000), 1)
+                .withJob("slow", constant(10000), 0)
+                .run(graph)
+
+        // then
+        assertEquals([job0: Result.SUCCESS, failing: Result.FAILURE, slow: Result.ABORTED, job3: Result.NOT_BUILT],
+                report.results)
+        assertEquals(2000, report.makespanMillis)
+        assertTrue(report.failed)
+    }
+
+    public void testDurationEstimatesStartTheLongestChainsFirst() {
+        // given
+        // job0 -> long
+        //      -> b1 -> b2 -> b3
+        //      -> c1 -> c2 -> c3
+        def graph = new FlowGraph().withEdges(["job0", "long"], ["job0", "b1"], ["b1", "b2"], ["b2", "b3"],
+                ["job0", "c1"], ["c1", "c2"], ["c2", "c3"]).withMustBuildJobs(["job0"]).withMaxParallelBuilds(2)
+        def simulation = new GraphSimulation()
+                .withExecutors(2)
+                .withDuration(constant(1000))
+                .withJob("long", constant(30000), 0)
+
+        // when
+        def withEstimates = simulation.withDurationEstimates(true).run(graph)
+        def withoutEstimates = simulation.withDurationEstimates(false).run(graph)
+
+        // then
+        assertEquals(31000, withEstimates.makespanMillis)
+        assertEquals(33000, withoutEstimates.makespanMillis)
+    }
+
+    public void testSimulatesLargeGraphs() {
+        // given
+        def random = new Random(1)
+        def graph = new FlowGraph().addVertex("job0")
+        for (int i = 1; i < 5000; i++) {
+            graph.addEdge("job" + (Math.max(0, i - 50) + random.nextInt(Math.min(i, 50))), "job" + i)
+        }
+        graph.withMustBuildJobs(["job0"])
+
+        // when
+        def report = new GraphSimulation()
+                .withExecutors(50)
+                .withDuration(GraphSimulation.Distribution.logNormal(60000, 0.5))
+                .withSeed(1)
+                .run(graph)
+
+        // then
+        assertEquals(5000, report.builds)
+        assertEquals([Result.SUCCESS] as Set, report.results.values() as Set)
+        assertTrue(report.toString(), report.utilization > 0 && report.utilization <= 1)
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import hudson.model.BooleanParameterDefinition
+import hudson.model.ParametersDefinitionProperty
+import hudson.model.StringParameterDefinition
+import hudson.model.StringParameterValue
+import jenkins.model.Jenkins
+
+class JobParametersTest extends DSLTestCase {
+
+    public void testStaticDefaultValuesAreResolvedOnce() {
+        // given
+        def job = createJob("job1")
+        def dynamic = new StringParameterDefinition("dynamic", "0") {
+            int calls
+            @Override
+            StringParameterValue getDefaultParameterValue() {
+                new StringParameterValue(getName(), String.valueOf(++calls))
+            }
+        }
+        job.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("param1", "a"),
+                new BooleanParameterDefinition("param2", true, ""), dynamic))
+
+        // when
+        def parameters = JobParameters.of(job)
+        def first = parameters.getDefaultValues([])
+        def second = parameters.getDefaultValues(["param2"])
+
+        // then
+        assert ["param1", "param2", "dynamic"] == first*.name
+        assert ["param1", "dynamic"] == second*.name
+        assert first[0].is(second[0])
+        assert "1" == first[2].value
+        assert "2" == second[1].value
+        assert parameters.getSimpleDefinition("param1") instanceof StringParameterDefinition
+        assert parameters.getSimpleDefinition("param3") == null
+    }
+
+    public void testParametersAreResolvedAgainWhenTheJobIsReconfigured() {
+        // given
+        def job = createJob("job1")
+        job.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("param1", "a")))
+        def run = new FlowRun(new BuildFlow(Jenkins.instance, getName()))
+
+        // when
+        def first = run.getJobParameters(job)
+        def cached = run.getJobParameters(job)
+        job.removeProperty(ParametersDefinitionProperty)
+        job.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("param1", "b")))
+        def reconfigured = run.getJobParameters(job)
+
+        // then
+        assert first.is(cached)
+        assert !first.is(reconfigured)
+        assert "b" == reconfigured.getDefaultValues([])[0].value
+        assert run.getJobParameters(createJob("job2")).definitions.isEmpty()
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, CloudBees, Inc., Nicolas De Loof.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.cloudbees.plugins.flow
+
+import junit.framework.TestCase
+import org.jgrapht.graph.SimpleDirectedGraph
+
+class JobsGraphFileTest extends TestCase {
+
+    def start = new JobInvocation("flow", 1, 7, true, true, true, false)
+
+    def graph = new SimpleDirectedGraph<JobInvocation, FlowRun.JobEdge>(FlowRun.JobEdge)
+
+    public void setUp() {
+        def first = new JobInvocation("job1", 2, 10, true, true, true, false)
+        def reused = new JobInvocation("job2", 3, 4, true, true, true, true)
+        def retry = new JobInvocation("job1", 4, 11, true, false, false, false)
+        [start, first, reused, retry].each { graph.addVertex(it) }
+        [[start, first], [start, reused], [first, retry], [reused, retry]].each { source, target ->
+            graph.addEdge(source, target, new FlowRun.JobEdge(source, target))
+        }
+    }
+
+    public void testRoundTrip() {
+        // when
+        def loaded = JobsGraphFile.read(new ByteArrayInputStream(write()), start)
+
+        // then
+        def vertices = loaded.vertexSet() as List
+        assertTrue(vertices[0].is(start))
+        assertEquals(["flow", "job1", "job2", "job1"], vertices*.name)
+        assertEquals(["build-1", "build-2", "build-3", "build-4"], vertices*.id)
+        assertEquals([7, 10, 4, 11], vertices*.buildNumber)
+        assertEquals([false, false, true, false], vertices*.reused)
+        assertEquals([true, true, true, false], vertices*.completed)
+        assertTrue(vertices[1].name.is(vertices[3].name))
+        assertTrue(vertices.every { it.started })
+        assertFalse(vertices[3].finalizedFuture.done)
+        assertEquals(graph.edgeSet().collect { "${it.source.id} -> ${it.target.id}" },
+                loaded.edgeSet().collect { "${it.source.id} -> ${it.target.id}" })
+        assertEquals(2, loaded.outgoingEdgesOf(start).size())
+    }
+
+    public void testStartIsCreatedIfNotGiven() {
+        def loaded = JobsGraphFile.read(new ByteArrayInputStream(write()), null)
+
+        def first = (loaded.vertexSet() as List)[0]
+        assertFalse(first.is(start))
+        assertEquals(start, first)
+        assertEquals(2, loaded.outgoingEdgesOf(first).size())
+    }
+
+    public void testWriteToFile() {
+        def file = File.createTempFile("jobsGraph", ".bin")
+        try {
+            JobsGraphFile.write(graph, start, file)
+            JobsGraphFile.write(graph, start, file)
+
+            assertEquals(4, JobsGraphFile.read(file, start).vertexSet().size())
+            assertFalse(new File(file.path + ".tmp").exists())
+        } finally {
+            file.delete()
+        }
+    }
+
+    public void testCorruptedFile() {
+        def content = write()
+
+        def flipped = content.clone()
+        // first letter of the first job name
+        flipped[12] = (byte) (flipped[12] ^ 0x01)
+        assertReadFails(flipped, "checksum")
+        assertReadFails(Arrays.copyOf(content, content.length - 3), "Truncated")
+        def newer = content.clone()
+        newer[5] = (byte) (JobsGraphFile.VERSION + 1)
+        assertReadFails(newer, "Unsupported")
+        assertReadFails("job1=job0".bytes, "Not a graph")
+    }
+
+    private byte[] write() {
+        def out = new ByteArrayOutputStream()
+        JobsGraphFile.write(graph, start, out)
+        out.toByteArray()
+    }
+
+    private void assertReadFails(byte[] content, String message) {
+        try {
+            JobsGraphFile.read(new ByteArrayInputStream(content), start)
+            fail("read a corrupted graph")
+        } catch (IOException e) {
+            assertTrue(e.message, e.message.contains(message))
+        }
+    }
+}